@@ -0,0 +1,128 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio;
+
+import java.nio.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmarks for AudioUtil sample format conversions, comparing the
+ * versions that take a cached little-endian buffer with the simple loops on
+ * arrays. Times are per call on 4608 samples (about one
+ * decoded ADPCM block after conversion to 44.1 kHz stereo); all conversions
+ * go into existing arrays.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+@State(Scope.Thread)
+public class AudioUtilBenchmark
+{
+	private final static int SAMPLES=4608;
+
+	/** True to use the buffer versions, false for the array versions */
+	@Param({"true", "false"})
+	public boolean view;
+
+	private byte[] bytes=new byte[SAMPLES*4];
+	private short[] shorts=new short[SAMPLES*2];
+	private ByteBuffer buffer=ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+	@Setup
+	public void setup()
+	{
+		new Random(1).nextBytes(bytes);
+		AudioUtil.byteToShort(bytes, 0, bytes.length, false, shorts, 0);
+	}
+
+	/**
+	 * @return Output (to stop it being optimised away)
+	 */
+	@Benchmark
+	public short[] byteToShort()
+	{
+		if(view)
+		{
+			AudioUtil.byteToShort(buffer, 0, SAMPLES*2, false, shorts, 0);
+		}
+		else
+		{
+			AudioUtil.byteToShort(bytes, 0, SAMPLES*2, false, shorts, 0);
+		}
+		return shorts;
+	}
+
+	/**
+	 * @return Output (to stop it being optimised away)
+	 */
+	@Benchmark
+	public short[] byteToShortDownmix()
+	{
+		if(view)
+		{
+			AudioUtil.byteToShort(buffer, 0, SAMPLES*4, true, shorts, 0);
+		}
+		else
+		{
+			AudioUtil.byteToShort(bytes, 0, SAMPLES*4, true, shorts, 0);
+		}
+		return shorts;
+	}
+
+	/**
+	 * @return Output (to stop it being optimised away)
+	 */
+	@Benchmark
+	public byte[] shortToByte()
+	{
+		if(view)
+		{
+			AudioUtil.shortToByte(shorts, 0, SAMPLES*2, false, buffer, 0);
+		}
+		else
+		{
+			AudioUtil.shortToByte(shorts, 0, SAMPLES*2, false, bytes, 0);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return Output (to stop it being optimised away)
+	 */
+	@Benchmark
+	public byte[] shortToByteExpand()
+	{
+		if(view)
+		{
+			AudioUtil.shortToByte(shorts, 0, SAMPLES, true, buffer, 0);
+		}
+		else
+		{
+			AudioUtil.shortToByte(shorts, 0, SAMPLES, true, bytes, 0);
+		}
+		return bytes;
+	}
+}
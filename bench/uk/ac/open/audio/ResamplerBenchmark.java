@@ -0,0 +1,89 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmarks comparing the old stateless AudioUtil.resample with the
+ * streaming Resampler at each quality. Times are per chunk: one ADPCM block
+ * (1017 samples of 16 kHz mono) or one MP3 frame (1152 samples of stereo).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResamplerBenchmark
+{
+	/** Input format: frequency, then 1 for mono or 2 for stereo */
+	@Param({"16000/1", "22050/2", "48000/2"})
+	public String input;
+
+	/** Resampler quality */
+	@Param({"LINEAR", "STANDARD", "HIGH"})
+	public String quality;
+
+	private short[] data;
+	private int frequency;
+	private boolean stereo;
+	private Resampler resampler;
+
+	@Setup
+	public void setup()
+	{
+		String[] parts=input.split("/");
+		frequency=Integer.parseInt(parts[0]);
+		stereo=parts[1].equals("2");
+		data=new short[frequency==16000 ? 1017 : 1152*2];
+		Random random=new Random(1);
+		for(int i=0;i<data.length;i++)
+		{
+			data[i]=(short)(Math.sin(i/5.0)*10000+random.nextInt(2000)-1000);
+		}
+		resampler=new Resampler(stereo, frequency, 44100,
+			Resampler.Quality.valueOf(quality));
+	}
+
+	/**
+	 * @return Output (to stop it being optimised away)
+	 */
+	@Benchmark
+	public short[] resampler()
+	{
+		resampler.resample(data, 0, data.length);
+		return resampler.getOutput();
+	}
+
+	/**
+	 * Old per-block method, for comparison (ignores the quality parameter).
+	 * @return Output (to stop it being optimised away)
+	 */
+	@Benchmark
+	public short[] audioUtil()
+	{
+		return AudioUtil.resample(data, data.length, stereo, frequency, 44100);
+	}
+}
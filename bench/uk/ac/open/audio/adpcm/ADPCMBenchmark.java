@@ -0,0 +1,133 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.adpcm;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.ac.open.audio.AudioException;
+
+/**
+ * JMH benchmarks for the ADPCM codec. Results are in nanoseconds per ADPCM
+ * block (1017 samples, about 64ms of audio); run with '-prof gc' (as the
+ * Ant 'bench' target does) to see allocation per block.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+@State(Scope.Thread)
+public class ADPCMBenchmark
+{
+	/** Number of blocks processed in each benchmark invocation (about 16s) */
+	private final static int BLOCKS=256;
+
+	/** Type of audio */
+	@Param({"SPEECH", "NOISE"})
+	public String type;
+
+	private byte[] pcm, encoded, wav, decoded;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		pcm=Fixtures.create(Fixtures.Type.valueOf(type), BLOCKS);
+		encoded=ADPCMEncoder.encode(pcm, 1);
+		ByteArrayOutputStream output=new ByteArrayOutputStream();
+		ADPCMEncoder.writeWavHeader(output, pcm.length/2);
+		output.write(encoded);
+		wav=output.toByteArray();
+		decoded=new byte[ADPCMEncoder.BLOCKSAMPLES*2];
+	}
+
+	/**
+	 * Allocating block encoder, as used when recording.
+	 * @param bh Blackhole
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BLOCKS)
+	public void encodeBlock(Blackhole bh)
+	{
+		for(int i=0;i<BLOCKS;i++)
+		{
+			bh.consume(ADPCMEncoder.encodeBlock(pcm,
+				i*ADPCMEncoder.BLOCKSAMPLES*2, ADPCMEncoder.BLOCKSAMPLES*2));
+		}
+	}
+
+	/**
+	 * Allocating block decoder.
+	 * @param bh Blackhole
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BLOCKS)
+	public void decodeBlock(Blackhole bh)
+	{
+		for(int i=0;i<BLOCKS;i++)
+		{
+			bh.consume(ADPCMDecoder.decodeBlock(encoded,
+				i*ADPCMEncoder.BLOCKBYTES));
+		}
+	}
+
+	/**
+	 * Non-allocating block decoder, into an existing buffer.
+	 * @return Decoded data (to stop it being optimised away)
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BLOCKS)
+	public byte[] decodeBlockInto()
+	{
+		for(int i=0;i<BLOCKS;i++)
+		{
+			ADPCMDecoder.decodeBlock(encoded, i*ADPCMEncoder.BLOCKBYTES,
+				decoded, 0);
+		}
+		return decoded;
+	}
+
+	/**
+	 * Full streaming decode, including the 16 kHz mono to 44.1 kHz stereo
+	 * conversion done for playback.
+	 * @param bh Blackhole
+	 * @throws AudioException Shouldn't happen
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BLOCKS)
+	public void decode(Blackhole bh) throws AudioException
+	{
+		ADPCMDecoder decoder=new ADPCMDecoder();
+		decoder.init(new ByteArrayInputStream(wav));
+		while(true)
+		{
+			byte[] data=decoder.decode();
+			if(data==null)
+			{
+				break;
+			}
+			bh.consume(data);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.adpcm;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmark for range access into an ADPCMRecording, as used by the
+ * waveform display on every repaint. Times are per call, fetching the last
+ * 500 blocks of the recording.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+@State(Scope.Thread)
+public class ADPCMRecordingBenchmark
+{
+	/** Recording length in blocks (938 blocks is one minute) */
+	@Param({"938", "56250"})
+	public int length;
+
+	private ADPCMRecording recording;
+	private byte[] data=new byte[500*ADPCMEncoder.BLOCKBYTES];
+	private int[] min=new int[500],max=new int[500];
+
+	@Setup
+	public void setup()
+	{
+		recording=new ADPCMRecording();
+		byte[] pcm=Fixtures.create(Fixtures.Type.SPEECH, 1);
+		ADPCMEncoder.Block block=ADPCMEncoder.encodeBlock(pcm, 0, pcm.length);
+		for(int i=0;i<length;i++)
+		{
+			recording.addBlock(block);
+		}
+	}
+
+	/**
+	 * @return Blocks (to stop them being optimised away)
+	 * @throws IOException Shouldn't happen
+	 */
+	@Benchmark
+	public ADPCMEncoder.Block[] getBlocks() throws IOException
+	{
+		return recording.getBlocks(length-500, 500);
+	}
+
+	/**
+	 * Reads the same range into reused arrays, as the allocation-free API.
+	 * @return Data (to stop it being optimised away)
+	 * @throws IOException Shouldn't happen
+	 */
+	@Benchmark
+	public byte[] readBlocks() throws IOException
+	{
+		recording.readBlocks(length-500, 500, data, 0);
+		recording.getLevels(length-500, 500, min, max, 0);
+		return data;
+	}
+}
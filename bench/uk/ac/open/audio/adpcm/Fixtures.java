@@ -0,0 +1,83 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.adpcm;
+
+import java.util.Random;
+
+/**
+ * Generates repeatable 16 kHz 16-bit mono test audio for benchmarks.
+ */
+abstract class Fixtures
+{
+	/** Kinds of test audio. */
+	enum Type
+	{
+		/**
+		 * Speech-like: a voiced tone with wandering pitch and a few harmonics,
+		 * shaped into syllables with short pauses, over a quiet noise floor.
+		 */
+		SPEECH,
+		/** Loud white noise, which drives the step index to extremes */
+		NOISE
+	}
+
+	/**
+	 * @param type Type of audio
+	 * @param blocks Number of ADPCM blocks of audio to generate
+	 * @return Audio data (16 kHz 16-bit mono little-endian)
+	 */
+	static byte[] create(Type type,int blocks)
+	{
+		Random random=new Random(1234);
+		int samples=blocks*ADPCMEncoder.BLOCKSAMPLES;
+		byte[] data=new byte[samples*2];
+		double phase=0.0;
+		for(int i=0;i<samples;i++)
+		{
+			double value;
+			if(type==Type.SPEECH)
+			{
+				double seconds=i/(double)ADPCMEncoder.SAMPLERATE;
+
+				// Pitch wanders between about 100 and 220 Hz
+				double pitch=160+60*Math.sin(2*Math.PI*0.7*seconds);
+				phase+=2*Math.PI*pitch/ADPCMEncoder.SAMPLERATE;
+
+				// Four syllables a second, with every fifth one silent
+				double syllable=seconds*4;
+				double envelope=((int)syllable)%5==4 ? 0.0 :
+					Math.pow(Math.sin(Math.PI*(syllable-(int)syllable)),2);
+
+				value=envelope*(9000*Math.sin(phase)+4000*Math.sin(2*phase)+
+					2500*Math.sin(3*phase)+1200*Math.sin(5*phase))+
+					random.nextGaussian()*60;
+			}
+			else
+			{
+				value=random.nextGaussian()*10000;
+			}
+			int sample=(int)Math.max(-32768,Math.min(32767,Math.round(value)));
+			data[i*2]=(byte)sample;
+			data[i*2+1]=(byte)(sample>>8);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+import java.util.*;
+
+/**
+ * Replays synthetic download traces through the buffering policies and
+ * reports time to first audio and number of rebuffers (times playback ran
+ * out of downloaded audio) for each. Everything is simulated in 10ms steps,
+ * so results are repeatable and it runs in well under a second. Run with
+ * the Ant 'replay' target.
+ */
+public class BufferingReplay
+{
+	/** Simulation step in milliseconds */
+	private final static int TICKMS=10;
+
+	/** Size of each downloaded block, as in StreamPlayer */
+	private final static int BLOCKSIZE=2048;
+
+	/** Stream bytes per second of audio (128 kbit/s MP3) */
+	private final static double PLAYBACKRATE=16000;
+
+	/** Length of stream in seconds */
+	private final static int SECONDS=120;
+
+	/** Audio decoded ahead of playback, roughly StreamPlayer's buffer */
+	private final static double DECODEAHEAD=0.13;
+
+	/** Download speed over time. */
+	private static abstract class Trace
+	{
+		private final String name;
+
+		Trace(String name)
+		{
+			this.name=name;
+		}
+
+		/**
+		 * @param ms Time since start in milliseconds
+		 * @param random Seeded random source
+		 * @return Download speed in bytes per second for this step
+		 */
+		abstract double getRate(int ms,Random random);
+	}
+
+	/** @return New copies of the traces (some keep state) */
+	private static Trace[] createTraces()
+	{
+		return new Trace[]
+		{
+			new Trace("Steady fast (4x)")
+			{
+				double getRate(int ms,Random random)
+				{
+					return 64000*(0.95+random.nextDouble()*0.1);
+				}
+			},
+			new Trace("Steady slow (0.8x)")
+			{
+				double getRate(int ms,Random random)
+				{
+					return 12800*(0.95+random.nextDouble()*0.1);
+				}
+			},
+			new Trace("Bursty (1.8x)")
+			{
+				double getRate(int ms,Random random)
+				{
+					// Half second bursts then 2.5 seconds of almost nothing
+					return (ms%3000)<500 ? 160000 : 2400;
+				}
+			},
+			new Trace("Jittery (1.5x)")
+			{
+				private double current;
+
+				double getRate(int ms,Random random)
+				{
+					// Exponentially distributed, changing every 100ms
+					if(ms%100==0)
+					{
+						current=-Math.log(1-random.nextDouble())*24000;
+					}
+					return current;
+				}
+			},
+			new Trace("Slowing (3x to 0.9x)")
+			{
+				double getRate(int ms,Random random)
+				{
+					return ms<5000 ? 48000 : 14400;
+				}
+			},
+			new Trace("Stall (2.5x, 15s gap)")
+			{
+				double getRate(int ms,Random random)
+				{
+					return ms>=5000 && ms<20000 ? 0 : 40000;
+				}
+			}
+		};
+	}
+
+	/** Result of one replay. */
+	private static class Result
+	{
+		int firstAudioMs=-1,rebuffers,stalledMs;
+	}
+
+	/**
+	 * @param trace Download trace
+	 * @param policy Policy
+	 * @return Result
+	 */
+	private static Result replay(Trace trace,BufferingPolicy policy)
+	{
+		Random random=new Random(42);
+		int length=(int)(SECONDS*PLAYBACKRATE);
+		BandwidthEstimator estimator=new BandwidthEstimator();
+		Result result=new Result();
+
+		double arrived=0,played=0;
+		int downloaded=0,lastBlockMs=0;
+		boolean playing=false;
+		for(int ms=0;played<SECONDS;ms+=TICKMS)
+		{
+			// Download, in whole blocks as the real downloader does
+			if(downloaded<length)
+			{
+				arrived+=trace.getRate(ms,random)*TICKMS/1000;
+				while(arrived>=BLOCKSIZE && downloaded<length)
+				{
+					int block=Math.min(BLOCKSIZE,length-downloaded);
+					arrived-=block;
+					downloaded+=block;
+					estimator.add(block,ms-lastBlockMs);
+					lastBlockMs=ms;
+				}
+			}
+			double secondsDownloaded=downloaded/PLAYBACKRATE;
+			boolean finished=downloaded==length;
+
+			if(playing)
+			{
+				played=Math.min(played+TICKMS/1000.0,SECONDS);
+				if(played>=secondsDownloaded && !finished)
+				{
+					playing=false;
+					result.rebuffers++;
+				}
+				continue;
+			}
+
+			if(result.firstAudioMs!=-1)
+			{
+				result.stalledMs+=TICKMS;
+			}
+			// Same preconditions as StreamPlayer: two blocks and 100ms decoded
+			double decoded=Math.min(played+DECODEAHEAD,secondsDownloaded);
+			if(downloaded<2*BLOCKSIZE || decoded<0.1)
+			{
+				continue;
+			}
+			int delay=policy.getPlaybackDelay(new BufferingPolicy.Status(
+				downloaded,length,finished,estimator.getMean(),
+				estimator.getDeviation(),PLAYBACKRATE,secondsDownloaded,decoded,
+				SECONDS));
+			if(delay==0)
+			{
+				playing=true;
+				if(result.firstAudioMs==-1)
+				{
+					result.firstAudioMs=ms;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Runs every policy against every trace and prints a table.
+	 * @param args Ignored
+	 */
+	public static void main(String[] args)
+	{
+		Map<String,BufferingPolicy> policies=
+			new LinkedHashMap<String,BufferingPolicy>();
+		policies.put("Threshold",new ThresholdPolicy());
+		policies.put("Confidence",new ConfidencePolicy());
+		policies.put("Confidence 2sd",new ConfidencePolicy(2.0,1.0));
+		policies.put("Confidence 3s",new ConfidencePolicy(1.0,3.0));
+
+		System.out.println(String.format("%-22s %-16s %10s %10s %10s",
+			"Trace","Policy","First (ms)","Rebuffers","Stall (ms)"));
+		for(int i=0;i<createTraces().length;i++)
+		{
+			for(Map.Entry<String,BufferingPolicy> policy : policies.entrySet())
+			{
+				Trace trace=createTraces()[i];
+				Result result=replay(trace,policy.getValue());
+				System.out.println(String.format("%-22s %-16s %10d %10d %10d",
+					trace.name,policy.getKey(),result.firstAudioMs,result.rebuffers,
+					result.stalledMs));
+			}
+		}
+	}
+}
@@ -0,0 +1,290 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+import java.io.*;
+import java.net.*;
+import java.util.Random;
+
+import com.sun.net.httpserver.*;
+
+import uk.ac.open.audio.PlaybackDevice;
+import uk.ac.open.audio.adpcm.*;
+
+/**
+ * Streams and uploads ADPCM audio over simulated networks, reporting startup
+ * delay and stalls for playback and total time for uploads. Playback is
+ * consumed in real time with no audio device and uploads go to a local
+ * server, so it runs headless. Pipeline metrics for the whole run are
+ * logged at the end. Run with the Ant 'netbench' target.
+ */
+public class NetworkBenchmark
+{
+	/** Length of test audio in seconds */
+	private final static int SECONDS=8;
+
+	/** Download traces (about 8 KB/s is needed for real-time playback) */
+	private final static String[][] DOWNLOADS=
+	{
+		{"Fast (64 KB/s)","1000 64000 20"},
+		{"DSL-ish (12 KB/s)","1000 12000 40"},
+		{"Modem (5 KB/s)","1000 5120 150"},
+		{"Stall (20 KB/s, 3s gap)","2000 20000 40\n3000 0\n10000 20000 40"}
+	};
+
+	/** Upload traces */
+	private final static String[][] UPLOADS=
+	{
+		{"Fast (30 KB/s)","1000 30000 20"},
+		{"Modem (2.5 KB/s)","1000 2560 150"},
+		{"Stall (10 KB/s, 2s gap)","1000 10000 40\n2000 0\n10000 10000 40"}
+	};
+
+	/** Playback results. */
+	private static class PlayResult implements StreamPlayer.Handler
+	{
+		private final long start=System.currentTimeMillis();
+		private long readyMs=-1;
+		private Throwable error;
+
+		public synchronized void streamChangedState(StreamPlayer.State s)
+		{
+			if(readyMs==-1 && (s==StreamPlayer.State.READYTOPLAY ||
+				s==StreamPlayer.State.FULLYLOADED))
+			{
+				readyMs=System.currentTimeMillis()-start;
+				notifyAll();
+			}
+		}
+
+		public synchronized void streamError(Throwable t)
+		{
+			error=t;
+			notifyAll();
+		}
+
+		public PlaybackDevice.Format streamFormat(PlaybackDevice.Format nativeFormat)
+		{
+			return nativeFormat;
+		}
+
+		public void updateStats(int download,int length,double percentage,
+			int downloadPerSecond,int audioPerSecond,int estimatedWait)
+		{
+		}
+
+		synchronized void waitForReady() throws Exception
+		{
+			while(readyMs==-1 && error==null)
+			{
+				wait();
+			}
+			if(error!=null)
+			{
+				throw new Exception(error);
+			}
+		}
+	}
+
+	/**
+	 * @return ADPCM wav file of test audio
+	 * @throws IOException Any error
+	 */
+	private static byte[] createWav() throws IOException
+	{
+		Random random=new Random(7);
+		byte[] pcm=new byte[ADPCMEncoder.SAMPLERATE*SECONDS*2];
+		for(int i=0;i<pcm.length/2;i++)
+		{
+			int value=(int)(Math.sin(i/12.0)*8000)+random.nextInt(2000)-1000;
+			pcm[i*2]=(byte)value;
+			pcm[i*2+1]=(byte)(value>>8);
+		}
+		ByteArrayOutputStream output=new ByteArrayOutputStream();
+		ADPCMEncoder.writeWavHeader(output,pcm.length/2);
+		output.write(ADPCMEncoder.encode(pcm,1));
+		return output.toByteArray();
+	}
+
+	/**
+	 * Plays a stream in real time once it's ready, as the playback device
+	 * would, and prints the results.
+	 * @param name Trace name
+	 * @param trace Trace
+	 * @param wav Audio data
+	 * @throws Exception Any error
+	 */
+	private static void play(String name,NetworkTrace trace,byte[] wav)
+		throws Exception
+	{
+		PlayResult result=new PlayResult();
+		StreamPlayer player=new StreamPlayer(
+			new ThrottledInputStream(new ByteArrayInputStream(wav),trace),
+			wav.length,ADPCMDecoder.class,result);
+		result.waitForReady();
+		int stalls=0;
+		long stalledMs=0,due=System.currentTimeMillis();
+		PlaybackDevice.Format format=player.getFormat();
+		while(true)
+		{
+			if(!player.hasNextAudio())
+			{
+				// Ran out; wait for more as the player would play silence
+				long stallStart=System.currentTimeMillis();
+				while(!player.hasNextAudio())
+				{
+					Thread.sleep(1);
+				}
+				stalls++;
+				long now=System.currentTimeMillis();
+				stalledMs+=now-stallStart;
+				due=Math.max(due,now);
+			}
+			StreamPlayer.AudioBlock block=player.getNextAudio();
+			if(block==null)
+			{
+				break;
+			}
+			due+=(block.getLength()/format.getBytesPerFrame())*1000L/
+				format.getSampleRate();
+			player.recycle(block);
+			long wait=due-System.currentTimeMillis();
+			if(wait>0)
+			{
+				Thread.sleep(wait);
+			}
+		}
+		player.close();
+		System.out.println(String.format("%-26s %10d %10d %10d",
+			name,result.readyMs,stalls,stalledMs));
+	}
+
+	/** Upload results. */
+	private static class UploadResult implements Uploader.Handler
+	{
+		private boolean done;
+		private Throwable error;
+
+		public synchronized void uploadError(Throwable t)
+		{
+			error=t;
+			done=true;
+			notifyAll();
+		}
+
+		public synchronized void uploadStatus(int transferred,int total)
+		{
+			if(transferred==total)
+			{
+				done=true;
+				notifyAll();
+			}
+		}
+
+		synchronized void waitForEnd() throws Exception
+		{
+			while(!done)
+			{
+				wait();
+			}
+			if(error!=null)
+			{
+				throw new Exception(error);
+			}
+		}
+	}
+
+	/**
+	 * @param url Upload URL
+	 * @param name Trace name
+	 * @param trace Trace
+	 * @param data Data to upload
+	 * @throws Exception Any error
+	 */
+	private static void upload(URL url,String name,NetworkTrace trace,byte[] data)
+		throws Exception
+	{
+		long start=System.currentTimeMillis();
+		UploadResult result=new UploadResult();
+		new Uploader(result,url,data,trace);
+		result.waitForEnd();
+		System.out.println(String.format("%-26s %10d",
+			name,System.currentTimeMillis()-start));
+	}
+
+	/**
+	 * Runs every trace and prints tables.
+	 * @param args Ignored
+	 * @throws Exception Any error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		byte[] wav=createWav();
+		System.out.println(wav.length+" bytes, "+SECONDS+" seconds of audio");
+		System.out.println();
+		System.out.println(String.format("%-26s %10s %10s %10s",
+			"Download","Ready (ms)","Stalls","Stall (ms)"));
+		for(String[] download : DOWNLOADS)
+		{
+			play(download[0],NetworkTrace.read(new StringReader(download[1])),wav);
+		}
+
+		HttpServer server=HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+		server.createContext("/upload",new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				InputStream in=exchange.getRequestBody();
+				byte[] buffer=new byte[4096];
+				while(in.read(buffer)!=-1)
+				{
+				}
+				exchange.sendResponseHeaders(200,-1);
+				exchange.close();
+			}
+		});
+		server.start();
+		try
+		{
+			URL url=new URL("http://127.0.0.1:"+server.getAddress().getPort()+
+				"/upload");
+			byte[] data=new byte[wav.length/2];
+			System.arraycopy(wav,0,data,0,data.length);
+			System.out.println();
+			System.out.println(String.format("%-26s %10s",
+				"Upload ("+data.length+" bytes)","Time (ms)"));
+			for(String[] upload : UPLOADS)
+			{
+				upload(url,upload[0],NetworkTrace.read(new StringReader(upload[1])),
+					data);
+			}
+			// Progress reaches the total before the response is read
+			Thread.sleep(500);
+		}
+		finally
+		{
+			server.stop(0);
+		}
+		System.out.println();
+		new LogMetricsReporter().report(Metrics.getValues());
+		System.exit(0);
+	}
+}
@@ -0,0 +1,164 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio;
+
+import java.util.concurrent.*;
+
+/**
+ * Shared threads for audio work, so that the number of threads doesn't grow
+ * with the number of players on a page. Tasks that block for long periods
+ * (waiting for audio or network data) run on workers: virtual threads where
+ * the JVM supports them, otherwise a pool of reusable daemon threads. Short
+ * timed tasks run on a single shared scheduler thread.
+ */
+public final class AudioExecutor
+{
+	/** Maximum number of pooled platform threads */
+	private final static int MAXWORKERS=32;
+	/** Seconds an idle pooled thread is kept */
+	private final static int IDLESECONDS=30;
+
+	private final static ExecutorService WORKERS=createWorkers();
+	private final static ScheduledExecutorService SCHEDULER=
+		Executors.newSingleThreadScheduledExecutor(
+			new DaemonFactory("Audio scheduler"));
+
+	private AudioExecutor()
+	{
+	}
+
+	/** Creates daemon threads with a given name. */
+	private static class DaemonFactory implements ThreadFactory
+	{
+		private final String name;
+
+		private DaemonFactory(String name)
+		{
+			this.name=name;
+		}
+
+		public Thread newThread(Runnable r)
+		{
+			Thread thread=new Thread(r,name);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * @return Virtual thread executor if available (Java 21 onwards), or
+	 *   otherwise a bounded pool
+	 */
+	private static ExecutorService createWorkers()
+	{
+		try
+		{
+			return (ExecutorService)Executors.class.getMethod(
+				"newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(Exception e)
+		{
+			// Not supported; use platform threads
+		}
+
+		// Worker tasks block, so they can't wait in a queue for one another; if
+		// the pool is ever full, extra tasks get a thread of their own
+		return new ThreadPoolExecutor(0,MAXWORKERS,IDLESECONDS,TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),new DaemonFactory("Audio worker"),
+			new RejectedExecutionHandler()
+			{
+				public void rejectedExecution(Runnable r,ThreadPoolExecutor executor)
+				{
+					System.err.println("[uk.ac.open.audio.AudioExecutor] " +
+						"All "+MAXWORKERS+" workers busy; starting extra thread");
+					new DaemonFactory("Audio worker (extra)").newThread(r).start();
+				}
+			});
+	}
+
+	/**
+	 * Runs a task on a shared worker. While the task runs, the worker has the
+	 * given name and priority; afterwards they are restored and any interrupt
+	 * is cleared, so nothing leaks into the worker's next task.
+	 * @param task Task to run
+	 * @param name Thread name while running
+	 * @param priority Thread priority while running (ignored by virtual
+	 *   threads)
+	 */
+	public static void execute(final Runnable task,final String name,
+		final int priority)
+	{
+		WORKERS.execute(new Runnable()
+		{
+			public void run()
+			{
+				Thread current=Thread.currentThread();
+				String oldName=current.getName();
+				int oldPriority=current.getPriority();
+				current.setName(name);
+				current.setPriority(priority);
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					current.setName(oldName);
+					current.setPriority(oldPriority);
+					Thread.interrupted();
+				}
+			}
+		});
+	}
+
+	/** Pool for CPU-bound work, created when first used. */
+	private static class ComputeHolder
+	{
+		private final static ExecutorService POOL=createCompute();
+
+		private static ExecutorService createCompute()
+		{
+			int threads=Runtime.getRuntime().availableProcessors();
+			ThreadPoolExecutor pool=new ThreadPoolExecutor(threads,threads,
+				IDLESECONDS,TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(),
+				new DaemonFactory("Audio compute"));
+			pool.allowCoreThreadTimeOut(true);
+			return pool;
+		}
+	}
+
+	/**
+	 * Gets the shared pool for CPU-bound tasks that don't block, such as
+	 * encoding a whole file. It has one daemon thread per processor (idle
+	 * threads exit) and queues any further tasks. Don't shut it down.
+	 * @return Shared compute pool
+	 */
+	public static ExecutorService getComputePool()
+	{
+		return ComputeHolder.POOL;
+	}
+
+	/** @return Shared scheduler for short timed tasks */
+	public static ScheduledExecutorService getScheduler()
+	{
+		return SCHEDULER;
+	}
+}
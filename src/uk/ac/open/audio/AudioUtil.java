@@ -20,6 +20,8 @@ If not, see <http://www.gnu.org/licenses/>.
 */
 package uk.ac.open.audio;
 
+import java.nio.ByteBuffer;
+
 /**
  * Static audio utility methods.
  */
@@ -33,26 +35,103 @@ public abstract class AudioUtil
 	 * @return Short version of data
 	 */
 	public static short[] byteToShort(byte[] data,int length,boolean reduceStereo)
+	{
+		short[] shortData=new short[reduceStereo ? length/4 : length/2];
+		byteToShort(data,0,length,reduceStereo,shortData,0);
+		return shortData;
+	}
+
+	/**
+	 * Converts mono or stereo audio data in 'byte' format (little-endian
+	 * 16-bit) into an existing short array.
+	 * @param data Data
+	 * @param length Number of bytes to actually use
+	 * @param target Array that receives data (must have length/2 space)
+	 * @return Number of shorts written
+	 */
+	public static int byteToShort(byte[] data,int length,short[] target)
+	{
+		return byteToShort(data,0,length,false,target,0);
+	}
+
+	/**
+	 * Converts audio data in 'byte' format (little-endian 16-bit) into an
+	 * existing short array. Does not allocate any arrays.
+	 * @param data Data
+	 * @param offset Offset of first byte
+	 * @param length Number of bytes to use
+	 * @param reduceStereo If true, reduces stereo data to become mono
+	 * @param target Array that receives data (must have length/2 space, or
+	 *   length/4 if reducing stereo)
+	 * @param targetOffset Offset within target
+	 * @return Number of shorts written
+	 */
+	public static int byteToShort(byte[] data,int offset,int length,
+		boolean reduceStereo,short[] target,int targetOffset)
 	{
 		if(reduceStereo)
 		{
-			short[] shortData=new short[length/4];
-			for(int i=0;i<shortData.length;i++)
+			int count=length/4;
+			for(int i=0;i<count;i++)
 			{
-				short val1=(short)( (data[i*4+1]<<8) | (data[i*4]&0xff));
-				short val2=(short)( (data[i*4+3]<<8) | (data[i*4+2]&0xff));
-				shortData[i]=(short)(((int)val1+(int)val2)/2);
+				int pos=offset+i*4;
+				short val1=(short)( (data[pos+1]<<8) | (data[pos]&0xff));
+				short val2=(short)( (data[pos+3]<<8) | (data[pos+2]&0xff));
+				target[targetOffset+i]=(short)(((int)val1+(int)val2)/2);
 			}
-			return shortData;
+			return count;
 		}
 		else
 		{
-			short[] shortData=new short[length/2];
-			for(int i=0;i<shortData.length;i++)
+			int count=length/2;
+			for(int i=0;i<count;i++)
 			{
-				shortData[i]=(short)( (data[i*2+1]<<8) | (data[i*2]&0xff));
+				int pos=offset+i*2;
+				target[targetOffset+i]=(short)( (data[pos+1]<<8) | (data[pos]&0xff));
 			}
-			return shortData;
+			return count;
+		}
+	}
+
+	/**
+	 * Converts audio data in 'byte' format (little-endian 16-bit) into an
+	 * existing short array, reading through a little-endian buffer that wraps
+	 * the bytes. The JVM reads each sample with one load rather than
+	 * assembling it from bytes. Callers on per-frame paths should keep the
+	 * buffer (for example ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN))
+	 * rather than wrapping the array each time; nothing is allocated, and the
+	 * buffer's position is not used or changed.
+	 * @param data Little-endian buffer containing data
+	 * @param offset Index of first byte within buffer
+	 * @param length Number of bytes to use
+	 * @param reduceStereo If true, reduces stereo data to become mono
+	 * @param target Array that receives data (must have length/2 space, or
+	 *   length/4 if reducing stereo)
+	 * @param targetOffset Offset within target
+	 * @return Number of shorts written
+	 */
+	public static int byteToShort(ByteBuffer data,int offset,int length,
+		boolean reduceStereo,short[] target,int targetOffset)
+	{
+		if(reduceStereo)
+		{
+			int count=length/4;
+			for(int i=0;i<count;i++)
+			{
+				// Each int holds left in its low half and right in its high half
+				int frame=data.getInt(offset+i*4);
+				target[targetOffset+i]=(short)(((short)frame+(frame>>16))/2);
+			}
+			return count;
+		}
+		else
+		{
+			int count=length/2;
+			for(int i=0;i<count;i++)
+			{
+				target[targetOffset+i]=data.getShort(offset+i*2);
+			}
+			return count;
 		}
 	}
 
@@ -65,28 +144,86 @@ public abstract class AudioUtil
 	 */
 	public static byte[] shortToByte(short[] data,int length,boolean expandMono)
 	{
-		byte[] byteData;
+		byte[] byteData=new byte[expandMono ? length*4 : length*2];
+		shortToByte(data,0,length,expandMono,byteData,0);
+		return byteData;
+	}
+
+	/**
+	 * Converts audio data in 'short' format into an existing byte array
+	 * (little-endian). Does not allocate any arrays.
+	 * @param data Data buffer
+	 * @param offset Offset of first short
+	 * @param length Number of shorts to use
+	 * @param expandMono If true, expands mono data into stereo
+	 * @param target Array that receives data (must have length*2 space, or
+	 *   length*4 if expanding mono)
+	 * @param targetOffset Offset within target
+	 * @return Number of bytes written
+	 */
+	public static int shortToByte(short[] data,int offset,int length,
+		boolean expandMono,byte[] target,int targetOffset)
+	{
 		if(expandMono)
 		{
-			byteData=new byte[length*4];
 			for(int i=0;i<length;i++)
 			{
-				byteData[i*4]=(byte)data[i];
-				byteData[i*4+1]=(byte)(data[i]>>8);
-				byteData[i*4+2]=(byte)data[i];
-				byteData[i*4+3]=(byte)(data[i]>>8);
+				short value=data[offset+i];
+				int pos=targetOffset+i*4;
+				target[pos]=(byte)value;
+				target[pos+1]=(byte)(value>>8);
+				target[pos+2]=(byte)value;
+				target[pos+3]=(byte)(value>>8);
 			}
+			return length*4;
 		}
 		else
 		{
-			byteData=new byte[length*2];
 			for(int i=0;i<length;i++)
 			{
-				byteData[i*2]=(byte)data[i];
-				byteData[i*2+1]=(byte)(data[i]>>8);
+				short value=data[offset+i];
+				target[targetOffset+i*2]=(byte)value;
+				target[targetOffset+i*2+1]=(byte)(value>>8);
 			}
+			return length*2;
+		}
+	}
+
+	/**
+	 * Converts audio data in 'short' format into an existing byte array
+	 * (little-endian), writing through a little-endian buffer that wraps the
+	 * array. As with the buffer version of byteToShort, callers should keep
+	 * the buffer; nothing is allocated and its position is not used.
+	 * @param data Data buffer
+	 * @param offset Offset of first short
+	 * @param length Number of shorts to use
+	 * @param expandMono If true, expands mono data into stereo
+	 * @param target Little-endian buffer that receives data (must have
+	 *   length*2 space, or length*4 if expanding mono)
+	 * @param targetOffset Index within target
+	 * @return Number of bytes written
+	 */
+	public static int shortToByte(short[] data,int offset,int length,
+		boolean expandMono,ByteBuffer target,int targetOffset)
+	{
+		if(expandMono)
+		{
+			for(int i=0;i<length;i++)
+			{
+				// Write both channels of each sample as one int
+				int value=data[offset+i];
+				target.putInt(targetOffset+i*4,(value<<16) | (value&0xffff));
+			}
+			return length*4;
+		}
+		else
+		{
+			for(int i=0;i<length;i++)
+			{
+				target.putShort(targetOffset+i*2,data[offset+i]);
+			}
+			return length*2;
 		}
-		return byteData;
 	}
 
 	/**
@@ -303,7 +440,7 @@ public abstract class AudioUtil
 		else
 		{
 			short[] output=new short[length];
-			System.arraycopy(output,0,data,0,length);
+			System.arraycopy(data,0,output,0,length);
 			return output;
 		}
 	}
@@ -322,7 +459,7 @@ public abstract class AudioUtil
 		else
 		{
 			byte[] output=new byte[length];
-			System.arraycopy(output,0,data,0,length);
+			System.arraycopy(data,0,output,0,length);
 			return output;
 		}
 	}
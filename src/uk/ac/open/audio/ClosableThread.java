@@ -20,13 +20,22 @@ If not, see <http://www.gnu.org/licenses/>.
 */
 package uk.ac.open.audio;
 
+import java.util.concurrent.locks.LockSupport;
+
 /**
- * Thread that can be closed.
+ * Background task that can be closed. Despite the name, it doesn't have a
+ * thread of its own: once started, it runs on a shared worker from
+ * {@link AudioExecutor}.
  */
-public abstract class ClosableThread extends Thread
+public abstract class ClosableThread implements Runnable
 {
-	private boolean close,closed;
-	private Object sync;
+	private final String name;
+	private final Object sync;
+	private volatile boolean close;
+	private boolean started,closed;
+	private int priority=Thread.NORM_PRIORITY;
+	/** Worker currently running the task, or null */
+	private volatile Thread thread;
 
 	/**
 	 * @param name Thread name
@@ -34,18 +43,57 @@ public abstract class ClosableThread extends Thread
 	 */
 	protected ClosableThread(String name, Object sync)
 	{
-		super(name);
+		this.name=name;
 		this.sync=sync;
 	}
 
-	/** Closes thread, blocking until it exits. */
+	/**
+	 * @param priority Thread priority while running (must be called before
+	 *   {@link #start})
+	 */
+	protected void setPriority(int priority)
+	{
+		this.priority=priority;
+	}
+
+	/**
+	 * Starts running the task on a shared worker.
+	 * @throws IllegalStateException If already started
+	 */
+	public void start() throws IllegalStateException
+	{
+		synchronized(sync)
+		{
+			if(started)
+			{
+				throw new IllegalStateException("Already started");
+			}
+			started=true;
+		}
+		AudioExecutor.execute(this,name,priority);
+	}
+
+	/**
+	 * Closes thread, blocking until it exits. Wakes the thread whether it is
+	 * waiting on the sync object or parked. If called from the thread itself,
+	 * returns at once and the thread exits when it next checks.
+	 */
 	public void close()
 	{
 		synchronized(sync)
 		{
 			close=true;
 			sync.notifyAll();
-			while(!closed)
+			Thread current=thread;
+			if(current!=null)
+			{
+				LockSupport.unpark(current);
+				if(current==Thread.currentThread())
+				{
+					return;
+				}
+			}
+			while(started && !closed)
 			{
 				try
 				{
@@ -58,15 +106,17 @@ public abstract class ClosableThread extends Thread
 		}
 	}
 
-	@Override
+	/** Runs the task; called on the worker. */
 	public final void run()
 	{
+		thread=Thread.currentThread();
 		try
 		{
 			runInner();
 		}
 		finally
 		{
+			thread=null;
 			synchronized(sync)
 			{
 				closed=true;
@@ -83,4 +133,4 @@ public abstract class ClosableThread extends Thread
 
 	/** Thread main method; should periodically check {@link #shouldClose}. */
 	protected abstract void runInner();
-}
\ No newline at end of file
+}
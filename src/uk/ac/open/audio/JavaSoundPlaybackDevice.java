@@ -113,24 +113,25 @@ class JavaSoundPlaybackDevice extends PlaybackDevice
 
 	private final Object playerStartSynch=new Object();
 
-	private class PlayThread extends Thread
+	/** Feeds the line from the handler, on a shared worker. */
+	private class PlayThread implements Runnable
 	{
 		private final Handler h;
+		/** Worker running playback */
+		private volatile Thread thread;
 
 		private PlayThread(Handler h)
 		{
-			super("Playback thread");
 			this.h=h;
-
-			setPriority(MIN_PRIORITY);
-			start();
+			AudioExecutor.execute(this,"Playback thread",Thread.MIN_PRIORITY);
 		}
 
-		@Override
 		public void run()
 		{
+			thread=Thread.currentThread();
 			boolean started = false;
 			long sentFrames=0;
+			byte[] block=new byte[getFormat().getPlaybackBlockSize()];
 			try
 			{
 				while(true)
@@ -165,20 +166,20 @@ class JavaSoundPlaybackDevice extends PlaybackDevice
 					}
 
 					// Get block from handler
-					byte[] block=h.playbackBlock();
+					int bytes=h.playbackBlock(block);
   				// 32 bytes of the block = 2 * 16 samples = 1ms @ 16 kHz
-					int blockTime=block==null ? 0 : getFormat().convertBytesToMs(block.length);
+					int blockTime=bytes==-1 ? 0 : getFormat().convertBytesToMs(bytes);
 
 					// Add block to buffer
-					if(block!=null)
+					if(bytes>0)
 					{
-						add(block,block.length);
-						sentFrames+=block.length/getFormat().getBytesPerFrame();
+						add(block,bytes);
+						sentFrames+=bytes/getFormat().getBytesPerFrame();
 					}
 
 					// If we've sent enough blocks, start playback
 					if(!started && (getFormat().convertFramesToMs((int)sentFrames) >
-						blockTime+PLAYLATENCYMS || block==null))
+						blockTime+PLAYLATENCYMS || bytes==-1))
 					{
 						started = true;
 						JavaSoundPlaybackDevice.this.start();
@@ -190,7 +191,7 @@ class JavaSoundPlaybackDevice extends PlaybackDevice
 
 					// If block is last one, wait for end of playback then stop and end
 					// this thread
-					if(block==null)
+					if(bytes==-1)
 					{
 						playbackLine.drain();
 						JavaSoundPlaybackDevice.this.stop();
@@ -265,7 +266,7 @@ class JavaSoundPlaybackDevice extends PlaybackDevice
 		}
 		if(currentPlayer!=null)
 		{
-			if(currentPlayer==Thread.currentThread())
+			if(currentPlayer.thread==Thread.currentThread())
 			{
 				throw new IllegalStateException(
 					"Cannot call waitForEnd from within player thread!");
@@ -240,6 +240,7 @@ public class MacPlaybackDevice extends PlaybackDevice
 				int latencyBytes = ((sampleRate * (stereo?4:2)) * MACLATENCY) / 1000;
 
 				boolean started=false;
+				byte[] block=new byte[getFormat().getPlaybackBlockSize()];
 
 				while(true)
 				{
@@ -273,12 +274,12 @@ public class MacPlaybackDevice extends PlaybackDevice
 					}
 
 					// Get block from handler
-					byte[] block=h.playbackBlock();
+					int bytes=h.playbackBlock(block);
 
 					// Add block to buffer
-					if(block!=null)
+					if(bytes>0)
 					{
-						add(block,block.length);
+						add(block,bytes);
 					}
 
 					// If we've sent enough blocks, start playback
@@ -294,7 +295,7 @@ public class MacPlaybackDevice extends PlaybackDevice
 
 					// If block is last one, wait for end of playback then stop and end
 					// this thread
-					if(block==null)
+					if(bytes==-1)
 					{
 						drain();
 						MacPlaybackDevice.this.stop();
@@ -110,7 +110,7 @@ public class MacRecordingDevice extends RecordingDevice
 		RecordingThread(RecordingDevice.Handler h)
 		{
 			super("Audio recording thread",MacRecordingDevice.this);
-			setPriority(MIN_PRIORITY);
+			setPriority(Thread.MIN_PRIORITY);
 			this.h=h;
 			start();
 		}
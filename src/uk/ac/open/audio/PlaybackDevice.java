@@ -20,7 +20,7 @@ If not, see <http://www.gnu.org/licenses/>.
 */
 package uk.ac.open.audio;
 
-import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.*;
 
 /** Base class for simply playback device */
 public abstract class PlaybackDevice
@@ -30,6 +30,10 @@ public abstract class PlaybackDevice
 	{
 		/** 16 kHz mono little-endian */
 		MONO_16KHZ(new AudioFormat(16000.0f,16,1,true,false)),
+		/** 22.05 kHz mono little-endian */
+		MONO_22KHZ(new AudioFormat(22050.0f,16,1,true,false)),
+		/** 22.05 kHz stereo little-endian */
+		STEREO_22KHZ(new AudioFormat(22050.0f,16,2,true,false)),
 		/** 44.1 kHz mono little-endian */
 		MONO_44KHZ(new AudioFormat(44100.0f,16,1,true,false)),
 		/** 44.1 kHz stereo little-endian */
@@ -42,6 +46,23 @@ public abstract class PlaybackDevice
 			this.audio=audio;
 		}
 
+		/**
+		 * @param sampleRate Sample rate in Hz
+		 * @param stereo True for stereo
+		 * @return Matching format, or null if there isn't one
+		 */
+		public static Format find(int sampleRate,boolean stereo)
+		{
+			for(Format format : values())
+			{
+				if(format.getSampleRate()==sampleRate && format.isStereo()==stereo)
+				{
+					return format;
+				}
+			}
+			return null;
+		}
+
 		/** @return JavaSound format object */
 		public AudioFormat getAudioFormat()
 		{
@@ -80,6 +101,15 @@ public abstract class PlaybackDevice
 				audio.getSampleSizeInBits()) / 16);
 		}
 
+		/**
+		 * @return Size in bytes of the buffer passed to
+		 *   {@link Handler#playbackBlock(byte[])} (about 40ms of audio)
+		 */
+		public int getPlaybackBlockSize()
+		{
+			return (getSampleRate()/25)*getBytesPerFrame();
+		}
+
 		/** @return Number of bytes per frame */
 		public int getBytesPerFrame()
 		{
@@ -105,10 +135,15 @@ public abstract class PlaybackDevice
 	{
 		/**
 		 * Called when a new data block is required because the sound system is
-		 * about to run out.
-		 * @return Full data buffer, or null if playback has reached the end.
+		 * about to run out. The buffer belongs to the device and is reused for
+		 * every call, so data must be copied into it (any that doesn't fit can
+		 * be kept for the next call).
+		 * @param buffer Buffer to fill from the start; its size is given by
+		 *   {@link Format#getPlaybackBlockSize()}
+		 * @return Number of bytes placed in buffer, or -1 if playback has
+		 *   reached the end
 		 */
-		public byte[] playbackBlock();
+		public int playbackBlock(byte[] buffer);
 
 		/**
 		 * Called when playback stops because the system ran out of blocks.
@@ -207,6 +242,39 @@ public abstract class PlaybackDevice
 	/** @return True if player is currently playing */
 	public abstract boolean isPlaying();
 
+	/**
+	 * Chooses the format to open a device with, given the format that audio
+	 * is in. The audio's own format is used if the device accepts it, so that
+	 * it doesn't need converting; otherwise 44.1 kHz stereo is used.
+	 * @param preferred Format of audio
+	 * @param forceCrossPlatform True if the Java Sound version should always
+	 *   be used, even if there's a native one
+	 * @return Format to use
+	 */
+	public static Format getSupportedFormat(Format preferred,
+		boolean forceCrossPlatform)
+	{
+		// Mac playback converts to the device rate itself
+		if(RecordingDevice.usingMacLibrary() && !forceCrossPlatform)
+		{
+			return preferred;
+		}
+		try
+		{
+			if(AudioSystem.isLineSupported(new DataLine.Info(
+				SourceDataLine.class,preferred.getAudioFormat())))
+			{
+				return preferred;
+			}
+		}
+		catch(Exception e)
+		{
+			System.err.println("[uk.ac.open.audio.PlaybackDevice] " +
+				"Error checking format support: "+e);
+		}
+		return Format.STEREO_44KHZ;
+	}
+
 	/**
 	 * @param format Audio format
 	 * @param forceCrossPlatform True if the Java Sound version should always
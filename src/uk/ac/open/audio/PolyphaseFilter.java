@@ -0,0 +1,159 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio;
+
+import java.util.*;
+
+/**
+ * Coefficient tables for polyphase FIR resampling between two rates. The
+ * rates are reduced to a ratio L:M (e.g. 16000 to 44100 is 160:441); there
+ * is one set of coefficients for each of the L possible output phases, as
+ * 14-bit fixed point. Tables are cached, so each ratio is only calculated
+ * once. A filter with no taps requested does linear interpolation between
+ * the two nearest samples.
+ */
+class PolyphaseFilter
+{
+	/** Fixed-point scale of coefficients */
+	final static int SHIFT=14;
+
+	/** Output phases (upsampling factor L) */
+	final int phases;
+	/** Input samples advanced per output sample (downsampling factor M) */
+	final int step;
+	/** Number of taps in each phase */
+	final int taps;
+	/**
+	 * Coefficients for all phases in one array, phase by phase (so phase p
+	 * starts at p*taps); tap 0 applies to sample (index-taps/2+1)
+	 */
+	final int[] coefficients;
+
+	private final static Map<String,PolyphaseFilter> cache=
+		new HashMap<String,PolyphaseFilter>();
+
+	/**
+	 * @param inFrequency Input frequency
+	 * @param outFrequency Output frequency
+	 * @param halfTaps Taps each side of the output position at full bandwidth,
+	 *   or 0 for linear interpolation
+	 * @param cutoff Passband edge as a proportion of the lower Nyquist rate
+	 * @return Filter (may be shared)
+	 */
+	static synchronized PolyphaseFilter get(int inFrequency,int outFrequency,
+		int halfTaps,double cutoff)
+	{
+		String key=inFrequency+":"+outFrequency+":"+halfTaps+":"+cutoff;
+		PolyphaseFilter filter=cache.get(key);
+		if(filter==null)
+		{
+			filter=new PolyphaseFilter(inFrequency,outFrequency,halfTaps,cutoff);
+			cache.put(key,filter);
+		}
+		return filter;
+	}
+
+	private PolyphaseFilter(int inFrequency,int outFrequency,int halfTaps,
+		double cutoff)
+	{
+		int divisor=gcd(inFrequency,outFrequency);
+		phases=outFrequency/divisor;
+		step=inFrequency/divisor;
+
+		if(halfTaps==0)
+		{
+			taps=2;
+			coefficients=new int[phases*taps];
+			for(int phase=0;phase<phases;phase++)
+			{
+				coefficients[phase*2+1]=(int)Math.round(
+					(double)phase/phases*(1<<SHIFT));
+				coefficients[phase*2]=(1<<SHIFT)-coefficients[phase*2+1];
+			}
+			return;
+		}
+
+		// When downsampling, the filter is wider to cut at the output Nyquist
+		// (rounded, so a small reduction such as 48 to 44.1 kHz keeps its size)
+		double bandwidth=Math.min(1.0,(double)outFrequency/inFrequency)*cutoff;
+		int half=(int)Math.round(halfTaps/Math.min(1.0,
+			(double)outFrequency/inFrequency));
+		taps=half*2;
+
+		coefficients=new int[phases*taps];
+		double[] values=new double[taps];
+		for(int phase=0;phase<phases;phase++)
+		{
+			// Distance from output position to each input sample
+			double fraction=(double)phase/phases,sum=0;
+			for(int tap=0;tap<taps;tap++)
+			{
+				double x=(tap-half+1)-fraction;
+				double window=blackman(x/(half+1));
+				values[tap]=bandwidth*sinc(bandwidth*x)*window;
+				sum+=values[tap];
+			}
+
+			// Normalise so each phase has exactly unity gain at DC
+			int total=0,start=phase*taps,centre=start+half-1;
+			for(int tap=0;tap<taps;tap++)
+			{
+				coefficients[start+tap]=(int)Math.round(values[tap]/sum*(1<<SHIFT));
+				total+=coefficients[start+tap];
+			}
+			coefficients[centre]+=(1<<SHIFT)-total;
+		}
+	}
+
+	private static double sinc(double x)
+	{
+		if(x==0)
+		{
+			return 1.0;
+		}
+		return Math.sin(Math.PI*x)/(Math.PI*x);
+	}
+
+	/**
+	 * @param x Position from -1 to 1
+	 * @return Blackman window value
+	 */
+	private static double blackman(double x)
+	{
+		if(x<=-1 || x>=1)
+		{
+			return 0;
+		}
+		double angle=Math.PI*(x+1);
+		return 0.42-0.5*Math.cos(angle)+0.08*Math.cos(2*angle);
+	}
+
+	private static int gcd(int a,int b)
+	{
+		while(b!=0)
+		{
+			int t=a%b;
+			a=b;
+			b=t;
+		}
+		return a;
+	}
+}
@@ -0,0 +1,586 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio;
+
+import java.nio.*;
+
+/**
+ * Resamples a continuous stream of 16-bit audio that arrives in chunks of
+ * any size. Unlike AudioUtil.resample, position and history carry over from
+ * one chunk to the next, so there are no discontinuities at chunk boundaries,
+ * and buffers are reused so no memory is allocated once they are big enough.
+ * <p>
+ * Resampling uses a polyphase filter with precomputed fixed-point
+ * coefficients for the exact rate ratio, so positions never drift and the
+ * inner loop is integer-only. The FIR qualities use a windowed-sinc filter,
+ * which removes aliasing and imaging; LINEAR interpolates between the two
+ * nearest samples. Output is delayed by half the filter length; the last
+ * few samples of a stream remain in the filter.
+ * <p>
+ * Each input position is visited once, and all the outputs that fall before
+ * the next input sample are produced from it, so stepping through the
+ * phases needs no division. STANDARD is the default; its 8-tap filter has
+ * an unrolled inner loop, so it costs about the same as the simple
+ * interpolation in AudioUtil.resample that it replaced. LINEAR is cheaper
+ * still, but aliases.
+ */
+public class Resampler
+{
+	/** Resampling quality. */
+	public enum Quality
+	{
+		/** Linear interpolation; cheapest, but aliases */
+		LINEAR(0,0),
+		/** 8-tap FIR (at full bandwidth) with passband to 85% of Nyquist */
+		STANDARD(4,0.85),
+		/** 48-tap FIR (at full bandwidth) with passband to 95% of Nyquist */
+		HIGH(24,0.95);
+
+		private final int halfTaps;
+		private final double cutoff;
+
+		Quality(int halfTaps,double cutoff)
+		{
+			this.halfTaps=halfTaps;
+			this.cutoff=cutoff;
+		}
+	}
+
+	/** Quality used when none is specified */
+	private final static Quality DEFAULTQUALITY=Quality.STANDARD;
+
+	private final int channels;
+
+	/** Coefficients, or null if frequencies are the same */
+	private final PolyphaseFilter filter;
+
+	/** Output buffer, reused between calls */
+	private short[] output=new short[0];
+	/** Little-endian view of the last byte target, reused while it's the same */
+	private ByteBuffer targetView;
+
+	/**
+	 * Input buffer: interleaved samples still needed, starting with history
+	 * from previous chunks
+	 */
+	private short[] buffer;
+	/** Number of shorts used in buffer */
+	private int bufferLength;
+	/** Sample in buffer at or just before the next output position */
+	private int index;
+	/** Phase of next output position after index, 0 to filter.phases-1 */
+	private int phase;
+
+	/**
+	 * Creates a resampler with the default quality.
+	 * @param stereo True if data is interleaved stereo, false for mono
+	 * @param inFrequency Input sampling frequency
+	 * @param outFrequency Output sampling frequency
+	 * @throws IllegalArgumentException If either frequency is not positive
+	 */
+	public Resampler(boolean stereo,int inFrequency,int outFrequency)
+		throws IllegalArgumentException
+	{
+		this(stereo,inFrequency,outFrequency,DEFAULTQUALITY);
+	}
+
+	/**
+	 * @param stereo True if data is interleaved stereo, false for mono
+	 * @param inFrequency Input sampling frequency
+	 * @param outFrequency Output sampling frequency
+	 * @param quality Resampling quality
+	 * @throws IllegalArgumentException If either frequency is not positive
+	 */
+	public Resampler(boolean stereo,int inFrequency,int outFrequency,
+		Quality quality) throws IllegalArgumentException
+	{
+		if(inFrequency<=0 || outFrequency<=0)
+		{
+			throw new IllegalArgumentException("Invalid frequency");
+		}
+		this.channels=stereo ? 2 : 1;
+		if(inFrequency!=outFrequency)
+		{
+			filter=PolyphaseFilter.get(inFrequency,outFrequency,quality.halfTaps,
+				quality.cutoff);
+			buffer=new short[filter.taps*channels];
+		}
+		else
+		{
+			filter=null;
+		}
+		reset();
+	}
+
+	/**
+	 * Forgets all history, ready to start a new stream.
+	 */
+	public void reset()
+	{
+		if(filter!=null)
+		{
+			// Start with silence before the stream, centred on the first sample
+			index=filter.taps/2-1;
+			phase=0;
+			bufferLength=index*channels;
+			for(int i=0;i<bufferLength;i++)
+			{
+				buffer[i]=0;
+			}
+		}
+	}
+
+	/**
+	 * @return Output buffer; valid data is the length returned by the last
+	 *   call to resample. The buffer is reused by the next call.
+	 */
+	public short[] getOutput()
+	{
+		return output;
+	}
+
+	/**
+	 * Resamples the next chunk of the stream.
+	 * @param data Input data
+	 * @param offset Offset of chunk within data
+	 * @param length Number of shorts in chunk (must be a whole number of
+	 *   samples for stereo)
+	 * @return Number of shorts placed in the output buffer
+	 * @throws IllegalArgumentException If length isn't a whole number of
+	 *   samples
+	 */
+	public int resample(short[] data,int offset,int length)
+		throws IllegalArgumentException
+	{
+		int maxOutput=getMaxOutput(length);
+		if(output.length<maxOutput)
+		{
+			output=new short[maxOutput];
+		}
+		if(filter==null)
+		{
+			checkLength(length);
+			System.arraycopy(data,offset,output,0,length);
+			return length;
+		}
+		append(data,offset,length);
+		return filter();
+	}
+
+	/**
+	 * Resamples the next chunk of the stream into 16-bit little-endian bytes,
+	 * optionally expanding mono to stereo. The output buffer is overwritten.
+	 * @param data Input data
+	 * @param offset Offset of chunk within data
+	 * @param length Number of shorts in chunk (must be a whole number of
+	 *   samples for stereo)
+	 * @param expandMono True to write each mono sample to both channels
+	 * @param target Array that receives data; must have space for
+	 *   getMaxOutput(length) shorts, doubled if expanding mono
+	 * @param targetOffset Offset within target
+	 * @return Number of bytes written
+	 * @throws IllegalArgumentException If length isn't a whole number of
+	 *   samples
+	 */
+	public int resample(short[] data,int offset,int length,boolean expandMono,
+		byte[] target,int targetOffset) throws IllegalArgumentException
+	{
+		if(targetView==null || targetView.array()!=target)
+		{
+			targetView=ByteBuffer.wrap(target).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		if(filter==null)
+		{
+			checkLength(length);
+			return AudioUtil.shortToByte(data,offset,length,expandMono,targetView,
+				targetOffset);
+		}
+		int count=resample(data,offset,length);
+		return AudioUtil.shortToByte(output,0,count,expandMono && channels==1,
+			targetView,targetOffset);
+	}
+
+	/**
+	 * @param length Number of shorts in next input chunk
+	 * @return Maximum number of shorts that chunk can produce
+	 */
+	public int getMaxOutput(int length)
+	{
+		if(filter==null)
+		{
+			return length;
+		}
+		long available=(bufferLength+length)/channels;
+		return (int)((available*filter.phases)/filter.step+2)*channels;
+	}
+
+	/**
+	 * @param length Number of shorts
+	 * @throws IllegalArgumentException If length isn't a whole number of
+	 *   samples
+	 */
+	private void checkLength(int length) throws IllegalArgumentException
+	{
+		if(length%channels!=0)
+		{
+			throw new IllegalArgumentException("Partial stereo sample");
+		}
+	}
+
+	/**
+	 * Adds a chunk to the samples kept from last time.
+	 * @param data Input data
+	 * @param offset Offset of chunk within data
+	 * @param length Number of shorts in chunk
+	 * @throws IllegalArgumentException If length isn't a whole number of
+	 *   samples
+	 */
+	private void append(short[] data,int offset,int length)
+		throws IllegalArgumentException
+	{
+		checkLength(length);
+		if(bufferLength+length>buffer.length)
+		{
+			short[] newBuffer=new short[bufferLength+length];
+			System.arraycopy(buffer,0,newBuffer,0,bufferLength);
+			buffer=newBuffer;
+		}
+		System.arraycopy(data,offset,buffer,bufferLength,length);
+		bufferLength+=length;
+	}
+
+	/**
+	 * Filters as much of the buffer as possible into the output buffer, then
+	 * discards samples that are no longer needed.
+	 * @return Number of shorts output
+	 */
+	private int filter()
+	{
+		int available=bufferLength/channels;
+		int result=channels==1 ? filterMono(available) : filterStereo(available);
+
+		int discard=Math.min(index-filter.taps/2+1,available);
+		System.arraycopy(buffer,discard*channels,buffer,0,
+			bufferLength-discard*channels);
+		bufferLength-=discard*channels;
+		index-=discard;
+		return result;
+	}
+
+	/**
+	 * Filters mono data in the buffer as far as possible.
+	 * @param available Number of samples in buffer
+	 * @return Number of shorts output
+	 */
+	private int filterMono(int available)
+	{
+		if(filter.taps==2)
+		{
+			return linearMono(available);
+		}
+		if(filter.taps==8)
+		{
+			return fir8Mono(available);
+		}
+		short[] buffer=this.buffer,output=this.output;
+		int[] coefficients=filter.coefficients;
+		int taps=filter.taps,half=taps/2,phases=filter.phases,step=filter.step;
+		int outPos=0,index=this.index,phase=this.phase;
+		while(index+half<available)
+		{
+			// Every output before the next input sample uses the same samples
+			int pos=index-half+1;
+			while(phase<phases)
+			{
+				int c=phase*taps,total=1<<(PolyphaseFilter.SHIFT-1);
+				for(int tap=0;tap<taps;tap++)
+				{
+					total+=buffer[pos+tap]*coefficients[c+tap];
+				}
+				short value=clip(total>>PolyphaseFilter.SHIFT);
+				output[outPos++]=value;
+				phase+=step;
+			}
+			do
+			{
+				phase-=phases;
+				index++;
+			}
+			while(phase>=phases);
+		}
+		this.index=index;
+		this.phase=phase;
+		return outPos;
+	}
+
+	/**
+	 * Filters mono data in the buffer as far as possible with an 8-tap
+	 * filter. Same as filterMono, but the taps are unrolled and the samples
+	 * are held in locals, which slide along by one sample per input
+	 * position, so each output only needs to read its coefficients.
+	 * @param available Number of samples in buffer
+	 * @return Number of shorts output
+	 */
+	private int fir8Mono(int available)
+	{
+		short[] buffer=this.buffer,output=this.output;
+		int[] coefficients=filter.coefficients;
+		int phases=filter.phases,step=filter.step;
+		int outPos=0,index=this.index,phase=this.phase;
+		int s0=0,s1=0,s2=0,s3=0,s4=0,s5=0,s6=0,s7=0,loaded=-2;
+		while(index+4<available)
+		{
+			if(index==loaded+1)
+			{
+				// Usually the window only moves on by one sample
+				s0=s1;
+				s1=s2;
+				s2=s3;
+				s3=s4;
+				s4=s5;
+				s5=s6;
+				s6=s7;
+				s7=buffer[index+4];
+			}
+			else
+			{
+				int pos=index-3;
+				s0=buffer[pos];
+				s1=buffer[pos+1];
+				s2=buffer[pos+2];
+				s3=buffer[pos+3];
+				s4=buffer[pos+4];
+				s5=buffer[pos+5];
+				s6=buffer[pos+6];
+				s7=buffer[pos+7];
+			}
+			loaded=index;
+			while(phase<phases)
+			{
+				int c=phase*8;
+				short value=clip((s0*coefficients[c]+s1*coefficients[c+1]+
+					s2*coefficients[c+2]+s3*coefficients[c+3]+
+					s4*coefficients[c+4]+s5*coefficients[c+5]+
+					s6*coefficients[c+6]+s7*coefficients[c+7]+
+					(1<<(PolyphaseFilter.SHIFT-1)))>>PolyphaseFilter.SHIFT);
+				output[outPos++]=value;
+				phase+=step;
+			}
+			do
+			{
+				phase-=phases;
+				index++;
+			}
+			while(phase>=phases);
+		}
+		this.index=index;
+		this.phase=phase;
+		return outPos;
+	}
+
+	/**
+	 * Interpolates mono data in the buffer as far as possible. Same as
+	 * filterMono, but with the two samples held in locals.
+	 * @param available Number of samples in buffer
+	 * @return Number of shorts output
+	 */
+	private int linearMono(int available)
+	{
+		short[] buffer=this.buffer,output=this.output;
+		int[] coefficients=filter.coefficients;
+		int phases=filter.phases,step=filter.step;
+		int outPos=0,index=this.index,phase=this.phase;
+		while(index+1<available)
+		{
+			int before=buffer[index],after=buffer[index+1];
+			while(phase<phases)
+			{
+				// Weights sum to one, so the result can't overflow
+				short value=(short)((before*coefficients[phase*2]+
+					after*coefficients[phase*2+1]+(1<<(PolyphaseFilter.SHIFT-1)))>>
+					PolyphaseFilter.SHIFT);
+				output[outPos++]=value;
+				phase+=step;
+			}
+			do
+			{
+				phase-=phases;
+				index++;
+			}
+			while(phase>=phases);
+		}
+		this.index=index;
+		this.phase=phase;
+		return outPos;
+	}
+
+	/**
+	 * Filters interleaved stereo data in the buffer as far as possible.
+	 * @param available Number of samples (per channel) in buffer
+	 * @return Number of shorts output
+	 */
+	private int filterStereo(int available)
+	{
+		if(filter.taps==2)
+		{
+			return linearStereo(available);
+		}
+		if(filter.taps==8)
+		{
+			return fir8Stereo(available);
+		}
+		short[] buffer=this.buffer,output=this.output;
+		int[] coefficients=filter.coefficients;
+		int taps=filter.taps,half=taps/2,phases=filter.phases,step=filter.step;
+		int outPos=0,index=this.index,phase=this.phase;
+		while(index+half<available)
+		{
+			int start=(index-half+1)*2;
+			while(phase<phases)
+			{
+				int c=phase*taps,pos=start,
+					left=1<<(PolyphaseFilter.SHIFT-1),right=left;
+				for(int tap=0;tap<taps;tap++,pos+=2)
+				{
+					int coefficient=coefficients[c+tap];
+					left+=buffer[pos]*coefficient;
+					right+=buffer[pos+1]*coefficient;
+				}
+				short leftValue=clip(left>>PolyphaseFilter.SHIFT),
+					rightValue=clip(right>>PolyphaseFilter.SHIFT);
+				output[outPos++]=leftValue;
+				output[outPos++]=rightValue;
+				phase+=step;
+			}
+			do
+			{
+				phase-=phases;
+				index++;
+			}
+			while(phase>=phases);
+		}
+		this.index=index;
+		this.phase=phase;
+		return outPos;
+	}
+
+	/**
+	 * Filters interleaved stereo data in the buffer as far as possible with
+	 * an 8-tap filter. The samples are loaded into locals once per input
+	 * position (sliding them as fir8Mono does is slower with two channels).
+	 * @param available Number of samples (per channel) in buffer
+	 * @return Number of shorts output
+	 */
+	private int fir8Stereo(int available)
+	{
+		short[] buffer=this.buffer,output=this.output;
+		int[] coefficients=filter.coefficients;
+		int phases=filter.phases,step=filter.step;
+		int outPos=0,index=this.index,phase=this.phase;
+		while(index+4<available)
+		{
+			int pos=(index-3)*2;
+			int l0=buffer[pos],r0=buffer[pos+1],l1=buffer[pos+2],r1=buffer[pos+3],
+				l2=buffer[pos+4],r2=buffer[pos+5],l3=buffer[pos+6],r3=buffer[pos+7],
+				l4=buffer[pos+8],r4=buffer[pos+9],l5=buffer[pos+10],r5=buffer[pos+11],
+				l6=buffer[pos+12],r6=buffer[pos+13],l7=buffer[pos+14],
+				r7=buffer[pos+15];
+			while(phase<phases)
+			{
+				int c=phase*8;
+				int c0=coefficients[c],c1=coefficients[c+1],c2=coefficients[c+2],
+					c3=coefficients[c+3],c4=coefficients[c+4],c5=coefficients[c+5],
+					c6=coefficients[c+6],c7=coefficients[c+7];
+				short leftValue=clip((l0*c0+l1*c1+l2*c2+l3*c3+l4*c4+l5*c5+l6*c6+
+					l7*c7+(1<<(PolyphaseFilter.SHIFT-1)))>>PolyphaseFilter.SHIFT),
+					rightValue=clip((r0*c0+r1*c1+r2*c2+r3*c3+r4*c4+r5*c5+r6*c6+
+					r7*c7+(1<<(PolyphaseFilter.SHIFT-1)))>>PolyphaseFilter.SHIFT);
+				output[outPos++]=leftValue;
+				output[outPos++]=rightValue;
+				phase+=step;
+			}
+			do
+			{
+				phase-=phases;
+				index++;
+			}
+			while(phase>=phases);
+		}
+		this.index=index;
+		this.phase=phase;
+		return outPos;
+	}
+
+	/**
+	 * Interpolates interleaved stereo data in the buffer as far as possible.
+	 * @param available Number of samples (per channel) in buffer
+	 * @return Number of shorts output
+	 */
+	private int linearStereo(int available)
+	{
+		short[] buffer=this.buffer,output=this.output;
+		int[] coefficients=filter.coefficients;
+		int phases=filter.phases,step=filter.step;
+		int outPos=0,index=this.index,phase=this.phase;
+		while(index+1<available)
+		{
+			int leftBefore=buffer[index*2],rightBefore=buffer[index*2+1],
+				leftAfter=buffer[index*2+2],rightAfter=buffer[index*2+3];
+			while(phase<phases)
+			{
+				int before=coefficients[phase*2],after=coefficients[phase*2+1];
+				short leftValue=(short)((leftBefore*before+leftAfter*after+
+					(1<<(PolyphaseFilter.SHIFT-1)))>>PolyphaseFilter.SHIFT),
+					rightValue=(short)((rightBefore*before+rightAfter*after+
+					(1<<(PolyphaseFilter.SHIFT-1)))>>PolyphaseFilter.SHIFT);
+				output[outPos++]=leftValue;
+				output[outPos++]=rightValue;
+				phase+=step;
+			}
+			do
+			{
+				phase-=phases;
+				index++;
+			}
+			while(phase>=phases);
+		}
+		this.index=index;
+		this.phase=phase;
+		return outPos;
+	}
+
+	/**
+	 * @param value Value
+	 * @return Value clipped to 16-bit range
+	 */
+	private static short clip(int value)
+	{
+		if(value>Short.MAX_VALUE)
+		{
+			return Short.MAX_VALUE;
+		}
+		if(value<Short.MIN_VALUE)
+		{
+			return Short.MIN_VALUE;
+		}
+		return (short)value;
+	}
+}
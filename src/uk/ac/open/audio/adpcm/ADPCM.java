@@ -45,4 +45,46 @@ abstract class ADPCM
 	  5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
 	  15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
 	};
+
+	/** Shift applied to the value change within a DECODE entry */
+	final static int DECODE_DELTASHIFT=11;
+
+	/** Mask for the next table position within a DECODE entry */
+	final static int DECODE_NEXTMASK=(1<<DECODE_DELTASHIFT)-1;
+
+	/**
+	 * Decoding table, indexed by step index * 16 + nibble. Each entry holds the
+	 * signed change in value (shifted left by DECODE_DELTASHIFT) and, in the
+	 * low bits, the table position for the next step index (ie next step
+	 * index * 16, already clamped).
+	 */
+	final static int[] DECODE=new int[STEPSIZE.length*16];
+	static
+	{
+		for(int stepIndex=0;stepIndex<STEPSIZE.length;stepIndex++)
+		{
+			for(int nibble=0;nibble<16;nibble++)
+			{
+				int step=STEPSIZE[stepIndex];
+				int deltaMagnitude=nibble&0x07;
+
+				// Same calculation as the encoder and basic decoder
+				int valueAdjust=0;
+				if((deltaMagnitude&4)!=0) valueAdjust+=step;
+				step=step>>1;
+				if((deltaMagnitude&2)!=0) valueAdjust+=step;
+				step=step>>1;
+				if((deltaMagnitude&1)!=0) valueAdjust+=step;
+				step=step>>1;
+				valueAdjust+=step;
+				if(deltaMagnitude!=nibble) valueAdjust=-valueAdjust;
+
+				int next=stepIndex+STEPINCREMENT_MAGNITUDE[deltaMagnitude];
+				if(next<0) next=0;
+				else if(next>=STEPSIZE.length) next=STEPSIZE.length-1;
+
+				DECODE[stepIndex*16+nibble]=(valueAdjust<<DECODE_DELTASHIFT) | (next*16);
+			}
+		}
+	}
 }
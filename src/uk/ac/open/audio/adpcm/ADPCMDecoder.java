@@ -21,15 +21,19 @@ If not, see <http://www.gnu.org/licenses/>.
 package uk.ac.open.audio.adpcm;
 
 import java.io.*;
+import java.nio.*;
 
 import uk.ac.open.audio.*;
-import uk.ac.open.audio.streaming.StreamableDecoder;
+import uk.ac.open.audio.streaming.BufferedDecoder;
 
 /**
  * ADPCM decoder.
  */
-public class ADPCMDecoder implements StreamableDecoder
+public class ADPCMDecoder extends BufferedDecoder
 {
+	/** Length of wav header in bytes */
+	private final static int HEADERBYTES=60;
+
 	/**
 	 * Decodes a block (ADPCMEncoder.BLOCKBYTES) of ADPCM data.
 	 * @param adpcm Block of data
@@ -39,11 +43,87 @@ public class ADPCMDecoder implements StreamableDecoder
 	public static byte[] decodeBlock(byte[] adpcm,int offset)
 	{
 		byte[] data=new byte[ADPCMEncoder.BLOCKSAMPLES*2];
-		int outPos=0,inPos=offset;
+		decodeBlock(adpcm,offset,data,0);
+		return data;
+	}
+
+	/**
+	 * Decodes a block (ADPCMEncoder.BLOCKBYTES) of ADPCM data into an existing
+	 * array. Does not allocate any memory.
+	 * @param adpcm Block of data
+	 * @param offset Offset in block to begin decoding at
+	 * @param data Array that receives 16-bit 16 kHz decoded audio
+	 *   (ADPCMEncoder.BLOCKSAMPLES*2 bytes)
+	 * @param dataOffset Offset within that array
+	 */
+	public static void decodeBlock(byte[] adpcm,int offset,byte[] data,
+		int dataOffset)
+	{
+		decodeBlockTable(adpcm,offset,data,dataOffset);
+	}
+
+	/**
+	 * Table-driven decoder. Looks up the value change and next step index for
+	 * each nibble, handling a whole byte (two samples) per loop.
+	 * @param adpcm Block of data
+	 * @param offset Offset in block to begin decoding at
+	 * @param data Array that receives decoded audio
+	 * @param dataOffset Offset within that array
+	 */
+	private static void decodeBlockTable(byte[] adpcm,int offset,byte[] data,
+		int dataOffset)
+	{
+		int outPos=dataOffset,inPos=offset;
+
+		data[outPos++]=adpcm[inPos++];
+		data[outPos++]=adpcm[inPos++];
+		int lastOutput=(int)data[dataOffset]&0xff | (int)data[dataOffset+1]<<8;
+
+		int tablePos=(int)adpcm[inPos++]*16;
+		inPos++;
+
+		int[] table=ADPCM.DECODE;
+		for(int end=offset+ADPCMEncoder.BLOCKBYTES;inPos<end;inPos++)
+		{
+			int both=adpcm[inPos];
+
+			// Low nibble first
+			int entry=table[tablePos+(both&0xf)];
+			lastOutput+=entry>>ADPCM.DECODE_DELTASHIFT;
+			if(lastOutput>0x7fff) lastOutput=0x7fff;
+			else if(lastOutput<-0x8000) lastOutput=-0x8000;
+			tablePos=entry&ADPCM.DECODE_NEXTMASK;
+			data[outPos++]=(byte)lastOutput;
+			data[outPos++]=(byte)(lastOutput>>8);
+
+			// Then high nibble
+			entry=table[tablePos+((both>>4)&0xf)];
+			lastOutput+=entry>>ADPCM.DECODE_DELTASHIFT;
+			if(lastOutput>0x7fff) lastOutput=0x7fff;
+			else if(lastOutput<-0x8000) lastOutput=-0x8000;
+			tablePos=entry&ADPCM.DECODE_NEXTMASK;
+			data[outPos++]=(byte)lastOutput;
+			data[outPos++]=(byte)(lastOutput>>8);
+		}
+	}
+
+	/**
+	 * Basic decoder, which calculates everything for each nibble. Gives the
+	 * same output as the table-driven decoder; it is a direct implementation
+	 * of the algorithm, kept as a reference for tests.
+	 * @param adpcm Block of data
+	 * @param offset Offset in block to begin decoding at
+	 * @param data Array that receives decoded audio
+	 * @param dataOffset Offset within that array
+	 */
+	static void decodeBlockBasic(byte[] adpcm,int offset,byte[] data,
+		int dataOffset)
+	{
+		int outPos=dataOffset,inPos=offset;
 
 		data[outPos++]=adpcm[inPos++];
 		data[outPos++]=adpcm[inPos++];
-		int lastOutput=(int)data[0]&0xff | (int)data[1]<<8;
+		int lastOutput=(int)data[dataOffset]&0xff | (int)data[dataOffset+1]<<8;
 
 		int stepIndex=(int)adpcm[inPos++];
 		inPos++;
@@ -110,25 +190,95 @@ public class ADPCMDecoder implements StreamableDecoder
 			data[outPos++]=(byte)(lastOutput&0xff);
 			data[outPos++]=(byte)((lastOutput>>8)&0xff);
 		}
+	}
 
-		return data;
+	/**
+	 * Decodes a complete ADPCM wav file, decoding blocks in parallel.
+	 * @param wav Data of wav file (as written by ADPCMEncoder)
+	 * @param threads Number of threads to use, or 0 for one per processor
+	 * @return 16-bit 16 kHz mono decoded audio
+	 * @throws AudioException If the file is not in the expected format
+	 */
+	public static byte[] decodeWav(final byte[] wav,int threads)
+		throws AudioException
+	{
+		if(wav.length<HEADERBYTES || wav[20]!=17)
+		{
+			throw new AudioException("Does not appear to be ADPCM WAV file");
+		}
+		int blocks=(wav.length-HEADERBYTES)/ADPCMEncoder.BLOCKBYTES;
+		if(blocks*ADPCMEncoder.BLOCKBYTES!=wav.length-HEADERBYTES)
+		{
+			throw new AudioException("Unexpected EOF in ADPCM decoding");
+		}
+
+		final byte[] decoded=new byte[blocks*ADPCMEncoder.BLOCKSAMPLES*2];
+		ParallelBlocks.run(blocks, threads, new ParallelBlocks.Range()
+		{
+			public void process(int start, int end)
+			{
+				for(int i=start;i<end;i++)
+				{
+					decodeBlock(wav,HEADERBYTES+i*ADPCMEncoder.BLOCKBYTES,
+						decoded,i*ADPCMEncoder.BLOCKSAMPLES*2);
+				}
+			}
+		});
+
+		// Drop padding at end of last block, using sample count from 'fact'
+		// (0 means unknown, as written at the start of a live upload)
+		int samples=(wav[48]&0xff) | (wav[49]&0xff)<<8 | (wav[50]&0xff)<<16 |
+			(wav[51]&0xff)<<24;
+		if(samples>0 && samples<decoded.length/2)
+		{
+			byte[] trimmed=new byte[samples*2];
+			System.arraycopy(decoded,0,trimmed,0,trimmed.length);
+			return trimmed;
+		}
+		return decoded;
 	}
 
 	private InputStream stream;
 	private byte[] header=null;
+	private byte[] input=new byte[ADPCMEncoder.BLOCKBYTES],
+		decoded=new byte[ADPCMEncoder.BLOCKSAMPLES*2],converted=null;
+	/** Little-endian view of decoded, for converting without allocating */
+	private ByteBuffer decodedView=
+		ByteBuffer.wrap(decoded).order(ByteOrder.LITTLE_ENDIAN);
+	private int frameLength;
+	private short[] samples=new short[ADPCMEncoder.BLOCKSAMPLES];
+	private PlaybackDevice.Format format=PlaybackDevice.Format.STEREO_44KHZ;
+	private Resampler resampler=new Resampler(false,16000,44100);
 
 	public void init(InputStream is) throws AudioException
 	{
 		this.stream=is;
+		resampler.reset();
+	}
+
+	public PlaybackDevice.Format getNativeFormat()
+	{
+		return PlaybackDevice.Format.MONO_16KHZ;
+	}
+
+	public void setOutputFormat(PlaybackDevice.Format format)
+	{
+		this.format=format;
+		resampler=new Resampler(false,16000,format.getSampleRate());
 	}
 
-	public byte[] decode() throws AudioException
+	protected int getFrameLength()
+	{
+		return frameLength;
+	}
+
+	protected byte[] decodeFrame(byte[] previous) throws AudioException
 	{
 		try
 		{
 			if(header==null)
 			{
-				header=new byte[60];
+				header=new byte[HEADERBYTES];
 				int headerPos=0;
 				do
 				{
@@ -149,7 +299,6 @@ public class ADPCMDecoder implements StreamableDecoder
 			}
 
 			// Read block of data
-			byte[] input=new byte[ADPCMEncoder.BLOCKBYTES];
 			int pos=0;
 			do
 			{
@@ -170,9 +319,26 @@ public class ADPCMDecoder implements StreamableDecoder
 			}
 			while(pos!=input.length);
 
-			byte[] decoded=decodeBlock(input,0);
-			return AudioUtil.convert(
-				decoded, decoded.length, false, true, 16000, 44100);
+			// No conversion needed if playing at the native rate
+			decodeBlock(input,0,decoded,0);
+			if(format==PlaybackDevice.Format.MONO_16KHZ)
+			{
+				frameLength=decoded.length;
+				return decoded;
+			}
+
+			// Resample continuously across blocks, writing bytes (expanded to
+			// stereo if needed) in the same pass
+			AudioUtil.byteToShort(decodedView,0,decoded.length,false,samples,0);
+			int maxLength=resampler.getMaxOutput(samples.length)*
+				format.getBytesPerFrame();
+			if(converted==null || converted.length<maxLength)
+			{
+				converted=new byte[maxLength];
+			}
+			frameLength=resampler.resample(samples,0,samples.length,
+				format.isStereo(),converted,0);
+			return converted;
 		}
 		catch(IOException e)
 		{
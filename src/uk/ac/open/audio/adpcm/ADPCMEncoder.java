@@ -80,18 +80,63 @@ public class ADPCMEncoder
 		int blocks=writeWavHeader(output, samples);
 
 		// Encode and write all the blocks
+		byte[] encoded=new byte[BLOCKBYTES];
 		int pos=0;
 		for(int i=0;i<blocks;i++)
 		{
 			int size=Math.min(BLOCKSAMPLES*2, allData.length-pos);
-			Block block=encodeBlock(allData,pos,size);
-			output.write(block.getData());
+			encodeBlock(allData,pos,size,encoded,0,null);
+			output.write(encoded);
 			pos+=size;
 		}
 
 		output.close();
 	}
 
+	/**
+	 * Compresses data and writes it to a wav file, encoding blocks in
+	 * parallel. The file is identical to that from
+	 * {@link #encodeToWav(byte[], File)}.
+	 * @param allData Audio data (16kHz 16-bit mono little-endian)
+	 * @param f Target file
+	 * @param threads Number of threads to use, or 0 for one per processor
+	 * @throws IOException
+	 */
+	public static void encodeToWav(byte[] allData,File f,int threads)
+		throws IOException
+	{
+		BufferedOutputStream output=new BufferedOutputStream(new FileOutputStream(f));
+		writeWavHeader(output, allData.length/2);
+		output.write(encode(allData, threads));
+		output.close();
+	}
+
+	/**
+	 * Compresses data into a sequence of blocks, encoding blocks in parallel.
+	 * @param allData Audio data (16kHz 16-bit mono little-endian)
+	 * @param threads Number of threads to use, or 0 for one per processor
+	 * @return Compressed blocks (as they appear in a wav file after the header)
+	 */
+	public static byte[] encode(final byte[] allData,int threads)
+	{
+		int samples=allData.length/2;
+		int blocks=(samples+(BLOCKSAMPLES-1))/BLOCKSAMPLES;
+		final byte[] encoded=new byte[blocks*BLOCKBYTES];
+		ParallelBlocks.run(blocks, threads, new ParallelBlocks.Range()
+		{
+			public void process(int start, int end)
+			{
+				for(int i=start;i<end;i++)
+				{
+					int pos=i*BLOCKSAMPLES*2;
+					int size=Math.min(BLOCKSAMPLES*2, allData.length-pos);
+					encodeBlock(allData,pos,size,encoded,i*BLOCKBYTES,null);
+				}
+			}
+		});
+		return encoded;
+	}
+
 	/**
 	 * Writes a 60-byte WAV file header for this type of file.
 	 * @param output Stream that receives header
@@ -160,6 +205,26 @@ public class ADPCMEncoder
 		private byte[] data;
 		private int maxLevel,minLevel;
 
+		/**
+		 * Creates a block with no data. This can be passed to the non-allocating
+		 * version of encodeBlock to receive levels.
+		 */
+		public Block()
+		{
+		}
+
+		/**
+		 * @param data Compressed data
+		 * @param minLevel Minimum audio level
+		 * @param maxLevel Maximum audio level
+		 */
+		Block(byte[] data,int minLevel,int maxLevel)
+		{
+			this.data=data;
+			this.minLevel=minLevel;
+			this.maxLevel=maxLevel;
+		}
+
 		/** @return Compressed data */
 		public byte[] getData()
 		{
@@ -187,36 +252,43 @@ public class ADPCMEncoder
 	 */
 	public static Block encodeBlock(byte[] data,int offset,int length)
 	{
-		// If length isn't blockSamples, need to pad with zeros
-		if(length<BLOCKSAMPLES*2)
-		{
-			byte[] newData=new byte[BLOCKSAMPLES*2];
-			System.arraycopy(data, offset, newData, 0, length);
-			data=newData;
-			offset=0;
-			length=BLOCKSAMPLES*2;
-		}
-		else if(length>BLOCKSAMPLES*2)
+		Block result=new Block();
+		result.data=new byte[BLOCKBYTES];
+		encodeBlock(data,offset,length,result.data,0,result);
+		return result;
+	}
+
+	/**
+	 * Encodes a block of data in Windows block format into an existing array.
+	 * Does not allocate any memory.
+	 * @param data Array of input data; must be signed 16-bit audio
+	 * @param offset Offset within array
+	 * @param length Length in bytes within array (if not blockSamples
+	 *   long, will be treated as zero-padded)
+	 * @param adpcm Array that receives encoded data (BLOCKBYTES)
+	 * @param adpcmOffset Offset within that array
+	 * @param levels If not null, receives maximum and minimum levels (its data
+	 *   is left alone, so one object can be reused for each block)
+	 */
+	public static void encodeBlock(byte[] data,int offset,int length,
+		byte[] adpcm,int adpcmOffset,Block levels)
+	{
+		if(length>BLOCKSAMPLES*2)
 		{
 			throw new IllegalArgumentException("Cannot encode block larger than "+
 				BLOCKSAMPLES+" samples");
 		}
 
-		Block result=new Block();
-
-		byte[] adpcm=new byte[BLOCKBYTES];
-		result.data=adpcm;
-		int outPos=0;
+		int outPos=adpcmOffset;
 
 	  // Initial sample uncompressed
-		int lastOutput=(int)data[0+offset]&0xff | (int)data[1+offset]<<8;
-		adpcm[outPos++]=data[0+offset];
-		adpcm[outPos++]=data[1+offset];
-		result.maxLevel=lastOutput;
-		result.minLevel=lastOutput;
+		int lastOutput=getSample(data,offset,length,0);
+		adpcm[outPos++]=(byte)lastOutput;
+		adpcm[outPos++]=(byte)(lastOutput>>8);
+		int maxLevel=lastOutput,minLevel=lastOutput;
 
 		// Initial step index - let's find the next sample and pick the closest
-		int nextSample=(int)data[2+offset]&0xff | (int)data[3+offset]<<8;
+		int nextSample=getSample(data,offset,length,2);
 		int initialDifference=Math.abs(nextSample-lastOutput);
 		int stepIndex=0;
 		for(;stepIndex<ADPCM.STEPSIZE.length;stepIndex++)
@@ -230,11 +302,12 @@ public class ADPCMEncoder
 		adpcm[outPos++]=0;
 
 		boolean highNibble=false;
-		for(int i=2;i<length;i+=2)
+		for(int i=2;i<BLOCKSAMPLES*2;i+=2)
 		{
-			int target=(int)data[i+offset]&0xff | (int)data[i+offset+1]<<8;
-			result.maxLevel=Math.max(result.maxLevel,target);
-			result.minLevel=Math.min(result.minLevel,target);
+			int target=i+1<length ? (int)data[i+offset]&0xff | (int)data[i+offset+1]<<8
+				: getSample(data,offset,length,i);
+			maxLevel=Math.max(maxLevel,target);
+			minLevel=Math.min(minLevel,target);
 
 			int difference = target - lastOutput;
 			int step=ADPCM.STEPSIZE[stepIndex];
@@ -296,9 +369,28 @@ public class ADPCMEncoder
 			else if(stepIndex>=ADPCM.STEPSIZE.length) stepIndex=ADPCM.STEPSIZE.length-1;
 		}
 
-		if(outPos!=adpcm.length)
+		if(outPos!=adpcmOffset+BLOCKBYTES)
 			throw new Error("Unexpected buffer length mismatch");
 
-		return result;
+		if(levels!=null)
+		{
+			levels.maxLevel=maxLevel;
+			levels.minLevel=minLevel;
+		}
+	}
+
+	/**
+	 * Reads a sample, treating data beyond the end as zero.
+	 * @param data Array of input data
+	 * @param offset Offset within array
+	 * @param length Length in bytes of valid data
+	 * @param pos Byte position of sample
+	 * @return Sample value
+	 */
+	private static int getSample(byte[] data,int offset,int length,int pos)
+	{
+		int low=pos<length ? (int)data[pos+offset]&0xff : 0;
+		int high=pos+1<length ? (int)data[pos+offset+1] : 0;
+		return low | high<<8;
 	}
 }
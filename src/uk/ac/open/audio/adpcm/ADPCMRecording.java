@@ -21,23 +21,221 @@ If not, see <http://www.gnu.org/licenses/>.
 package uk.ac.open.audio.adpcm;
 
 import java.io.*;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 
 /**
- * Stores all the compressed data blocks recorded for a file.
+ * Stores all the compressed data blocks recorded for a file. Block data is
+ * held in large fixed-size pages and levels in plain arrays, so there are no
+ * objects per block and any block can be found directly.
+ * <p>
+ * Levels are also summarised in a pyramid: level 1 holds the minimum and
+ * maximum of each pair of blocks, level 2 of each four, and so on. This is
+ * kept up to date as blocks are added, and means the levels for any range
+ * can be found by combining a few summaries rather than every block.
+ * <p>
+ * In spill mode, each page is written to a temporary .wav file as soon as it
+ * is full, so only the page currently being filled stays in memory. Saving
+ * then only has to fix the header and rename the file.
  */
 public class ADPCMRecording
 {
-	private LinkedList<ADPCMEncoder.Block> blocks=new LinkedList<ADPCMEncoder.Block>();
+	/** Number of blocks in each page (about 128KB) */
+	private final static int PAGEBLOCKS=256;
+
+	private final static int PAGEBYTES=PAGEBLOCKS*ADPCMEncoder.BLOCKBYTES;
+
+	/** Length of wav header written by ADPCMEncoder */
+	private final static int HEADERBYTES=60;
+
+	private final static int INITIALCAPACITY=16;
+
+	/** Pages of data; null for pages that are in the spill file */
+	private byte[][] pages=new byte[INITIALCAPACITY][];
+	/**
+	 * Level pyramid; [0][n] is the level of block n, [k][n] summarises blocks
+	 * n*2^k to (n+1)*2^k-1
+	 */
+	private short[][] minLevels=new short[1][INITIALCAPACITY*PAGEBLOCKS],
+		maxLevels=new short[1][INITIALCAPACITY*PAGEBLOCKS];
+	private int count;
+
+	private boolean spill;
+	private File spillFile;
+	private RandomAccessFile spillAccess;
+	private FileChannel spillChannel;
+
+	/** Page buffer left over after spilling, for reuse */
+	private byte[] sparePage;
+
+	/** Creates an in-memory recording. */
+	public ADPCMRecording()
+	{
+		this(false);
+	}
+
+	/**
+	 * @param spill True to write full pages to a temporary file instead of
+	 *   keeping them in memory
+	 */
+	public ADPCMRecording(boolean spill)
+	{
+		this.spill=spill;
+	}
 
 	/**
 	 * Adds a block to the end of the recording.
 	 * @param block Block data
 	 */
-	public synchronized void addBlock(ADPCMEncoder.Block block)
+	public void addBlock(ADPCMEncoder.Block block)
+	{
+		addBlock(block.getData(),0,block.getMinLevel(),block.getMaxLevel());
+	}
+
+	/**
+	 * Adds a block to the end of the recording. The data is copied, so the
+	 * caller may reuse its buffer.
+	 * @param data Array containing compressed block data
+	 * @param offset Offset of block (ADPCMEncoder.BLOCKBYTES long) in array
+	 * @param minLevel Minimum audio level in block
+	 * @param maxLevel Maximum audio level in block
+	 */
+	public synchronized void addBlock(byte[] data,int offset,int minLevel,
+		int maxLevel)
 	{
-		blocks.addLast(block);
+		int page=count/PAGEBLOCKS;
+		if(page==pages.length)
+		{
+			byte[][] newPages=new byte[pages.length*2][];
+			System.arraycopy(pages,0,newPages,0,pages.length);
+			pages=newPages;
+			minLevels=growLevels(minLevels);
+			maxLevels=growLevels(maxLevels);
+		}
+		if(pages[page]==null)
+		{
+			if(sparePage!=null)
+			{
+				pages[page]=sparePage;
+				sparePage=null;
+			}
+			else
+			{
+				pages[page]=new byte[PAGEBYTES];
+			}
+		}
+		System.arraycopy(data,offset,pages[page],
+			(count%PAGEBLOCKS)*ADPCMEncoder.BLOCKBYTES,ADPCMEncoder.BLOCKBYTES);
+		addLevels(minLevel,maxLevel);
+		count++;
+
+		if(spill && count%PAGEBLOCKS==0)
+		{
+			spillPage(page);
+		}
+	}
+
+	/**
+	 * Doubles the capacity of a level pyramid.
+	 * @param levels Existing pyramid
+	 * @return New pyramid
+	 */
+	private short[][] growLevels(short[][] levels)
+	{
+		short[][] result=new short[levels.length][];
+		for(int k=0;k<levels.length;k++)
+		{
+			result[k]=new short[levels[k].length*2];
+			System.arraycopy(levels[k],0,result[k],0,levels[k].length);
+		}
+		return result;
+	}
+
+	/**
+	 * Stores the levels of the block about to be added (at index count) and
+	 * updates each summary that covers it.
+	 * @param minLevel Minimum level
+	 * @param maxLevel Maximum level
+	 */
+	private void addLevels(int minLevel,int maxLevel)
+	{
+		// Add another level once there are enough blocks to fill it
+		int levels=minLevels.length;
+		if(count==(1<<levels))
+		{
+			short[][] newMin=new short[levels+1][],newMax=new short[levels+1][];
+			System.arraycopy(minLevels,0,newMin,0,levels);
+			System.arraycopy(maxLevels,0,newMax,0,levels);
+			newMin[levels]=new short[minLevels[0].length>>levels];
+			newMax[levels]=new short[maxLevels[0].length>>levels];
+			// First summary covers the existing blocks
+			newMin[levels][0]=(short)Math.min(minLevels[levels-1][0],minLevels[levels-1][1]);
+			newMax[levels][0]=(short)Math.max(maxLevels[levels-1][0],maxLevels[levels-1][1]);
+			minLevels=newMin;
+			maxLevels=newMax;
+		}
+
+		minLevels[0][count]=(short)minLevel;
+		maxLevels[0][count]=(short)maxLevel;
+		for(int k=1;k<minLevels.length;k++)
+		{
+			int index=count>>k;
+			if((count&((1<<k)-1))==0)
+			{
+				// First block in this summary
+				minLevels[k][index]=(short)minLevel;
+				maxLevels[k][index]=(short)maxLevel;
+			}
+			else
+			{
+				if(minLevel<minLevels[k][index]) minLevels[k][index]=(short)minLevel;
+				if(maxLevel>maxLevels[k][index]) maxLevels[k][index]=(short)maxLevel;
+			}
+		}
+	}
+
+	/**
+	 * Writes a full page to the spill file and frees it. If that fails, the
+	 * page stays in memory and spilling is turned off.
+	 * @param page Page index
+	 */
+	private void spillPage(int page)
+	{
+		try
+		{
+			if(spillChannel==null)
+			{
+				spillFile=File.createTempFile("recording",".wav");
+				spillFile.deleteOnExit();
+				spillAccess=new RandomAccessFile(spillFile,"rw");
+				spillChannel=spillAccess.getChannel();
+			}
+			writeFully(ByteBuffer.wrap(pages[page]),HEADERBYTES+(long)page*PAGEBYTES);
+			sparePage=pages[page];
+			pages[page]=null;
+		}
+		catch(IOException e)
+		{
+			System.err.println("[uk.ac.open.audio.adpcm.ADPCMRecording] " +
+				"Error writing to temporary file, keeping recording in memory");
+			e.printStackTrace();
+			spill=false;
+		}
+	}
+
+	/**
+	 * Writes to the spill file at a given position.
+	 * @param buffer Data
+	 * @param pos Position in file
+	 * @throws IOException Any error
+	 */
+	private void writeFully(ByteBuffer buffer,long pos) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			pos+=spillChannel.write(buffer,pos);
+		}
 	}
 
 	/**
@@ -45,7 +243,25 @@ public class ADPCMRecording
 	 */
 	public synchronized void clear()
 	{
-		blocks.clear();
+		// Pages (and any spill file) are kept for reuse
+		for(int i=0;i<pages.length;i++)
+		{
+			if(pages[i]==null && i*PAGEBLOCKS<count)
+			{
+				// This page was spilled, so its memory has gone
+				pages[i]=sparePage;
+				sparePage=null;
+			}
+		}
+		count=0;
+	}
+
+	/**
+	 * @return Number of blocks in recording
+	 */
+	public synchronized int getBlockCount()
+	{
+		return count;
 	}
 
 	/**
@@ -53,7 +269,7 @@ public class ADPCMRecording
 	 */
 	public synchronized int getTime()
 	{
-		return (ADPCMEncoder.BLOCKSAMPLES*blocks.size())/16;
+		return (ADPCMEncoder.BLOCKSAMPLES*count)/16;
 	}
 
 	/**
@@ -66,42 +282,331 @@ public class ADPCMRecording
 	}
 
 	/**
-	 * Obtains a range of blocks for display or output.
+	 * Copies the compressed data of a block into an existing array.
+	 * @param index Block index
+	 * @param target Array that receives data
+	 * @param offset Offset in array (must have ADPCMEncoder.BLOCKBYTES space)
+	 * @throws IndexOutOfBoundsException If the block doesn't exist
+	 * @throws IOException If there's an error reading the spill file
+	 */
+	public synchronized void readBlock(int index,byte[] target,int offset)
+		throws IndexOutOfBoundsException, IOException
+	{
+		if(index<0 || index>=count)
+		{
+			throw new IndexOutOfBoundsException("No block "+index);
+		}
+		readBlocks(index,1,target,offset);
+	}
+
+	/**
+	 * Copies the compressed data of a range of blocks, one after another, into
+	 * an existing array. Does not allocate any memory except when reading from
+	 * the spill file. Use {@link #getMinLevel} and {@link #getMaxLevel} or
+	 * {@link #getLevels} for the levels.
+	 * @param start First block to retrieve
+	 * @param count Number of blocks
+	 * @param target Array that receives data
+	 * @param offset Offset in array (must have count*ADPCMEncoder.BLOCKBYTES
+	 *   space)
+	 * @return Number of blocks actually copied (fewer if there weren't enough
+	 *   available)
+	 * @throws IndexOutOfBoundsException If start is negative
+	 * @throws IOException If there's an error reading the spill file
+	 */
+	public synchronized int readBlocks(int start,int count,byte[] target,
+		int offset) throws IndexOutOfBoundsException, IOException
+	{
+		if(start<0)
+		{
+			throw new IndexOutOfBoundsException("No block "+start);
+		}
+		if(start+count>this.count) count=this.count-start;
+		int done=0;
+		while(done<count)
+		{
+			// Copy as much as possible from each page at once
+			int index=start+done,page=index/PAGEBLOCKS;
+			int blocks=Math.min(count-done,PAGEBLOCKS-index%PAGEBLOCKS);
+			int inPage=(index%PAGEBLOCKS)*ADPCMEncoder.BLOCKBYTES,
+				bytes=blocks*ADPCMEncoder.BLOCKBYTES;
+			if(pages[page]!=null)
+			{
+				System.arraycopy(pages[page],inPage,target,offset,bytes);
+			}
+			else
+			{
+				ByteBuffer buffer=ByteBuffer.wrap(target,offset,bytes);
+				long pos=HEADERBYTES+(long)page*PAGEBYTES+inPage;
+				while(buffer.hasRemaining())
+				{
+					int read=spillChannel.read(buffer,pos);
+					if(read==-1)
+					{
+						throw new EOFException("Unexpected end of temporary file");
+					}
+					pos+=read;
+				}
+			}
+			done+=blocks;
+			offset+=bytes;
+		}
+		return Math.max(count,0);
+	}
+
+	/**
+	 * @param index Block index
+	 * @return Minimum audio level in block
+	 * @throws IndexOutOfBoundsException If the block doesn't exist
+	 */
+	public synchronized int getMinLevel(int index) throws IndexOutOfBoundsException
+	{
+		if(index<0 || index>=count)
+		{
+			throw new IndexOutOfBoundsException("No block "+index);
+		}
+		return minLevels[0][index];
+	}
+
+	/**
+	 * @param index Block index
+	 * @return Maximum audio level in block
+	 * @throws IndexOutOfBoundsException If the block doesn't exist
+	 */
+	public synchronized int getMaxLevel(int index) throws IndexOutOfBoundsException
+	{
+		if(index<0 || index>=count)
+		{
+			throw new IndexOutOfBoundsException("No block "+index);
+		}
+		return maxLevels[0][index];
+	}
+
+	/**
+	 * Gets a block as a new object. Callers that handle many blocks should use
+	 * {@link #readBlocks} instead, which doesn't allocate.
+	 * @param index Block index
+	 * @return New copy of block
+	 * @throws IndexOutOfBoundsException If the block doesn't exist
+	 * @throws IOException If there's an error reading the spill file
+	 */
+	public synchronized ADPCMEncoder.Block getBlock(int index)
+		throws IndexOutOfBoundsException, IOException
+	{
+		byte[] data=new byte[ADPCMEncoder.BLOCKBYTES];
+		readBlock(index,data,0);
+		return new ADPCMEncoder.Block(data,minLevels[0][index],maxLevels[0][index]);
+	}
+
+	/**
+	 * Copies the levels for a range of blocks into existing arrays. This is
+	 * cheaper than getting the blocks if only levels are needed.
+	 * @param start First block to retrieve
+	 * @param count Number of blocks
+	 * @param min Array that receives minimum levels
+	 * @param max Array that receives maximum levels
+	 * @param offset Offset within min and max arrays
+	 * @return Number of blocks actually copied (fewer if there weren't enough
+	 *   available)
+	 */
+	public synchronized int getLevels(int start,int count,int[] min,int[] max,
+		int offset)
+	{
+		if(start+count>this.count) count=this.count-start;
+		for(int i=0;i<count;i++)
+		{
+			min[offset+i]=minLevels[0][start+i];
+			max[offset+i]=maxLevels[0][start+i];
+		}
+		return Math.max(count,0);
+	}
+
+	/**
+	 * Summarises levels across a range of blocks for display at any zoom.
+	 * Each output pixel receives the minimum and maximum level across its
+	 * share of the range; if there are fewer blocks than pixels, blocks are
+	 * repeated. Pixels beyond the end of the recording receive zero. Each
+	 * pixel takes time proportional to the log of its blocks, not the number.
+	 * @param start First block
+	 * @param end Block after the last one
+	 * @param pixels Number of output values
+	 * @param min Array that receives minimum levels
+	 * @param max Array that receives maximum levels
+	 * @param offset Offset within min and max arrays
+	 * @throws IllegalArgumentException If the range is empty or negative
+	 */
+	public synchronized void getLevelSummary(int start,int end,int pixels,
+		int[] min,int[] max,int offset) throws IllegalArgumentException
+	{
+		if(start<0 || end<=start)
+		{
+			throw new IllegalArgumentException("Invalid range "+start+"-"+end);
+		}
+		long blocks=end-start;
+		for(int i=0;i<pixels;i++)
+		{
+			int from=start+(int)((blocks*i)/pixels),
+				to=Math.min(start+(int)((blocks*(i+1))/pixels),count);
+			if(to<=from)
+			{
+				to=from+1;
+			}
+			if(from>=count)
+			{
+				min[offset+i]=0;
+				max[offset+i]=0;
+				continue;
+			}
+
+			// Combine the largest aligned summaries that fit in the range
+			int minValue=Integer.MAX_VALUE,maxValue=Integer.MIN_VALUE;
+			while(from<to)
+			{
+				int k=0;
+				while(k+1<minLevels.length && (from&((2<<k)-1))==0 &&
+					from+(2<<k)<=to)
+				{
+					k++;
+				}
+				int index=from>>k;
+				minValue=Math.min(minValue,minLevels[k][index]);
+				maxValue=Math.max(maxValue,maxLevels[k][index]);
+				from+=1<<k;
+			}
+			min[offset+i]=minValue;
+			max[offset+i]=maxValue;
+		}
+	}
+
+	/**
+	 * Obtains a range of blocks as new objects. The blocks are copies; use
+	 * {@link #readBlocks} to avoid allocating them.
 	 * @param start First block to retrieve
 	 * @param count Number of blocks
 	 * @return Requested blocks (or fewer if there weren't enough available)
+	 * @throws IOException If there's an error reading the spill file
 	 */
 	public synchronized ADPCMEncoder.Block[] getBlocks(int start,int count)
+		throws IOException
 	{
-		if(start+count>blocks.size()) count=blocks.size()-start;
+		if(start+count>this.count) count=this.count-start;
 		ADPCMEncoder.Block[] result=new ADPCMEncoder.Block[count];
-
-		Iterator<ADPCMEncoder.Block> i=blocks.iterator();
-		for(int skip=0;skip<start;skip++) i.next();
 		for(int dest=0;dest<count;dest++)
 		{
-			result[dest]=i.next();
+			result[dest]=getBlock(start+dest);
 		}
 		return result;
 	}
 
 	/**
-	 * Obtains all blocks for display or output.
+	 * Obtains all blocks for display or output. The blocks are copies.
 	 * @return Array of all blocks
+	 * @throws IOException If there's an error reading the spill file
 	 */
-	public synchronized ADPCMEncoder.Block[] getBlocks()
+	public synchronized ADPCMEncoder.Block[] getBlocks() throws IOException
 	{
-		return blocks.toArray(new ADPCMEncoder.Block[blocks.size()]);
+		return getBlocks(0,count);
 	}
 
 	/**
-	 * Saves data as a .wav file.
+	 * Saves data as a .wav file. In spill mode, the temporary file is completed
+	 * and moved to the target, and the recording is then empty.
 	 * @param f Target for saving
 	 * @throws IOException Any I/O errors
 	 */
 	public synchronized void save(File f) throws IOException
 	{
-		ADPCMEncoder.writeToWav(getBlocks(0,blocks.size()), f);
+		if(spillChannel!=null)
+		{
+			finishSpillFile(f);
+			return;
+		}
+
+		BufferedOutputStream output=new BufferedOutputStream(new FileOutputStream(f));
+		try
+		{
+			ADPCMEncoder.writeWavHeader(output,count*ADPCMEncoder.BLOCKSAMPLES);
+			for(int page=0;page*PAGEBLOCKS<count;page++)
+			{
+				int blocks=Math.min(PAGEBLOCKS,count-page*PAGEBLOCKS);
+				output.write(pages[page],0,blocks*ADPCMEncoder.BLOCKBYTES);
+			}
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	/**
+	 * Writes remaining pages and the header into the spill file, then moves
+	 * it to the target. The recording is only cleared once that succeeds.
+	 * @param f Target for saving
+	 * @throws IOException Any I/O errors
+	 */
+	private void finishSpillFile(File f) throws IOException
+	{
+		// Write any pages still in memory (usually just the last one)
+		for(int page=0;page*PAGEBLOCKS<count;page++)
+		{
+			if(pages[page]!=null)
+			{
+				int blocks=Math.min(PAGEBLOCKS,count-page*PAGEBLOCKS);
+				writeFully(ByteBuffer.wrap(pages[page],0,
+					blocks*ADPCMEncoder.BLOCKBYTES),HEADERBYTES+(long)page*PAGEBYTES);
+			}
+		}
+
+		// Patch in the real header and drop anything left from before a clear
+		ByteArrayOutputStream header=new ByteArrayOutputStream();
+		ADPCMEncoder.writeWavHeader(header,count*ADPCMEncoder.BLOCKSAMPLES);
+		writeFully(ByteBuffer.wrap(header.toByteArray()),0);
+		spillChannel.truncate(HEADERBYTES+(long)count*ADPCMEncoder.BLOCKBYTES);
+		spillChannel.force(true);
+
+		// Nothing is cleared until the file is safely in place, so on error the
+		// recording is unchanged and saving can be retried
+		if(f.exists() && !f.delete())
+		{
+			throw new IOException("Unable to replace existing file: "+f);
+		}
+
+		// Rename if possible (the file must be closed first), otherwise copy (eg
+		// if on a different disk)
+		spillAccess.close();
+		if(!spillFile.renameTo(f))
+		{
+			spillAccess=new RandomAccessFile(spillFile,"rw");
+			spillChannel=spillAccess.getChannel();
+			try
+			{
+				FileChannel out=new FileOutputStream(f).getChannel();
+				try
+				{
+					long pos=0,size=spillChannel.size();
+					while(pos<size)
+					{
+						pos+=spillChannel.transferTo(pos,size-pos,out);
+					}
+				}
+				finally
+				{
+					out.close();
+				}
+			}
+			catch(IOException e)
+			{
+				f.delete();
+				throw e;
+			}
+			spillAccess.close();
+			spillFile.delete();
+		}
+
+		spillAccess=null;
+		spillChannel=null;
+		spillFile=null;
+		clear();
 	}
 
 }
@@ -0,0 +1,159 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.adpcm;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import uk.ac.open.audio.AudioExecutor;
+
+/**
+ * Runs work on ranges of ADPCM blocks in parallel. Each ADPCM block starts
+ * with its own initial sample and step index, so ranges can be processed
+ * independently; as long as each range writes only to its own part of the
+ * output, the result is identical to processing blocks in order.
+ */
+abstract class ParallelBlocks
+{
+	/** Fewest blocks worth handing to a separate thread */
+	private final static int MINBLOCKSPERTASK=64;
+
+	/** Work for one range of blocks. */
+	interface Range
+	{
+		/**
+		 * Processes blocks.
+		 * @param start First block
+		 * @param end Block after last one to process
+		 */
+		public void process(int start,int end);
+	}
+
+	/**
+	 * Processes the given number of blocks, splitting into ranges across
+	 * threads. Returns once all blocks are complete.
+	 * @param blocks Total number of blocks
+	 * @param threads Number of threads to use, or 0 for one per processor
+	 * @param range Work to do for each range
+	 * @throws IllegalArgumentException If threads is negative
+	 */
+	static void run(int blocks,int threads,final Range range)
+		throws IllegalArgumentException
+	{
+		if(threads<0)
+		{
+			throw new IllegalArgumentException("Invalid thread count: "+threads);
+		}
+		if(threads==0)
+		{
+			threads=Runtime.getRuntime().availableProcessors();
+		}
+		threads=Math.min(threads,
+			(blocks+MINBLOCKSPERTASK-1)/MINBLOCKSPERTASK);
+
+		// Not worth starting threads
+		if(threads<=1)
+		{
+			range.process(0,blocks);
+			return;
+		}
+
+		// The calling thread handles the last range itself
+		ExecutorService executor=AudioExecutor.getComputePool();
+		List<Future<?>> futures=new LinkedList<Future<?>>();
+		for(int i=0;i<threads-1;i++)
+		{
+			final int start=(int)(((long)blocks*i)/threads),
+				end=(int)(((long)blocks*(i+1))/threads);
+			futures.add(executor.submit(new Runnable()
+			{
+				public void run()
+				{
+					range.process(start,end);
+				}
+			}));
+		}
+		Throwable failure=null;
+		try
+		{
+			range.process((int)(((long)blocks*(threads-1))/threads),blocks);
+		}
+		catch(Throwable t)
+		{
+			failure=t;
+		}
+		waitFor(futures,failure);
+	}
+
+	/**
+	 * Waits for every range to stop, even if some fail, because ranges that
+	 * are still running write to the caller's output. Keeps waiting if
+	 * interrupted, then restores the interrupt afterwards.
+	 * @param futures Ranges running on other threads
+	 * @param failure Failure from the calling thread's range, or null if none
+	 * @throws RuntimeException The first failure from any range, once all have
+	 *   stopped (errors are rethrown as they are)
+	 */
+	private static void waitFor(List<Future<?>> futures,Throwable failure)
+		throws RuntimeException
+	{
+		boolean interrupted=false;
+		for(Future<?> future : futures)
+		{
+			while(true)
+			{
+				try
+				{
+					future.get();
+					break;
+				}
+				catch(InterruptedException e)
+				{
+					interrupted=true;
+				}
+				catch(ExecutionException e)
+				{
+					if(failure==null)
+					{
+						failure=e.getCause();
+					}
+					break;
+				}
+			}
+		}
+		if(interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if(failure instanceof RuntimeException)
+		{
+			throw (RuntimeException)failure;
+		}
+		if(failure instanceof Error)
+		{
+			throw (Error)failure;
+		}
+		if(failure!=null)
+		{
+			throw new RuntimeException(failure);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.mp3;
+
+import javazoom.jl.decoder.Obuffer;
+import uk.ac.open.audio.*;
+
+/**
+ * JLayer output buffer that produces data in a playback format directly.
+ * Samples are clamped and written as little-endian bytes as they arrive,
+ * including mono/stereo conversion. If the sampling rate differs, they are
+ * collected as shorts and converted by a Resampler straight to bytes at the
+ * end of each frame. Buffers are reused, so decoding a frame allocates
+ * nothing.
+ */
+class DeviceBuffer extends Obuffer
+{
+	/** Maximum samples per channel in an MP3 frame */
+	private final static int FRAMESAMPLES=OBUFFERSIZE/2;
+
+	private final int outChannels;
+	/** Channels collected for resampling (after any downmix) */
+	private final int workChannels;
+	/** True if stereo input is being reduced to mono */
+	private final boolean downmix;
+	/** True if mono input is being expanded to stereo */
+	private final boolean expand;
+
+	/** Resampler, or null if frequency already matches */
+	private final Resampler resampler;
+	/** Samples collected for resampling (interleaved if stereo) */
+	private final short[] samples;
+
+	private byte[] data;
+	private int length;
+
+	/** Next sample position within frame for each channel */
+	private final int[] positions=new int[MAXCHANNELS];
+
+	/**
+	 * @param frequency MP3 sampling frequency
+	 * @param channels Number of MP3 channels
+	 * @param format Required output format
+	 */
+	DeviceBuffer(int frequency,int channels,PlaybackDevice.Format format)
+	{
+		outChannels=format.isStereo() ? 2 : 1;
+		downmix=channels==2 && outChannels==1;
+		expand=channels==1 && outChannels==2;
+		workChannels=Math.min(channels,outChannels);
+		if(frequency!=format.getSampleRate())
+		{
+			resampler=new Resampler(workChannels==2,frequency,format.getSampleRate());
+			samples=new short[FRAMESAMPLES*workChannels];
+			data=new byte[resampler.getMaxOutput(samples.length)*2*(expand ? 2 : 1)];
+		}
+		else
+		{
+			resampler=null;
+			samples=null;
+			data=new byte[FRAMESAMPLES*outChannels*2];
+		}
+	}
+
+	@Override
+	public void append(int channel,short value)
+	{
+		store(channel,positions[channel]++,value);
+	}
+
+	@Override
+	public void appendSamples(int channel,float[] f)
+	{
+		int pos=positions[channel];
+		for(int i=0;i<32;i++)
+		{
+			// Same clamping as JLayer's SampleBuffer
+			float sample=f[i];
+			sample=(sample>32767.0f ? 32767.0f
+				: (sample < -32767.0f ? -32767.0f : sample));
+			store(channel,pos++,(short)sample);
+		}
+		positions[channel]=pos;
+	}
+
+	/**
+	 * Stores a sample.
+	 * @param channel Input channel
+	 * @param pos Sample position in frame
+	 * @param value Value
+	 */
+	private void store(int channel,int pos,short value)
+	{
+		if(resampler!=null)
+		{
+			if(downmix)
+			{
+				samples[pos]=channel==0 ? value : (short)((samples[pos]+value)/2);
+			}
+			else
+			{
+				samples[pos*workChannels+channel]=value;
+			}
+			return;
+		}
+
+		if(downmix)
+		{
+			int bytePos=pos*2;
+			if(channel==1)
+			{
+				// Left channel always arrives first
+				short left=(short)((data[bytePos+1]<<8) | (data[bytePos]&0xff));
+				value=(short)((left+value)/2);
+			}
+			data[bytePos]=(byte)value;
+			data[bytePos+1]=(byte)(value>>8);
+		}
+		else if(expand)
+		{
+			int bytePos=pos*4;
+			data[bytePos]=(byte)value;
+			data[bytePos+1]=(byte)(value>>8);
+			data[bytePos+2]=(byte)value;
+			data[bytePos+3]=(byte)(value>>8);
+		}
+		else
+		{
+			int bytePos=(pos*outChannels+channel)*2;
+			data[bytePos]=(byte)value;
+			data[bytePos+1]=(byte)(value>>8);
+		}
+	}
+
+	/**
+	 * Completes the current frame, resampling if necessary. Must be called
+	 * after each frame is decoded.
+	 */
+	void finishFrame()
+	{
+		int frameSamples=positions[0];
+		if(resampler!=null)
+		{
+			int workLength=frameSamples*workChannels;
+			int required=resampler.getMaxOutput(workLength)*2*(expand ? 2 : 1);
+			if(data.length<required)
+			{
+				data=new byte[required];
+			}
+			length=resampler.resample(samples,0,workLength,expand,data,0);
+		}
+		else
+		{
+			length=frameSamples*outChannels*2;
+		}
+	}
+
+	/**
+	 * @return Output data for last frame (buffer is reused for next frame)
+	 */
+	byte[] getData()
+	{
+		return data;
+	}
+
+	/**
+	 * @return Number of bytes of output data for last frame
+	 */
+	int getLength()
+	{
+		return length;
+	}
+
+	@Override
+	public void write_buffer(int val)
+	{
+	}
+
+	@Override
+	public void clear_buffer()
+	{
+		for(int i=0;i<MAXCHANNELS;i++)
+		{
+			positions[i]=0;
+		}
+	}
+
+	@Override
+	public void close()
+	{
+	}
+
+	@Override
+	public void set_stop_flag()
+	{
+	}
+}
@@ -28,13 +28,31 @@ import uk.ac.open.audio.streaming.*;
 
 /**
  * This class decodes MP3 data using the JLayer library. It converts all data
- * to 44.1 kHz stereo.
+ * to a playback format (44.1 kHz stereo unless specified) as it is decoded.
  */
-public class MP3Decoder implements StreamableDecoder
+public class MP3Decoder extends BufferedDecoder
 {
 	private Decoder d;
 	private Bitstream b;
 	private Header h;
+	private DeviceBuffer buffer;
+	private PlaybackDevice.Format format;
+
+	/**
+	 * Creates a decoder that outputs 44.1 kHz stereo.
+	 */
+	public MP3Decoder()
+	{
+		this(PlaybackDevice.Format.STEREO_44KHZ);
+	}
+
+	/**
+	 * @param format Format for decoded data
+	 */
+	public MP3Decoder(PlaybackDevice.Format format)
+	{
+		this.format=format;
+	}
 
 	/**
 	 * Initialises the decoder.
@@ -53,9 +71,10 @@ public class MP3Decoder implements StreamableDecoder
 	  	b=new Bitstream(input,false);
 	  	h=b.readFrame();
 	  	if(h==null) throw new AudioException("Cannot play empty MP3");
-	  	SampleBuffer buffer=new SampleBuffer(
+	  	buffer=new DeviceBuffer(
 	  		h.frequency(),
-	  		h.mode()==Header.SINGLE_CHANNEL ? 1 : 2);
+	  		h.mode()==Header.SINGLE_CHANNEL ? 1 : 2,
+	  		format);
 	  	d.setOutputBuffer(buffer);
 		}
 		catch(JavaLayerException e)
@@ -64,39 +83,60 @@ public class MP3Decoder implements StreamableDecoder
 		}
 	}
 
+	public PlaybackDevice.Format getNativeFormat()
+	{
+		boolean stereo=h.mode()!=Header.SINGLE_CHANNEL;
+		PlaybackDevice.Format format=
+			PlaybackDevice.Format.find(h.frequency(),stereo);
+		if(format!=null)
+		{
+			return format;
+		}
+
+		// Rates without a format are resampled, but keep mono as mono
+		return stereo ? PlaybackDevice.Format.STEREO_44KHZ :
+			PlaybackDevice.Format.MONO_44KHZ;
+	}
+
+	public void setOutputFormat(PlaybackDevice.Format format)
+	{
+		this.format=format;
+		if(h!=null)
+		{
+			buffer=new DeviceBuffer(
+	  		h.frequency(),
+	  		h.mode()==Header.SINGLE_CHANNEL ? 1 : 2,
+	  		format);
+			d.setOutputBuffer(buffer);
+		}
+	}
+
+	protected int getFrameLength()
+	{
+		return buffer.getLength();
+	}
+
 	/**
-	 * Decodes the next frame of the MP3 and returns audio data. This may cause
+	 * Decodes the next frame of the MP3 into the device buffer. This may cause
 	 * the thread to block while waiting for data from the InputStream.
-	 * @return Decoded data in 44.1kHz stereo 16-bit little-endian format;
+	 * @param previous Ignored
+	 * @return Device buffer data in the chosen format (16-bit little-endian);
 	 *   or null if MP3 has ended
 	 * @throws AudioException
 	 */
-	public byte[] decode() throws AudioException
+	protected byte[] decodeFrame(byte[] previous) throws AudioException
 	{
 		if(h==null) return null;
 
 		try
 		{
-			SampleBuffer output=(SampleBuffer)d.decodeFrame(h, b);
-			short[] data=output.getBuffer();
-			int length=output.getBufferLength();
-
-			// Upsample if required
-			boolean stereo=output.getChannelCount()==2;
-			int frequency=output.getSampleFrequency();
-			if(frequency!=44100)
-			{
-				data=AudioUtil.resample(data,length,stereo,frequency,44100);
-				length=data.length;
-			}
-
-			// Convert to bytes for audio output
-			byte[] byteData=AudioUtil.shortToByte(data, length, !stereo);
+			d.decodeFrame(h, b);
+			buffer.finishFrame();
 
 			b.closeFrame();
 	  	h=b.readFrame();
 
-			return byteData;
+			return buffer.getData();
 		}
 		catch(JavaLayerException e)
 		{
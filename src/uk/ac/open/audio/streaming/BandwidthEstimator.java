@@ -0,0 +1,119 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+/**
+ * Incremental estimate of download speed: an exponentially weighted moving
+ * average of the rate, with an exponentially weighted variance so that
+ * callers can allow for how much it fluctuates. Each update is constant
+ * time. Methods are synchronized, so one thread can add data while others
+ * read the estimate.
+ */
+public class BandwidthEstimator
+{
+	/** Weight given to each new sample (about the last 20 samples count) */
+	private final static double ALPHA=0.1;
+
+	/**
+	 * Shortest time that makes a sample; data arriving quicker than this is
+	 * combined with the following data
+	 */
+	private final static int MINSAMPLEMS=10;
+
+	private double mean,variance;
+	private int samples;
+	private long pendingBytes,pendingMs,totalBytes;
+
+	/**
+	 * Records data received.
+	 * @param bytes Number of bytes (actual count, including partial blocks)
+	 * @param ms Time in milliseconds since the previous data was received
+	 */
+	public synchronized void add(int bytes,int ms)
+	{
+		totalBytes+=bytes;
+		pendingBytes+=bytes;
+		pendingMs+=Math.max(ms,0);
+		if(pendingMs<MINSAMPLEMS)
+		{
+			return;
+		}
+
+		double rate=pendingBytes*1000.0/pendingMs;
+		pendingBytes=0;
+		pendingMs=0;
+		if(samples==0)
+		{
+			mean=rate;
+		}
+		else
+		{
+			double difference=rate-mean;
+			double increment=ALPHA*difference;
+			mean+=increment;
+			variance=(1-ALPHA)*(variance+difference*increment);
+		}
+		samples++;
+	}
+
+	/**
+	 * @return Estimated bytes per second; infinite if data has arrived but too
+	 *   quickly to time, 0 if none has
+	 */
+	public synchronized double getMean()
+	{
+		if(samples==0)
+		{
+			return totalBytes>0 ? Double.POSITIVE_INFINITY : 0.0;
+		}
+		return mean;
+	}
+
+	/** @return Standard deviation of the rate in bytes per second */
+	public synchronized double getDeviation()
+	{
+		return Math.sqrt(variance);
+	}
+
+	/**
+	 * Returns a pessimistic estimate of the rate. If rates were normally
+	 * distributed, 1 deviation would give roughly the 16th percentile and 2
+	 * the 2nd percentile.
+	 * @param deviations Number of standard deviations below the mean
+	 * @return Estimated bytes per second (never negative)
+	 */
+	public synchronized double getLowerEstimate(double deviations)
+	{
+		return Math.max(0.0,getMean()-deviations*getDeviation());
+	}
+
+	/** @return Number of samples the estimate is based on */
+	public synchronized int getSampleCount()
+	{
+		return samples;
+	}
+
+	/** @return Total bytes recorded */
+	public synchronized long getTotalBytes()
+	{
+		return totalBytes;
+	}
+}
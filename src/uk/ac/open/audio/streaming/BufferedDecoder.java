@@ -0,0 +1,103 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+import java.nio.ByteBuffer;
+
+import uk.ac.open.audio.AudioException;
+
+/**
+ * Base class for decoders that decode one frame at a time into a reused
+ * array. Provides both decode methods; any part of a frame that doesn't fit
+ * in the caller's buffer is kept for the next call.
+ */
+public abstract class BufferedDecoder implements StreamableDecoder
+{
+	/** Data of current frame */
+	private byte[] frame;
+	/** Position of next unused byte, and end of data, in current frame */
+	private int framePos,frameLength;
+
+	/**
+	 * Decodes the next frame. Implementations should reuse the same array
+	 * where possible.
+	 * @param previous Array returned by the previous call, or null if none
+	 * @return Array containing decoded data from offset 0 (length given by
+	 *   getFrameLength), or null at end of stream
+	 * @throws AudioException If there's any problem
+	 */
+	protected abstract byte[] decodeFrame(byte[] previous) throws AudioException;
+
+	/**
+	 * @return Number of bytes of data returned by last call to decodeFrame
+	 */
+	protected abstract int getFrameLength();
+
+	/**
+	 * Ensures there's unused data in the current frame, decoding if needed.
+	 * @return False at end of stream
+	 * @throws AudioException If there's any problem
+	 */
+	private boolean fillFrame() throws AudioException
+	{
+		while(framePos==frameLength)
+		{
+			byte[] next=decodeFrame(frame);
+			if(next==null)
+			{
+				return false;
+			}
+			frame=next;
+			framePos=0;
+			frameLength=getFrameLength();
+		}
+		return true;
+	}
+
+	public byte[] decode() throws AudioException
+	{
+		if(!fillFrame())
+		{
+			return null;
+		}
+		byte[] result=new byte[frameLength-framePos];
+		System.arraycopy(frame,framePos,result,0,result.length);
+		framePos=frameLength;
+		return result;
+	}
+
+	public int decodeInto(ByteBuffer buffer) throws AudioException
+	{
+		int added=0;
+		while(buffer.hasRemaining())
+		{
+			if(!fillFrame())
+			{
+				return added==0 ? -1 : added;
+			}
+			int count=Math.min(buffer.remaining(),frameLength-framePos);
+			buffer.put(frame,framePos,count);
+			framePos+=count;
+			added+=count;
+		}
+		return added;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+/**
+ * Decides how long a stream should buffer before playback starts (or
+ * restarts after running out). Set with
+ * {@link StreamPlayer#setDefaultBufferingPolicy} or
+ * {@link StreamPlayer#setBufferingPolicy}. Policies may be called from
+ * several threads, so should not keep state between calls.
+ */
+public interface BufferingPolicy
+{
+	/**
+	 * @param status Current download and playback progress
+	 * @return Estimated milliseconds until playback should start; 0 to start
+	 *   now
+	 */
+	public int getPlaybackDelay(Status status);
+
+	/** Snapshot of stream progress for a policy to judge. */
+	public static final class Status
+	{
+		private final int bytesDownloaded,length;
+		private final boolean downloadFinished;
+		private final double downloadRate,downloadDeviation,playbackRate,
+			secondsDownloaded,secondsDecoded,secondsTotal;
+
+		/**
+		 * @param bytesDownloaded Bytes downloaded so far
+		 * @param length Total length in bytes, or StreamPlayer.UNKNOWN
+		 * @param downloadFinished True if the whole stream has been downloaded
+		 * @param downloadRate Estimated download speed in bytes per second
+		 * @param downloadDeviation Standard deviation of download speed
+		 * @param playbackRate Bytes of stream per second of audio
+		 * @param secondsDownloaded Estimated seconds of audio downloaded so far
+		 * @param secondsDecoded Seconds of audio decoded so far
+		 * @param secondsTotal Estimated total seconds of audio, or
+		 *   StreamPlayer.UNKNOWN
+		 */
+		public Status(int bytesDownloaded,int length,boolean downloadFinished,
+			double downloadRate,double downloadDeviation,double playbackRate,
+			double secondsDownloaded,double secondsDecoded,double secondsTotal)
+		{
+			this.bytesDownloaded=bytesDownloaded;
+			this.length=length;
+			this.downloadFinished=downloadFinished;
+			this.downloadRate=downloadRate;
+			this.downloadDeviation=downloadDeviation;
+			this.playbackRate=playbackRate;
+			this.secondsDownloaded=secondsDownloaded;
+			this.secondsDecoded=secondsDecoded;
+			this.secondsTotal=secondsTotal;
+		}
+
+		/** @return Bytes downloaded so far */
+		public int getBytesDownloaded()
+		{
+			return bytesDownloaded;
+		}
+
+		/** @return Total length in bytes, or StreamPlayer.UNKNOWN */
+		public int getLength()
+		{
+			return length;
+		}
+
+		/** @return True if the whole stream has been downloaded */
+		public boolean isDownloadFinished()
+		{
+			return downloadFinished;
+		}
+
+		/** @return Estimated download speed in bytes per second */
+		public double getDownloadRate()
+		{
+			return downloadRate;
+		}
+
+		/** @return Standard deviation of download speed in bytes per second */
+		public double getDownloadDeviation()
+		{
+			return downloadDeviation;
+		}
+
+		/** @return Bytes of stream per second of audio */
+		public double getPlaybackRate()
+		{
+			return playbackRate;
+		}
+
+		/** @return Estimated seconds of audio downloaded so far */
+		public double getSecondsDownloaded()
+		{
+			return secondsDownloaded;
+		}
+
+		/** @return Seconds of audio decoded so far */
+		public double getSecondsDecoded()
+		{
+			return secondsDecoded;
+		}
+
+		/** @return Estimated total seconds of audio, or StreamPlayer.UNKNOWN */
+		public double getSecondsTotal()
+		{
+			return secondsTotal;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+/**
+ * Stores downloaded data as a sequence of fixed-size chunks. Every chunk
+ * except the last must be exactly the chunk size, so any byte position can
+ * be located directly without walking the list.
+ * <p>
+ * This class is not synchronized, but one thread may add chunks while other
+ * threads read without locking: the data size is published last, so readers
+ * always see every chunk within the size they observe. Only one thread may
+ * add chunks.
+ */
+class ChunkStore
+{
+	private final static int INITIALCAPACITY=64;
+
+	private final int chunkSize;
+
+	private byte[][] chunks=new byte[INITIALCAPACITY][];
+	private int[] times=new int[INITIALCAPACITY];
+	private volatile int count,dataSize;
+
+	/**
+	 * @param chunkSize Size of each chunk in bytes
+	 */
+	ChunkStore(int chunkSize)
+	{
+		this.chunkSize=chunkSize;
+	}
+
+	/**
+	 * Adds a chunk to the end of the store.
+	 * @param chunk Data (must be chunk size, unless it's the last one)
+	 * @param ms Time in milliseconds it took to download this chunk
+	 * @throws IllegalStateException If a partial chunk has already been added
+	 * @throws IllegalArgumentException If the chunk is too large
+	 */
+	void add(byte[] chunk,int ms) throws IllegalStateException,
+		IllegalArgumentException
+	{
+		if(chunk.length>chunkSize)
+		{
+			throw new IllegalArgumentException("Chunk larger than "+chunkSize);
+		}
+		if(count>0 && chunks[count-1].length!=chunkSize)
+		{
+			throw new IllegalStateException("Cannot add after partial chunk");
+		}
+		if(count==chunks.length)
+		{
+			byte[][] newChunks=new byte[count*2][];
+			System.arraycopy(chunks,0,newChunks,0,count);
+			chunks=newChunks;
+			int[] newTimes=new int[count*2];
+			System.arraycopy(times,0,newTimes,0,count);
+			times=newTimes;
+		}
+		chunks[count]=chunk;
+		times[count]=ms;
+		count++;
+		// Must be last so that readers see the chunk
+		dataSize+=chunk.length;
+	}
+
+	/** @return Number of chunks */
+	int getChunkCount()
+	{
+		return count;
+	}
+
+	/** @return Total bytes stored */
+	int getDataSize()
+	{
+		return dataSize;
+	}
+
+	/**
+	 * Only the thread that adds chunks may call this method.
+	 * @param index Chunk index
+	 * @return Time in milliseconds it took to download that chunk
+	 */
+	int getTime(int index)
+	{
+		return times[index];
+	}
+
+	/**
+	 * Reads data from the given position. Does not block; reads only what is
+	 * currently available.
+	 * @param pos Byte position within store
+	 * @param b Target buffer
+	 * @param off Offset in target buffer
+	 * @param len Maximum number of bytes to read
+	 * @return Number of bytes actually read (0 if none available)
+	 */
+	int read(int pos,byte[] b,int off,int len)
+	{
+		int totalRead=0;
+		while(len>0 && pos<dataSize)
+		{
+			byte[] current=chunks[pos/chunkSize];
+			int innerPos=pos%chunkSize;
+			int available=Math.min(current.length-innerPos,len);
+			System.arraycopy(current,innerPos,b,off,available);
+			pos+=available;
+			off+=available;
+			len-=available;
+			totalRead+=available;
+		}
+		return totalRead;
+	}
+
+	/** @return New cursor positioned at the start of the data */
+	Cursor newCursor()
+	{
+		return new Cursor();
+	}
+
+	/**
+	 * Sequential read position within the store.
+	 */
+	class Cursor
+	{
+		private int pos;
+
+		/** @return Number of bytes that can be read without waiting */
+		int available()
+		{
+			return dataSize-pos;
+		}
+
+		/** @return Current byte position */
+		int getPosition()
+		{
+			return pos;
+		}
+
+		/**
+		 * Reads available data and advances the cursor.
+		 * @param b Target buffer
+		 * @param off Offset in target buffer
+		 * @param len Maximum number of bytes to read
+		 * @return Number of bytes read (0 if none available)
+		 */
+		int read(byte[] b,int off,int len)
+		{
+			int read=ChunkStore.this.read(pos,b,off,len);
+			pos+=read;
+			return read;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+/**
+ * Buffering policy based on a pessimistic download speed (the mean less a
+ * number of standard deviations), so that bursty connections buffer more
+ * than steady ones of the same average speed. Starts once the rest of the
+ * stream should download before playback catches up, keeping a cushion of
+ * audio in hand.
+ */
+public class ConfidencePolicy implements BufferingPolicy
+{
+	/** Delay used if it isn't possible to estimate one */
+	private final static int LONGDELAY=999999;
+
+	/** Seconds buffered ahead for unknown-length streams that download slowly */
+	private final static double LONGBUFFER=30.0;
+
+	private final double deviations,cushion;
+
+	/** Uses 1 standard deviation (roughly the 16th percentile) and 1 second. */
+	public ConfidencePolicy()
+	{
+		this(1.0,1.0);
+	}
+
+	/**
+	 * @param deviations Standard deviations below the mean download speed to
+	 *   assume
+	 * @param cushion Seconds of audio that should always be in hand
+	 * @throws IllegalArgumentException If either is negative
+	 */
+	public ConfidencePolicy(double deviations,double cushion)
+		throws IllegalArgumentException
+	{
+		if(deviations<0 || cushion<0)
+		{
+			throw new IllegalArgumentException("Invalid policy parameters");
+		}
+		this.deviations=deviations;
+		this.cushion=cushion;
+	}
+
+	public int getPlaybackDelay(Status status)
+	{
+		if(status.isDownloadFinished())
+		{
+			return 0;
+		}
+
+		// Never assume less than 1 byte/s, so the sums stay finite
+		double rate=Math.max(1.0,
+			status.getDownloadRate()-deviations*status.getDownloadDeviation());
+		double playbackRate=status.getPlaybackRate();
+		double ahead=status.getSecondsDownloaded()-status.getSecondsDecoded();
+
+		double delay;
+		if(status.getLength()!=StreamPlayer.UNKNOWN)
+		{
+			// Rest must download before playback (measured from the decode position,
+			// which is slightly ahead of what has been heard) gets to the cushion
+			double secondsLeft=status.getSecondsTotal()-status.getSecondsDecoded();
+			double bytesLeft=status.getLength()-status.getBytesDownloaded();
+			delay=Math.max(
+				(Math.min(cushion,secondsLeft)-ahead)*playbackRate/rate,
+				bytesLeft/rate-secondsLeft+cushion);
+		}
+		else if(rate>playbackRate)
+		{
+			delay=(cushion-ahead)*playbackRate/rate;
+		}
+		else
+		{
+			// Will run out eventually, so buffer plenty
+			delay=(LONGBUFFER-ahead)*playbackRate/rate;
+		}
+
+		return (int)Math.max(0,Math.min(delay*1000,LONGDELAY));
+	}
+}
@@ -0,0 +1,224 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+
+import uk.ac.open.audio.AudioExecutor;
+
+/**
+ * Delivers {@link StreamPlayer.Handler} events on a separate thread, so
+ * that the threads raising them never wait for the handler. State changes
+ * and errors are delivered one at a time, in the order raised. Statistics
+ * are coalesced: if the handler is slow, intermediate values are dropped and
+ * only the latest are delivered. A shared worker is used only while there
+ * are events to deliver.
+ */
+class EventDispatcher implements Runnable
+{
+	private final StreamPlayer.Handler h;
+
+	/** State changes (State) and errors (Throwable) waiting for delivery */
+	private final ConcurrentLinkedQueue<Object> events=
+		new ConcurrentLinkedQueue<Object>();
+
+	/** Latest statistics not yet delivered, or null */
+	private final AtomicReference<Stats> stats=new AtomicReference<Stats>();
+
+	/** True while a worker has been asked to deliver events */
+	private final AtomicBoolean scheduled=new AtomicBoolean();
+	/** Worker currently delivering events, or null */
+	private volatile Thread running;
+	private volatile boolean closed;
+
+	/** Values for a single updateStats call. */
+	private static class Stats
+	{
+		private final int download,length,downloadPerSecond,audioPerSecond,
+			estimatedWait;
+		private final double percentage;
+
+		private Stats(int download,int length,double percentage,
+			int downloadPerSecond,int audioPerSecond,int estimatedWait)
+		{
+			this.download=download;
+			this.length=length;
+			this.percentage=percentage;
+			this.downloadPerSecond=downloadPerSecond;
+			this.audioPerSecond=audioPerSecond;
+			this.estimatedWait=estimatedWait;
+		}
+	}
+
+	/**
+	 * @param h Handler that receives events
+	 */
+	EventDispatcher(StreamPlayer.Handler h)
+	{
+		this.h=h;
+	}
+
+	/** Gets a worker to deliver events, unless one already is. */
+	private void schedule()
+	{
+		if(!closed && scheduled.compareAndSet(false,true))
+		{
+			AudioExecutor.execute(this,"Stream events",Thread.NORM_PRIORITY);
+		}
+	}
+
+	/**
+	 * Queues a state change.
+	 * @param s New state
+	 */
+	void streamChangedState(StreamPlayer.State s)
+	{
+		events.add(s);
+		schedule();
+	}
+
+	/**
+	 * Queues an error.
+	 * @param t Error
+	 */
+	void streamError(Throwable t)
+	{
+		events.add(t);
+		schedule();
+	}
+
+	/**
+	 * Sets the latest statistics, replacing any not yet delivered. Parameters
+	 * are as for {@link StreamPlayer.Handler#updateStats}.
+	 */
+	void updateStats(int download,int length,double percentage,
+		int downloadPerSecond,int audioPerSecond,int estimatedWait)
+	{
+		stats.set(new Stats(download,length,percentage,downloadPerSecond,
+			audioPerSecond,estimatedWait));
+		schedule();
+	}
+
+	/**
+	 * Stops delivering events; any still queued are discarded. Waits for any
+	 * callback in progress, unless called from within one.
+	 */
+	void close()
+	{
+		closed=true;
+		if(Thread.currentThread()==running)
+		{
+			return;
+		}
+		synchronized(this)
+		{
+			while(running!=null)
+			{
+				try
+				{
+					wait();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		}
+	}
+
+	/** Delivers events until there are none left; called on the worker. */
+	public void run()
+	{
+		running=Thread.currentThread();
+		try
+		{
+			while(!closed)
+			{
+				Stats latest=stats.getAndSet(null);
+				if(latest!=null)
+				{
+					try
+					{
+						h.updateStats(latest.download,latest.length,latest.percentage,
+							latest.downloadPerSecond,latest.audioPerSecond,
+							latest.estimatedWait);
+					}
+					catch(Throwable t)
+					{
+						report(t);
+					}
+				}
+
+				Object event=events.poll();
+				if(event!=null)
+				{
+					try
+					{
+						if(event instanceof StreamPlayer.State)
+						{
+							h.streamChangedState((StreamPlayer.State)event);
+						}
+						else
+						{
+							h.streamError((Throwable)event);
+						}
+					}
+					catch(Throwable t)
+					{
+						report(t);
+					}
+				}
+
+				if(latest==null && event==null)
+				{
+					break;
+				}
+			}
+		}
+		finally
+		{
+			running=null;
+			scheduled.set(false);
+			synchronized(this)
+			{
+				notifyAll();
+			}
+		}
+
+		// Catch events raised after the last check but before scheduled was reset
+		if(!events.isEmpty() || stats.get()!=null)
+		{
+			schedule();
+		}
+	}
+
+	/**
+	 * Logs an exception thrown by the handler, so that it doesn't stop later
+	 * events being delivered.
+	 * @param t Exception
+	 */
+	private static void report(Throwable t)
+	{
+		System.err.println("[uk.ac.open.audio.streaming.EventDispatcher] " +
+			"Error in stream handler: "+t);
+		t.printStackTrace();
+	}
+}
@@ -0,0 +1,51 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+import java.util.*;
+
+/**
+ * Reporter that writes all metric values to standard error on one line.
+ */
+public class LogMetricsReporter implements MetricsReporter
+{
+	public void report(SortedMap<String,Number> values)
+	{
+		StringBuilder line=new StringBuilder(
+			"[uk.ac.open.audio.streaming.Metrics]");
+		for(Map.Entry<String,Number> value : values.entrySet())
+		{
+			line.append(' ');
+			line.append(value.getKey());
+			line.append('=');
+			Number number=value.getValue();
+			if(number instanceof Double)
+			{
+				line.append(String.format("%.1f",number.doubleValue()));
+			}
+			else
+			{
+				line.append(number);
+			}
+		}
+		System.err.println(line);
+	}
+}
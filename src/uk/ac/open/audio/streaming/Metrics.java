@@ -0,0 +1,338 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.ObjectName;
+
+import uk.ac.open.audio.AudioExecutor;
+
+/**
+ * Registry of streaming metrics (timings, counts and queue depths), shared
+ * by all players in the JVM. Metrics are created on first use and never
+ * removed. Recording is lock-free and cheap enough for per-frame use.
+ * <p>
+ * Current values are available from {@link #getValues()}, over JMX as
+ * attributes of the MBean {@link #OBJECTNAME}, and to a reporter set with
+ * {@link #setReporter}.
+ */
+public final class Metrics
+{
+	/** Name of the JMX MBean */
+	public final static String OBJECTNAME="uk.ac.open.audio:type=Metrics";
+
+	private final static ConcurrentMap<String,Metric> metrics=
+		new ConcurrentHashMap<String,Metric>();
+
+	/** Reporter task, or null if none */
+	private static ScheduledFuture<?> reporterTask;
+
+	static
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				new MetricsMBean(),new ObjectName(OBJECTNAME));
+		}
+		catch(Throwable t)
+		{
+			// Not allowed in a sandboxed applet, for instance
+			System.err.println("[uk.ac.open.audio.streaming.Metrics] " +
+				"JMX not available: "+t);
+		}
+	}
+
+	private Metrics()
+	{
+	}
+
+	/** Base class for metrics. */
+	public static abstract class Metric
+	{
+		private final String name;
+
+		Metric(String name)
+		{
+			this.name=name;
+		}
+
+		/** @return Name of metric */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Adds current values to a map.
+		 * @param values Map of value names (the metric name, or the metric name
+		 *   followed by a dot and a suffix) to values
+		 */
+		abstract void getValues(Map<String,Number> values);
+
+		/** Resets to initial state. */
+		abstract void reset();
+	}
+
+	/** Count of events or quantities. */
+	public static final class Counter extends Metric
+	{
+		private final AtomicLong count=new AtomicLong();
+
+		Counter(String name)
+		{
+			super(name);
+		}
+
+		/** Adds one. */
+		public void increment()
+		{
+			count.incrementAndGet();
+		}
+
+		/** @param amount Amount to add */
+		public void add(long amount)
+		{
+			count.addAndGet(amount);
+		}
+
+		/** @return Current count */
+		public long getCount()
+		{
+			return count.get();
+		}
+
+		@Override
+		void getValues(Map<String,Number> values)
+		{
+			values.put(getName(),getCount());
+		}
+
+		@Override
+		void reset()
+		{
+			count.set(0);
+		}
+	}
+
+	/**
+	 * Distribution of non-negative values, in buckets by powers of two, so
+	 * percentiles are accurate to within a factor of two.
+	 */
+	public static final class Histogram extends Metric
+	{
+		/** Bucket 0 holds 0; bucket i holds values from 2^(i-1) to 2^i-1 */
+		private final AtomicLongArray buckets=new AtomicLongArray(64);
+		private final AtomicLong count=new AtomicLong(),sum=new AtomicLong(),
+			max=new AtomicLong();
+
+		Histogram(String name)
+		{
+			super(name);
+		}
+
+		/** @param value Value to record (negative values count as 0) */
+		public void record(long value)
+		{
+			value=Math.max(value,0);
+			buckets.incrementAndGet(64-Long.numberOfLeadingZeros(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			while(true)
+			{
+				long current=max.get();
+				if(value<=current || max.compareAndSet(current,value))
+				{
+					break;
+				}
+			}
+		}
+
+		/** @return Number of values recorded */
+		public long getCount()
+		{
+			return count.get();
+		}
+
+		/** @return Mean of values recorded, or 0 if none */
+		public double getMean()
+		{
+			long n=count.get();
+			return n==0 ? 0.0 : sum.get()/(double)n;
+		}
+
+		/** @return Largest value recorded, or 0 if none */
+		public long getMax()
+		{
+			return max.get();
+		}
+
+		/**
+		 * @param fraction Fraction of values, from 0 to 1
+		 * @return Upper bound of the bucket containing that percentile (but no
+		 *   more than the maximum), or 0 if none recorded
+		 */
+		public long getPercentile(double fraction)
+		{
+			long n=count.get();
+			long target=Math.max(1,(long)Math.ceil(n*fraction));
+			long seen=0;
+			for(int i=0;i<64;i++)
+			{
+				seen+=buckets.get(i);
+				if(seen>=target)
+				{
+					return i==0 ? 0 : Math.min(getMax(),(1L<<i)-1);
+				}
+			}
+			return getMax();
+		}
+
+		@Override
+		void getValues(Map<String,Number> values)
+		{
+			values.put(getName()+".count",getCount());
+			values.put(getName()+".mean",getMean());
+			values.put(getName()+".p50",getPercentile(0.5));
+			values.put(getName()+".p90",getPercentile(0.9));
+			values.put(getName()+".p99",getPercentile(0.99));
+			values.put(getName()+".max",getMax());
+		}
+
+		@Override
+		void reset()
+		{
+			for(int i=0;i<64;i++)
+			{
+				buckets.set(i,0);
+			}
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+	}
+
+	/**
+	 * @param name Metric name
+	 * @return Counter with that name, created if necessary
+	 * @throws IllegalArgumentException If the name is used by another type
+	 */
+	public static Counter counter(String name) throws IllegalArgumentException
+	{
+		Metric metric=metrics.get(name);
+		if(metric==null)
+		{
+			metrics.putIfAbsent(name,new Counter(name));
+			metric=metrics.get(name);
+		}
+		if(!(metric instanceof Counter))
+		{
+			throw new IllegalArgumentException("Not a counter: "+name);
+		}
+		return (Counter)metric;
+	}
+
+	/**
+	 * @param name Metric name
+	 * @return Histogram with that name, created if necessary
+	 * @throws IllegalArgumentException If the name is used by another type
+	 */
+	public static Histogram histogram(String name) throws IllegalArgumentException
+	{
+		Metric metric=metrics.get(name);
+		if(metric==null)
+		{
+			metrics.putIfAbsent(name,new Histogram(name));
+			metric=metrics.get(name);
+		}
+		if(!(metric instanceof Histogram))
+		{
+			throw new IllegalArgumentException("Not a histogram: "+name);
+		}
+		return (Histogram)metric;
+	}
+
+	/**
+	 * @return Current values of all metrics, sorted by name (histograms give
+	 *   several values, with suffixes such as '.p99')
+	 */
+	public static SortedMap<String,Number> getValues()
+	{
+		SortedMap<String,Number> values=new TreeMap<String,Number>();
+		for(Metric metric : metrics.values())
+		{
+			metric.getValues(values);
+		}
+		return values;
+	}
+
+	/** Resets all metrics to zero. */
+	public static void reset()
+	{
+		for(Metric metric : metrics.values())
+		{
+			metric.reset();
+		}
+	}
+
+	/**
+	 * Sets a reporter to receive all values at regular intervals, replacing
+	 * any previous one.
+	 * @param reporter Reporter, or null to stop reporting
+	 * @param period Interval in milliseconds
+	 * @throws IllegalArgumentException If period is not positive
+	 */
+	public static synchronized void setReporter(final MetricsReporter reporter,
+		int period) throws IllegalArgumentException
+	{
+		if(reporter!=null && period<=0)
+		{
+			throw new IllegalArgumentException("Invalid period: "+period);
+		}
+		if(reporterTask!=null)
+		{
+			reporterTask.cancel(false);
+			reporterTask=null;
+		}
+		if(reporter!=null)
+		{
+			reporterTask=AudioExecutor.getScheduler().scheduleAtFixedRate(
+				new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							reporter.report(getValues());
+						}
+						catch(Throwable t)
+						{
+							// Otherwise the scheduler would silently stop reporting
+							t.printStackTrace();
+						}
+					}
+				},period,period,TimeUnit.MILLISECONDS);
+		}
+	}
+}
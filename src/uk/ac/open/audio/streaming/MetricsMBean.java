@@ -0,0 +1,97 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+import java.util.*;
+
+import javax.management.*;
+
+/**
+ * Exposes {@link Metrics} over JMX. Each value is a read-only attribute;
+ * the set of attributes grows as metrics are created.
+ */
+class MetricsMBean implements DynamicMBean
+{
+	public Object getAttribute(String attribute) throws AttributeNotFoundException
+	{
+		Number value=Metrics.getValues().get(attribute);
+		if(value==null)
+		{
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes)
+	{
+		SortedMap<String,Number> values=Metrics.getValues();
+		AttributeList list=new AttributeList();
+		for(String attribute : attributes)
+		{
+			Number value=values.get(attribute);
+			if(value!=null)
+			{
+				list.add(new Attribute(attribute,value));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName,Object[] params,String[] signature)
+		throws ReflectionException
+	{
+		if(actionName.equals("reset") && (params==null || params.length==0))
+		{
+			Metrics.reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo()
+	{
+		SortedMap<String,Number> values=Metrics.getValues();
+		MBeanAttributeInfo[] attributes=new MBeanAttributeInfo[values.size()];
+		int i=0;
+		for(Map.Entry<String,Number> value : values.entrySet())
+		{
+			attributes[i++]=new MBeanAttributeInfo(value.getKey(),
+				value.getValue().getClass().getName(),value.getKey(),
+				true,false,false);
+		}
+		return new MBeanInfo(getClass().getName(),"Streaming metrics",attributes,
+			null,new MBeanOperationInfo[]
+			{
+				new MBeanOperationInfo("reset","Resets all metrics to zero",
+					new MBeanParameterInfo[0],"void",MBeanOperationInfo.ACTION)
+			},null);
+	}
+}
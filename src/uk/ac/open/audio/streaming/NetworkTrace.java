@@ -0,0 +1,293 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Bandwidth and latency of a simulated network connection over time, used
+ * by {@link ThrottledInputStream} and {@link ThrottledOutputStream}. A trace
+ * is a list of segments, each with a duration, a speed and a latency; it
+ * repeats once it reaches the end. A segment with zero speed is a stall.
+ * <p>
+ * The time each byte arrives depends only on the trace and its position in
+ * the stream, so runs over the same trace are repeatable (apart from
+ * scheduling delays).
+ * <p>
+ * Traces can be read from text, one segment per line:
+ * <pre>
+ * # duration (ms) bytes per second [latency (ms)]
+ * 5000 40000 50
+ * 8000 0
+ * </pre>
+ */
+public class NetworkTrace
+{
+	private final int[] durations,speeds,latencies;
+	private final long loopDuration;
+	private final double loopBytes;
+
+	/**
+	 * @param durations Duration of each segment in milliseconds
+	 * @param speeds Speed during each segment in bytes per second
+	 * @param latencies Latency during each segment in milliseconds (delay
+	 *   before sent data arrives)
+	 * @throws IllegalArgumentException If the arrays are empty or have
+	 *   different lengths, any value is negative or duration is zero, or no
+	 *   data is ever sent
+	 */
+	public NetworkTrace(int[] durations,int[] speeds,int[] latencies)
+		throws IllegalArgumentException
+	{
+		if(durations.length==0 || speeds.length!=durations.length ||
+			latencies.length!=durations.length)
+		{
+			throw new IllegalArgumentException("Invalid segment arrays");
+		}
+		long totalDuration=0;
+		double totalBytes=0;
+		for(int i=0;i<durations.length;i++)
+		{
+			if(durations[i]<=0 || speeds[i]<0 || latencies[i]<0)
+			{
+				throw new IllegalArgumentException("Invalid segment "+i);
+			}
+			totalDuration+=durations[i];
+			totalBytes+=getBytes(durations[i],speeds[i]);
+		}
+		if(totalBytes==0)
+		{
+			throw new IllegalArgumentException("Trace never sends any data");
+		}
+		this.durations=durations.clone();
+		this.speeds=speeds.clone();
+		this.latencies=latencies.clone();
+		this.loopDuration=totalDuration;
+		this.loopBytes=totalBytes;
+	}
+
+	/**
+	 * @param bytesPerSecond Speed
+	 * @return Trace with constant speed and no latency
+	 * @throws IllegalArgumentException If speed is not positive
+	 */
+	public static NetworkTrace constant(int bytesPerSecond)
+		throws IllegalArgumentException
+	{
+		return new NetworkTrace(new int[] {1000},new int[] {bytesPerSecond},
+			new int[] {0});
+	}
+
+	/**
+	 * Reads a trace in the text format described above.
+	 * @param reader Source of text (not closed)
+	 * @return Trace
+	 * @throws IOException Any error reading, or if the text is not valid
+	 */
+	public static NetworkTrace read(Reader reader) throws IOException
+	{
+		List<int[]> segments=new ArrayList<int[]>();
+		BufferedReader buffered=new BufferedReader(reader);
+		int lineNumber=0;
+		while(true)
+		{
+			String line=buffered.readLine();
+			if(line==null)
+			{
+				break;
+			}
+			lineNumber++;
+			int hash=line.indexOf('#');
+			if(hash!=-1)
+			{
+				line=line.substring(0,hash);
+			}
+			line=line.trim();
+			if(line.length()==0)
+			{
+				continue;
+			}
+			String[] values=line.split("\\s+");
+			if(values.length<2 || values.length>3)
+			{
+				throw new IOException("Invalid trace line "+lineNumber);
+			}
+			try
+			{
+				segments.add(new int[] {Integer.parseInt(values[0]),
+					Integer.parseInt(values[1]),
+					values.length==3 ? Integer.parseInt(values[2]) : 0});
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IOException("Invalid trace line "+lineNumber);
+			}
+		}
+
+		int[] durations=new int[segments.size()],speeds=new int[segments.size()],
+			latencies=new int[segments.size()];
+		for(int i=0;i<durations.length;i++)
+		{
+			int[] segment=segments.get(i);
+			durations[i]=segment[0];
+			speeds[i]=segment[1];
+			latencies[i]=segment[2];
+		}
+		try
+		{
+			return new NetworkTrace(durations,speeds,latencies);
+		}
+		catch(IllegalArgumentException e)
+		{
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * @param duration Time in milliseconds
+	 * @param speed Bytes per second
+	 * @return Bytes sent in that time
+	 */
+	private static double getBytes(long duration,int speed)
+	{
+		return duration*(double)speed/1000.0;
+	}
+
+	/**
+	 * @param bytes Number of bytes
+	 * @return Time in milliseconds from the start until that many bytes have
+	 *   been sent (not counting latency)
+	 */
+	public long getSendTime(long bytes)
+	{
+		if(bytes<=0)
+		{
+			return 0;
+		}
+
+		// Whole loops first; data ending exactly on a loop boundary is sent
+		// within that loop, not after any stall at its end
+		long loops=(long)(bytes/loopBytes);
+		double remaining=bytes-loops*loopBytes;
+		if(remaining<=0)
+		{
+			loops--;
+			remaining+=loopBytes;
+		}
+		long time=loops*loopDuration;
+		for(int i=0;i<durations.length;i++)
+		{
+			double segmentBytes=getBytes(durations[i],speeds[i]);
+			if(speeds[i]>0 && remaining<=segmentBytes)
+			{
+				return time+(long)Math.ceil(remaining*1000.0/speeds[i]);
+			}
+			remaining-=segmentBytes;
+			time+=durations[i];
+		}
+		// Only reached due to rounding
+		return time;
+	}
+
+	/**
+	 * @param time Time in milliseconds from start
+	 * @return Index of segment in effect at that time
+	 */
+	private int getSegment(long time)
+	{
+		time%=loopDuration;
+		for(int i=0;i<durations.length;i++)
+		{
+			if(time<durations[i])
+			{
+				return i;
+			}
+			time-=durations[i];
+		}
+		return durations.length-1;
+	}
+
+	/**
+	 * @param time Time in milliseconds from start
+	 * @return Speed in bytes per second at that time
+	 */
+	public int getSpeed(long time)
+	{
+		return speeds[getSegment(time)];
+	}
+
+	/**
+	 * @param time Time in milliseconds from start
+	 * @return Latency in milliseconds at that time
+	 */
+	public int getLatency(long time)
+	{
+		return latencies[getSegment(time)];
+	}
+
+	/**
+	 * @param bytes Number of bytes
+	 * @return Time in milliseconds from the start until that many bytes have
+	 *   arrived (send time plus latency)
+	 */
+	public long getArrivalTime(long bytes)
+	{
+		long send=getSendTime(bytes);
+		return send+getLatency(send);
+	}
+
+	/**
+	 * Waits until a stream has reached the given time.
+	 * @param due Target time from System.currentTimeMillis
+	 * @throws InterruptedIOException If the thread is interrupted
+	 */
+	static void waitUntil(long due) throws InterruptedIOException
+	{
+		while(true)
+		{
+			long now=System.currentTimeMillis();
+			if(now>=due)
+			{
+				return;
+			}
+			try
+			{
+				Thread.sleep(due-now);
+			}
+			catch(InterruptedException e)
+			{
+				throw new InterruptedIOException("Interrupted during simulated delay");
+			}
+		}
+	}
+
+	/**
+	 * @param time Time in milliseconds from start
+	 * @param ms Duration of a read or write in milliseconds
+	 * @return Suitable number of bytes to transfer at once, so that data
+	 *   arrives in small pieces rather than large bursts
+	 */
+	int getChunkSize(long time,int ms)
+	{
+		return Math.max(64,(int)getBytes(ms,getSpeed(time)));
+	}
+}
@@ -51,6 +51,8 @@ public class PlayerProgress extends JComponent
 	private int lastMilliseconds,maxMilliseconds;
 	private int playMilliseconds;
 	private byte[][] lastData=new byte[OLDWAVEFORM][]; // Audio data
+	private int[] lastLength=new int[OLDWAVEFORM];
+	private byte[] spareData; // Array no longer in lastData, for reuse
 	private boolean stereo;
 	private Image playPauseImage;
 	private int pauseTime =0;
@@ -381,16 +383,39 @@ public class PlayerProgress extends JComponent
 
 	/**
 	 * Sets last audio data for waveform display; also updates playback progress.
-	 * @param block Last audio data
+	 * The data is copied, so the caller can reuse the array.
+	 * @param block Last audio data (may be null)
+	 * @param length Number of bytes of data in block
 	 * @param stereo True for stereo
 	 * @param playPercentage Percentage of audio file that has now been played
 	 *   (may be StreamPlayer.UNKNOWN)
 	 */
-	public synchronized void setLastData(byte[] block,boolean stereo,double playPercentage)
+	public synchronized void setLastData(byte[] block,int length,boolean stereo,
+		double playPercentage)
 	{
 		if(close) return;
 
-		lastData[0]=block;
+		byte[] previous=lastData[0];
+		if(block==null)
+		{
+			lastData[0]=null;
+		}
+		else
+		{
+			byte[] copy=spareData;
+			spareData=null;
+			if(copy==null || copy.length<length)
+			{
+				copy=new byte[length];
+			}
+			System.arraycopy(block,0,copy,0,length);
+			lastData[0]=copy;
+			lastLength[0]=length;
+		}
+		if(previous!=null && previous!=lastData[1])
+		{
+			spareData=previous;
+		}
 		this.stereo=stereo;
 		if(playPercentage!=StreamPlayer.UNKNOWN)
 		{
@@ -518,7 +543,7 @@ public class PlayerProgress extends JComponent
 					buffer2.setColor(new Color(mainFG.getRed(),mainFG.getGreen(),mainFG.getBlue(),opacity));
 
 					short[] data=AudioUtil.byteToShort(
-							bytes, Math.min(bytes.length,getWidth()*4), false);
+							bytes, Math.min(lastLength[history],getWidth()*4), false);
 					int x=0;
 					GeneralPath path=new GeneralPath();
 					for(int i=0;i<data.length;x++)
@@ -548,9 +573,18 @@ public class PlayerProgress extends JComponent
 					buffer2.draw(path);
 				}
 			}
-			for(int i=lastData.length-1;i>0;i--)
+			synchronized(this)
 			{
-				lastData[i]=lastData[i-1];
+				byte[] dropped=lastData[lastData.length-1];
+				for(int i=lastData.length-1;i>0;i--)
+				{
+					lastData[i]=lastData[i-1];
+					lastLength[i]=lastLength[i-1];
+				}
+				if(dropped!=null && dropped!=lastData[lastData.length-1])
+				{
+					spareData=dropped;
+				}
 			}
 
 			buffer2.setColor(timeFG);
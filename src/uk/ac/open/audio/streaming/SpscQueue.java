@@ -0,0 +1,111 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+/**
+ * Bounded queue for handing objects from one thread to another without
+ * locking. Only one thread may call {@link #offer}, and only one (other)
+ * thread may call {@link #poll}; {@link #size} may be called from anywhere.
+ * Neither method blocks, so threads that need to wait must arrange their own
+ * wakeup once they see the queue full or empty.
+ */
+class SpscQueue<T>
+{
+	private final Object[] items;
+
+	/** Number of items ever removed; written only by the consumer */
+	private volatile long head;
+	/** Number of items ever added; written only by the producer */
+	private volatile long tail;
+
+	/**
+	 * @param capacity Maximum number of items in queue
+	 * @throws IllegalArgumentException If capacity is less than 1
+	 */
+	SpscQueue(int capacity) throws IllegalArgumentException
+	{
+		if(capacity<1)
+		{
+			throw new IllegalArgumentException("Invalid capacity: "+capacity);
+		}
+		items=new Object[capacity];
+	}
+
+	/**
+	 * Adds an item to the end of the queue. Producer thread only.
+	 * @param item Item to add (not null)
+	 * @return True if added, false if the queue was full
+	 */
+	boolean offer(T item)
+	{
+		long t=tail;
+		if(t-head==items.length)
+		{
+			return false;
+		}
+		items[(int)(t%items.length)]=item;
+		// Volatile write publishes the item to the consumer
+		tail=t+1;
+		return true;
+	}
+
+	/**
+	 * Removes the item at the start of the queue. Consumer thread only.
+	 * @return Item, or null if the queue was empty
+	 */
+	@SuppressWarnings("unchecked")
+	T poll()
+	{
+		long h=head;
+		if(h==tail)
+		{
+			return null;
+		}
+		int index=(int)(h%items.length);
+		T item=(T)items[index];
+		items[index]=null;
+		// Volatile write frees the slot for the producer
+		head=h+1;
+		return item;
+	}
+
+	/**
+	 * @return Number of items in queue (may be out of date by the time it
+	 *   returns, unless called from the only thread that changes it)
+	 */
+	int size()
+	{
+		long h=head;
+		return (int)(tail-h);
+	}
+
+	/** @return True if queue is empty */
+	boolean isEmpty()
+	{
+		return size()==0;
+	}
+
+	/** @return Maximum number of items in queue */
+	int getCapacity()
+	{
+		return items.length;
+	}
+}
@@ -20,9 +20,11 @@ If not, see <http://www.gnu.org/licenses/>.
 */
 package uk.ac.open.audio.streaming;
 
-import java.awt.*;
 import java.io.*;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 
 import uk.ac.open.audio.*;
 
@@ -38,40 +40,68 @@ public class StreamPlayer
 	public final static int UNKNOWN=-1;
 
 	private final static int BUFFERSIZE=2048;
-	private final static int AUDIOBLOCKBUFFER=5;
-	private final static int MINSAMPLESBEFORESTART=4410; // 100ms of audio
+	private final static int MINMSBEFORESTART=100;
 
 	/**
-	 * Minimum size of audio data blocks (blocks read from decoder are combined
-	 * until they reach this size)
+	 * Size of audio data blocks at 44.1 kHz stereo, scaled for other formats
+	 * (the decoder fills each block completely, except at end of stream)
 	 */
 	private final static int MINDECODEDBLOCKSIZE=4608;
 
 	/**
-	 * If non-zero, limits downloading to this many bytes per second.
+	 * Limits and starting point for the amount of audio decoded ahead of
+	 * playback, in milliseconds (the start is 5 blocks, about 130ms)
 	 */
-	private static int ARTIFICIALDELAY_BPS=0;
+	private final static int MINDECODEAHEADMS=100,MAXDECODEAHEADMS=1000,
+		INITIALDECODEAHEADMS=130;
+
+	/** Most decoded blocks that can be waiting (blocks are about 26ms) */
+	private final static int MAXDECODEDBLOCKS=(int)((long)MAXDECODEAHEADMS*
+		44100/((MINDECODEDBLOCKSIZE/4)*1000L))+1;
+
+	/** A block that takes longer than this fraction of its length to decode is slow */
+	private final static double SLOWDECODE=0.5;
+
+	/** Milliseconds of audio decoded without trouble before lowering the target */
+	private final static int STABLEMS=20000;
+
+	/** Change to decode-ahead target after trouble, and when stable */
+	private final static double RAISEFACTOR=1.5,LOWERFACTOR=0.9;
+
+	/**
+	 * Decode-ahead target most recently set for each decoder class, used to
+	 * start new players with that decoder
+	 */
+	private final static ConcurrentMap<Class<?>,Integer> lastDecodeAheadMs=
+		new ConcurrentHashMap<Class<?>,Integer>();
 
 	/**
 	 * If enabled, logs additional messages.
 	 */
 	private static boolean DETAILED_LOG = false;
 
+	// Metrics shared by all players
+	private final static Metrics.Histogram TIMETOFIRSTBYTE=
+		Metrics.histogram("stream.timeToFirstByteMs"),
+		TIMETOREADY=Metrics.histogram("stream.timeToReadyMs"),
+		UNDERRUNTIME=Metrics.histogram("stream.bufferEmptyMs"),
+		DECODEDBLOCKS=Metrics.histogram("stream.decodedBlocks"),
+		DECODETIME=Metrics.histogram("stream.decodeMicros"),
+		DECODEAHEAD=Metrics.histogram("stream.decodeAheadMs"),
+		BUFFEREDBYTES=Metrics.histogram("stream.bufferedBytes");
+	private final static Metrics.Counter UNDERRUNS=
+		Metrics.counter("stream.bufferEmpty");
+
+	/** Policy used by new players unless they set their own */
+	private static BufferingPolicy defaultBufferingPolicy=new ThresholdPolicy();
+
 	/**
-	 * Sets download delay simulation.
-	 * @param bps Simulated bytes per second
+	 * Sets the buffering policy used by players created after this call.
+	 * @param policy Policy, or null for the original {@link ThresholdPolicy}
 	 */
-	public static void simulateDownloads(int bps)
+	public static void setDefaultBufferingPolicy(BufferingPolicy policy)
 	{
-		ARTIFICIALDELAY_BPS=bps;
-		if(bps==0)
-		{
-			log("Download delay disabled", false);
-		}
-		else
-		{
-			log("Simulating downloads at " + ARTIFICIALDELAY_BPS + " bytes/s", false);
-		}
+		defaultBufferingPolicy=policy==null ? new ThresholdPolicy() : policy;
 	}
 
 	/**
@@ -90,19 +120,41 @@ public class StreamPlayer
 
 	private final Class<? extends StreamableDecoder> decoderClass;
 
-	private final LinkedList<DataBlock> data=new LinkedList<DataBlock>();
-	private boolean downloadFinished=false,playFinished=false;
+	private final ChunkStore data=new ChunkStore(BUFFERSIZE);
+	private volatile boolean downloadFinished=false,playFinished=false;
 	private long lastBlock;
-	private final LinkedList<AudioBlock> nextAudio=new LinkedList<AudioBlock>();
-	private boolean isFromMemory;
-
-	// Current statistics
+	/** Decoded audio waiting to play (decoder thread to playback thread) */
+	private volatile SpscQueue<AudioBlock> nextAudio=
+		new SpscQueue<AudioBlock>(MAXDECODEDBLOCKS);
+	/**
+	 * Played blocks for reuse (playback thread to decoder thread); enough for
+	 * a full buffer, plus one each being decoded and played
+	 */
+	private final SpscQueue<AudioBlock> freeBlocks=
+		new SpscQueue<AudioBlock>(MAXDECODEDBLOCKS+2);
+	/** Milliseconds of audio to decode ahead of playback */
+	private final AtomicInteger decodeAheadMs;
+	/** Decoder thread if parked waiting for data, or for space in nextAudio */
+	private volatile Thread dataWaiter,spaceWaiter;
+
+	// Current statistics (written by one thread each, read without locking)
 	private final int length;
-	private int totalSamplesDecoded,firstFrameBytes,firstFrameSamples;
-	private double averageBytesPerSecondPlayback=0.0;
-	private double recentBytesPerSecondDownload=0.0;
+	private volatile int totalSamplesDecoded,firstFrameBytes,firstFrameSamples;
 
-	private boolean close;
+	/** Format of decoded audio; null until the decoder has started */
+	private volatile PlaybackDevice.Format format;
+	private volatile double averageBytesPerSecondPlayback=0.0;
+	private final BandwidthEstimator bandwidth=new BandwidthEstimator();
+	private volatile BufferingPolicy bufferingPolicy=defaultBufferingPolicy;
+
+	private volatile boolean close;
+
+	/** Time player was created */
+	private final long startTime=System.currentTimeMillis();
+	/** True once the stream has first been ready to play */
+	private volatile boolean everReady;
+	/** Time BUFFEREMPTY state began */
+	private volatile long bufferEmptyTime;
 
 	/** States that the stream can be in. */
 	public enum State
@@ -119,33 +171,53 @@ public class StreamPlayer
 	  CLOSED
 	}
 
-	private State currentState = WAITBEFOREPLAY;
+	private final AtomicReference<State> currentState=
+		new AtomicReference<State>(WAITBEFOREPLAY);
 
 	private AudioDecoder audioDecoder;
 	private Downloader downloader;
-	private AnnoyingTimer annoyingTimer;
 
-	/** A block of audio data. */
+	/** Synchronizes scheduling of readiness checks */
+	private final Object readyLock=new Object();
+	/** Next readiness check, or null if none */
+	private ScheduledFuture<?> readyCheck;
+	/** Time readyCheck is due */
+	private long readyDue;
+
+	/**
+	 * A block of audio data. Blocks are pooled; pass each one to
+	 * {@link StreamPlayer#recycle(AudioBlock)} once its data has been used.
+	 */
 	public static class AudioBlock
 	{
-		private byte[] data;
+		private final byte[] data;
+		private final ByteBuffer buffer;
+		private int length;
 		private double percentagePlayed;
 
-		private AudioBlock(byte[] data, double percentagePlayed)
+		private AudioBlock(int size)
 		{
-			super();
-			this.data=data;
-			this.percentagePlayed=percentagePlayed;
+			data=new byte[size];
+			buffer=ByteBuffer.wrap(data);
 		}
 
 		/**
-		 * @return Audio data
+		 * @return Audio data (only the first {@link #getLength()} bytes are
+		 *   valid)
 		 */
 		public byte[] getData()
 		{
 			return data;
 		}
 
+		/**
+		 * @return Number of bytes of audio data
+		 */
+		public int getLength()
+		{
+			return length;
+		}
+
 		/**
 		 * @return Percentage of data played so far, up to and including this
 		 *   audio block
@@ -157,17 +229,50 @@ public class StreamPlayer
 	}
 
 
-	private synchronized void setState(State newState)
+	/**
+	 * Changes state, if it is still as expected, and queues an event for the
+	 * handler.
+	 * @param expected Expected current state
+	 * @param newState New state
+	 * @return True if state was changed
+	 */
+	private boolean changeState(State expected,State newState)
 	{
-		currentState=newState;
-		h.streamChangedState(currentState);
+		if(!currentState.compareAndSet(expected,newState))
+		{
+			return false;
+		}
+		long now=System.currentTimeMillis();
+		if(newState==READYTOPLAY && !everReady)
+		{
+			everReady=true;
+			TIMETOREADY.record(now-startTime);
+		}
+		else if(newState==BUFFEREMPTY)
+		{
+			bufferEmptyTime=now;
+			UNDERRUNS.increment();
+			// Decoder couldn't keep up, so give it more slack
+			adjustDecodeAhead(RAISEFACTOR);
+		}
+		if(expected==BUFFEREMPTY)
+		{
+			UNDERRUNTIME.record(now-bufferEmptyTime);
+		}
+		events.streamChangedState(newState);
 		log("Stream state: " + newState, true);
+		return true;
 	}
 
 	private final Handler h;
+	/** Delivers all handler events except streamFormat */
+	private final EventDispatcher events;
 
 	/**
 	 * Handler receives callbacks from the StreamPlayer when it changes state.
+	 * Apart from streamFormat, callbacks are made on a separate event thread,
+	 * one at a time and in order; updateStats calls may be skipped if the
+	 * handler is slow, so that only the latest values are delivered.
 	 */
 	public interface Handler
 	{
@@ -184,6 +289,14 @@ public class StreamPlayer
 		 */
 		public void streamChangedState(State s);
 
+		/**
+		 * Called from the decoder thread once the format of the audio is known,
+		 * before any is decoded. Called again each time the stream is rewound.
+		 * @param nativeFormat Format that needs least conversion
+		 * @return Format the decoder should produce
+		 */
+		public PlaybackDevice.Format streamFormat(PlaybackDevice.Format nativeFormat);
+
 		/**
 		 * Called periodically to update statistics.
 		 * @param download Bytes downloaded
@@ -200,28 +313,6 @@ public class StreamPlayer
 				int audioPerSecond,int estimatedWait);
 	}
 
-	private class DataBlock
-	{
-		private final byte[] data;
-		private final int ms;
-
-		private DataBlock(byte[] data, int ms)
-		{
-			this.data=data;
-			this.ms=ms;
-		}
-
-		byte[] getData()
-		{
-			return data;
-		}
-
-		int getTime()
-		{
-			return ms;
-		}
-	}
-
 	/**
 	 * Constructs the player and begins streaming.
 	 * @param input
@@ -232,15 +323,28 @@ public class StreamPlayer
 	public StreamPlayer(InputStream input, int length, Class<? extends StreamableDecoder> decoderClass, Handler h)
 	{
 		this.h=h;
+		this.events=new EventDispatcher(h);
 		this.decoderClass=decoderClass;
 		this.length=length;
-		this.isFromMemory=input instanceof ByteArrayInputStream;
+		int decodeAhead=getStartingDecodeAhead(decoderClass);
+		lastDecodeAheadMs.put(decoderClass,decodeAhead);
+		this.decodeAheadMs=new AtomicInteger(decodeAhead);
 
 		lastBlock=System.currentTimeMillis();
 		new Downloader(input);
 		new AudioDecoder();
 	}
 
+	/**
+	 * Sets the policy that decides when playback can start.
+	 * @param policy Policy, or null for the default
+	 */
+	public void setBufferingPolicy(BufferingPolicy policy)
+	{
+		bufferingPolicy=policy==null ? defaultBufferingPolicy : policy;
+		checkReady();
+	}
+
 	/** Rewinds ready to play the stream back from the start again. */
 	public void rewind()
 	{
@@ -248,43 +352,45 @@ public class StreamPlayer
 		new AudioDecoder();
 	}
 
-	private class Downloader extends Thread
+	/** Downloads the stream on a shared worker. */
+	private class Downloader implements Runnable
 	{
 		private final InputStream input;
+		/** Worker running the download; null once finished */
+		private Thread thread;
+		/** True once any data has been read (downloader thread only) */
+		private boolean gotData;
 
 		Downloader(InputStream input)
 		{
-			super("Downloader thread");
 			this.input=input;
-			setPriority(NORM_PRIORITY-1);
 			synchronized(StreamPlayer.this)
 			{
 				downloader=this;
 			}
-			start();
+			AudioExecutor.execute(this,"Downloader thread",Thread.NORM_PRIORITY-1);
 		}
 
-		void close()
+		/**
+		 * Stops the download. Doesn't wait, as the thread may be blocked reading
+		 * from the network; it exits without adding any more data as soon as the
+		 * read returns.
+		 */
+		synchronized void close()
 		{
-			// Uses main object close flag
-			while(downloader!=null)
+			// Uses main object close flag; interrupt ends any throttled read
+			if(thread!=null)
 			{
-				try
-				{
-					synchronized(StreamPlayer.this)
-					{
-						StreamPlayer.this.wait(50);
-					}
-				}
-				catch (InterruptedException e)
-				{
-				}
+				thread.interrupt();
 			}
 		}
 
-		@Override
 		public void run()
 		{
+			synchronized(this)
+			{
+				thread=Thread.currentThread();
+			}
 			try
 			{
 				while(true)
@@ -300,6 +406,11 @@ public class StreamPlayer
 						{
 							return;
 						}
+						if(read>0 && !gotData)
+						{
+							gotData=true;
+							TIMETOFIRSTBYTE.record(System.currentTimeMillis()-startTime);
+						}
 						if(read==-1)
 						{
 							input.close();
@@ -326,10 +437,19 @@ public class StreamPlayer
 			}
 			catch(Throwable t)
 			{
-				h.streamError(t);
+				// Closing interrupts any simulated network delay
+				if(!close)
+				{
+					events.streamError(t);
+				}
 			}
 			finally
 			{
+				// Worker goes back to the pool, so must not be interrupted after this
+				synchronized(this)
+				{
+					thread=null;
+				}
 				synchronized(StreamPlayer.this)
 				{
 					downloader=null;
@@ -338,114 +458,35 @@ public class StreamPlayer
 		}
 	}
 
-	private static int getAppropriatePlaybackDelay(
-		int bytesDownloaded,int bytesLength,
-		int firstFrameBytes,int firstFrameSamples,
-		int totalSamplesDecoded,
-		double averageBPSPlayback, double recentBPSDownload)
-	{
-		int msDelay=999999;
-
-		// Check if we already downloaded the whole file, if so we can start now
-		if(bytesDownloaded >= bytesLength && totalSamplesDecoded > 0)
-		{
-			return 0;
-		}
-
-		// If we're downloading faster than playback, then we can potentially start
-		// for that reason
-		double speedFactor = recentBPSDownload / averageBPSPlayback;
-		double estimatedSecondsDownloaded=bytesDownloaded/averageBPSPlayback;
-
-		// Require 1 second buffer at 2x speed, etc
-		if( speedFactor > 2.2)
-		{
-			msDelay=(int)(1000 * (1-estimatedSecondsDownloaded)/speedFactor);
-		}
-		else if(speedFactor > 1.7)
-		{
-			msDelay=(int)(1000 * (5-estimatedSecondsDownloaded)/speedFactor);
-		}
-		else if(speedFactor > 1.4)
-		{
-			msDelay=(int)(1000 * (10-estimatedSecondsDownloaded)/speedFactor);
-		}
-		else if(speedFactor > 1.1)
-		{
-			msDelay=(int)(1000 * (30-estimatedSecondsDownloaded)/speedFactor);
-		}
-		// If we aren't downloading faster than playback then we can still start
-		// before the end
-		else if(bytesLength!=UNKNOWN)
-		{
-			// Number of seconds of audio played and estimated for total file
-			double secondsPlayed=(double)totalSamplesDecoded/44100;
-			double secondsTotal=(bytesLength-firstFrameBytes)/averageBPSPlayback+
-			  (double)firstFrameSamples/44100;
-
-			// Desired factor
-			double factor=1.3;
-
-			// Number of seconds it will take until the ratio between 'time it will
-			// take to playback samples we haven't played yet' and 'time it will take
-			// to download the rest' is 1.3
-			double secondsUntilFactor=(secondsTotal-secondsPlayed-
-					(factor*(double)(bytesLength-bytesDownloaded)/recentBPSDownload))/-factor;
-
-			msDelay=(int)(secondsUntilFactor*1000);
-		}
-
-		msDelay=Math.max(msDelay,0);
-		return msDelay;
-	}
-
 	/**
-	 * Called by the downloader when a new block becomes available.
+	 * Called by the downloader thread (only) when a new block becomes
+	 * available. Publishes the block to the decoder without locking.
 	 * @param block Block
 	 * @param finished True if this is the last block
 	 */
-	private synchronized void addBlock(byte[] block,boolean finished)
+	private void addBlock(byte[] block,boolean finished)
 	{
 		long now=System.currentTimeMillis();
-		if(ARTIFICIALDELAY_BPS!=0 && !isFromMemory)
+		if(block!=null)
 		{
-			try
-			{
-				long until=now+(block.length*1000)/ARTIFICIALDELAY_BPS;
-
-				while(now<until)
-				{
-					wait(until-now);
-					now=System.currentTimeMillis();
-				}
-
-				// Special pause feature - place mouse in top right of screen to cause
-				// network congestion
-				while(MouseInfo.getPointerInfo().getLocation().equals(new Point(0,0)))
-				{
-					wait(500);
-				}
-			}
-			catch (InterruptedException e)
-			{
-			}
+			data.add(block,(int)(now-lastBlock));
+			bandwidth.add(block.length,(int)(now-lastBlock));
 		}
-		if(block!=null) data.add(new DataBlock(block,(int)(now-lastBlock)));
 		lastBlock=now;
-		notifyAll();
 
 		if(finished)
 		{
 			downloadFinished=true;
-			notifyAll();
 		}
+		wake(dataWaiter);
+
 		// Only send the 'fully loaded' state if we're already in READYTOPLAY
-		if(finished && currentState==READYTOPLAY)
+		if(finished && currentState.get()==READYTOPLAY)
 		{
-			h.updateStats(data.size()-1*BUFFERSIZE+(block==null ? 0 : block.length),length,100.0,
-					(int)recentBytesPerSecondDownload,(int)averageBytesPerSecondPlayback,
+			events.updateStats(getDataSize(),length,100.0,
+					(int)bandwidth.getMean(),(int)averageBytesPerSecondPlayback,
 					0);
-			setState(FULLYLOADED);
+			changeState(READYTOPLAY,FULLYLOADED);
 			return;
 		}
 
@@ -458,138 +499,175 @@ public class StreamPlayer
 			percentageDownloaded=100.0*bytesDownloaded/length;
 		}
 
-		// Take average of last 20 block times to work out DL speed
-		int count=0,totalTime=0;
-		for(ListIterator<DataBlock> iterator=data.listIterator(data.size());
-		  iterator.hasPrevious() && count<20; count++)
-	  {
-			totalTime+=iterator.previous().getTime();
-	  }
-		recentBytesPerSecondDownload=(count*BUFFERSIZE)*1000.0/totalTime;
-
 		// Are we ready to start playing? Require at least two blocks, 100ms of
 		// audio in the bank, and we must know the averages...
 		int estimatedDelay=getAppropriatePlaybackDelay();
 		boolean readyToPlay=estimatedDelay==0;
 
-		h.updateStats(bytesDownloaded,length,percentageDownloaded,
-				(int)recentBytesPerSecondDownload,(int)averageBytesPerSecondPlayback,
+		events.updateStats(bytesDownloaded,length,percentageDownloaded,
+				(int)bandwidth.getMean(),(int)averageBytesPerSecondPlayback,
 				estimatedDelay);
 
 		// Note that it may yo-yo between these states, so a player shouldn't really
 		// stop playing if state switches to WAITBEFOREPLAY - only stop when audio
 		// runs out. But start again when READYTOPLAY hits again.
-		if(currentState==WAITBEFOREPLAY && readyToPlay)
+		State state=currentState.get();
+		if(state==WAITBEFOREPLAY && readyToPlay)
 		{
-			setState(READYTOPLAY);
-			if(finished)
+			if(changeState(WAITBEFOREPLAY,READYTOPLAY) && finished)
 			{
-				setState(FULLYLOADED);
+				changeState(READYTOPLAY,FULLYLOADED);
 			}
 		}
-		else if(currentState==READYTOPLAY && !readyToPlay)
+		else if(state==READYTOPLAY && !readyToPlay)
 		{
-			setState(WAITBEFOREPLAY);
+			changeState(READYTOPLAY,WAITBEFOREPLAY);
 		}
-		else if(currentState==WAITBEFOREPLAY && finished)
+		else if(state==WAITBEFOREPLAY && estimatedDelay!=UNKNOWN)
 		{
-			// Not ready to play yet, so can't send that state. Instead start a timer
-			// and try again in 50ms.
-			new AnnoyingTimer();
+			// Check again when it should be ready, in case no more blocks arrive
+			// before then (the decoder checks if it's waiting for audio)
+			scheduleReadyCheck(estimatedDelay);
 		}
 	}
 
 	/**
-	 * Thread which is only there to delay playback attempts if the download
-	 * completes so quickly that the decode thread hasn't done anything yet.
+	 * Schedules a readiness check, unless one is already due sooner.
+	 * @param delay Delay in milliseconds
 	 */
-	private final class AnnoyingTimer extends ClosableThread
+	private void scheduleReadyCheck(int delay)
 	{
-		public AnnoyingTimer()
+		long due=System.currentTimeMillis()+delay;
+		synchronized(readyLock)
 		{
-			super("Annoying timer",StreamPlayer.this);
-			synchronized(StreamPlayer.this)
+			if(close || (readyCheck!=null && !readyCheck.isDone() && readyDue<=due))
 			{
-				annoyingTimer=this;
+				return;
 			}
-			start();
-		}
-
-		@Override
-		protected void runInner()
-		{
-			synchronized(StreamPlayer.this)
+			if(readyCheck!=null)
 			{
-				try
-				{
-					while(true)
-					{
-						try
-						{
-							StreamPlayer.this.wait(50);
-						}
-						catch (InterruptedException e)
-						{
-						}
-
-						if(shouldClose()) return;
-
-						int delay=getAppropriatePlaybackDelay();
-						if(delay==0)
-						{
-							setState(READYTOPLAY);
-							setState(FULLYLOADED);
-							return;
-						}
-					}
-				}
-				finally
+				readyCheck.cancel(false);
+			}
+			readyDue=due;
+			readyCheck=AudioExecutor.getScheduler().schedule(new Runnable()
+			{
+				public void run()
 				{
-					annoyingTimer=null;
+					checkReady();
 				}
-			}
+			},delay,TimeUnit.MILLISECONDS);
 		}
 	}
 
-	private int getDataSize()
+	/** @return True if a readiness check is scheduled and hasn't run yet */
+	boolean hasReadyCheck()
 	{
-		if(data.size() >= 1)
+		synchronized(readyLock)
 		{
-			// All blocks except last one are full blocks
-			return (data.size() - 1) * BUFFERSIZE + data.getLast().getData().length;
+			return readyCheck!=null && !readyCheck.isDone();
 		}
-		else
+	}
+
+	/**
+	 * Checks whether it's time to start playing, if still waiting to. If not
+	 * yet, and the time can be estimated, schedules another check for then.
+	 * Called from the downloader, the decoder and the shared scheduler.
+	 */
+	private void checkReady()
+	{
+		if(close || currentState.get()!=WAITBEFOREPLAY)
 		{
-			return 0;
+			return;
+		}
+		int delay=getAppropriatePlaybackDelay();
+		if(delay==0)
+		{
+			if(changeState(WAITBEFOREPLAY,READYTOPLAY) && downloadFinished)
+			{
+				changeState(READYTOPLAY,FULLYLOADED);
+			}
+		}
+		else if(delay!=UNKNOWN)
+		{
+			scheduleReadyCheck(delay);
 		}
 	}
 
+	private int getDataSize()
+	{
+		return data.getDataSize();
+	}
+
 	/**
 	 * @return 0 if ready to start playing now, otherwise UNKNOWN or a time
 	 *   in milliseconds
 	 */
 	private int getAppropriatePlaybackDelay()
 	{
+		PlaybackDevice.Format format=this.format;
 		int estimatedDelay =
-			(data.size()>=2 && totalSamplesDecoded>MINSAMPLESBEFORESTART &&
+			(format!=null && data.getChunkCount()>=2 &&
+			totalSamplesDecoded>(format.getSampleRate()*MINMSBEFORESTART)/1000 &&
 			averageBytesPerSecondPlayback!=0) ? 0 : UNKNOWN;
 		if(estimatedDelay==0)
 		{
 			// Okay, we're ready to play but ONLY if the download speeds are okay
-			estimatedDelay=getAppropriatePlaybackDelay(
-				getDataSize(),length,firstFrameBytes,firstFrameSamples,
-				totalSamplesDecoded,
-				averageBytesPerSecondPlayback,recentBytesPerSecondDownload);
+			int bytesDownloaded=getDataSize();
+			estimatedDelay=bufferingPolicy.getPlaybackDelay(
+				new BufferingPolicy.Status(bytesDownloaded,length,downloadFinished,
+				bandwidth.getMean(),bandwidth.getDeviation(),
+				averageBytesPerSecondPlayback,getSecondsAt(bytesDownloaded,format),
+				(double)totalSamplesDecoded/format.getSampleRate(),
+				length==UNKNOWN ? UNKNOWN : getSecondsAt(length,format)));
 		}
 		return estimatedDelay;
 	}
 
 	/**
-	 * InputStream that reads from the data blocks available here.
+	 * Estimates audio position from stream position. The first block decoded
+	 * includes headers and decoder startup, so is measured directly; the rest
+	 * is at the average rate seen since.
+	 * @param bytes Stream position in bytes
+	 * @param format Decoded format
+	 * @return Seconds of audio before that position
+	 */
+	private double getSecondsAt(int bytes,PlaybackDevice.Format format)
+	{
+		return (double)firstFrameSamples/format.getSampleRate()+
+			(bytes-firstFrameBytes)/averageBytesPerSecondPlayback;
+	}
+
+	/**
+	 * Unparks a thread, if there is one.
+	 * @param thread Thread or null
+	 */
+	private static void wake(Thread thread)
+	{
+		if(thread!=null)
+		{
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * InputStream that reads from the data blocks available here. Used only by
+	 * the decoder thread; it parks while waiting for the downloader.
 	 */
 	private class BlockInputStream extends InputStream
 	{
-		private int blockPos=0,innerPos=0, totalPos=0;
+		private final ChunkStore.Cursor cursor=data.newCursor();
+		private final AudioDecoder owner;
+		/** Total time spent waiting for data (decoder thread only) */
+		private long waitNanos;
+
+		/**
+		 * @param owner Decoder thread; reads return end of stream once it is
+		 *   closing
+		 */
+		BlockInputStream(AudioDecoder owner)
+		{
+			this.owner=owner;
+		}
 
 		@Override
 		public int read() throws IOException
@@ -598,7 +676,7 @@ public class StreamPlayer
 			if(read(data,0,1)!=1)
 				return -1;
 			else
-				return data[0];
+				return data[0]&0xff;
 		}
 
 		@Override
@@ -609,66 +687,45 @@ public class StreamPlayer
 
 		int getTotalPos()
 		{
-			return totalPos;
+			return cursor.getPosition();
+		}
+
+		/** @return Total nanoseconds spent waiting for downloaded data */
+		long getWaitNanos()
+		{
+			return waitNanos;
 		}
 
 		@Override
 		public int read(byte[] b, int off, int len) throws IOException
 		{
-			synchronized(StreamPlayer.this)
+			// Do we have any data at all? If not, wait until we do
+			long waitStart=0;
+			while(cursor.available()==0)
 			{
-				// Do we have any data at all? If not, wait until we do
-				while(blockPos==data.size())
+				if(waitStart==0)
 				{
-					if(downloadFinished) return -1;
-					try
-					{
-						StreamPlayer.this.wait();
-					}
-					catch (InterruptedException e)
-					{
-					}
+					waitStart=System.nanoTime();
 				}
+				// Finished flag is set after the last data, so check again
+				if(downloadFinished && cursor.available()==0) return -1;
+				if(owner.closing()) return -1;
 
-				// OK we have some data.
-				int totalRead=0;
-				while(blockPos<data.size())
+				// Register before checking again, so a new block can't be missed
+				dataWaiter=Thread.currentThread();
+				if(cursor.available()==0 && !downloadFinished && !owner.closing())
 				{
-					DataBlock current=data.get(blockPos);
-
-					// How much data is available in current block?
-					int available=current.getData().length-innerPos;
-
-					// We have more (or the same) available than needed
-					if(available>=len)
-					{
-						System.arraycopy(current.getData(),innerPos,b,off,len);
-						innerPos+=len;
-						totalRead+=len;
-						if(innerPos==current.getData().length)
-						{
-							innerPos=0;
-							blockPos++;
-						}
-						totalPos+=totalRead;
-						return totalRead;
-					}
-
-					// We have less available than needed
-					System.arraycopy(current.getData(),innerPos,b,off,available);
-					totalRead+=available;
-					innerPos=0;
-					off+=available;
-					len-=available;
-					blockPos++;
-
-					// Repeat as long as the next block is available
+					LockSupport.park(this);
 				}
-
-				// Keep track of total amount of data read
-				totalPos+=totalRead;
-				return totalRead;
+				dataWaiter=null;
+			}
+			if(waitStart!=0)
+			{
+				waitNanos+=System.nanoTime()-waitStart;
 			}
+
+			// OK we have some data.
+			return cursor.read(b,off,len);
 		}
 	}
 
@@ -676,39 +733,151 @@ public class StreamPlayer
 	 * @return True if {@link #getNextAudio} will return without throwing an
 	 *   exception (either more audio available, or end of stream)
 	 */
-	public synchronized boolean hasNextAudio()
+	public boolean hasNextAudio()
 	{
-		if(nextAudio.isEmpty() && currentState == FULLYLOADED && !playFinished)
+		SpscQueue<AudioBlock> queue=nextAudio;
+		if(queue.isEmpty() && !playFinished)
 		{
-			setState(BUFFEREMPTY);
+			changeState(FULLYLOADED,BUFFEREMPTY);
 		}
-		return playFinished || !nextAudio.isEmpty();
+		return playFinished || !queue.isEmpty();
 	}
 
 	/**
-	 * Retrieves the next audio block, if available. Does not block.
-	 * @return Next audio block (44.4 kHz 16-bit little-endian) or null if
-	 *   reached end of stream
+	 * Retrieves the next audio block, if available. Does not block or lock.
+	 * Only one thread may retrieve audio.
+	 * @return Next audio block (16-bit little-endian, in the format given by
+	 *   {@link #getFormat()}) or null if reached end of stream; pass it to
+	 *   {@link #recycle(AudioBlock)} when finished with
 	 * @throws AudioException If no more audio available
 	 */
-	public synchronized AudioBlock getNextAudio() throws AudioException
+	public AudioBlock getNextAudio() throws AudioException
 	{
-		if(nextAudio.isEmpty())
+		SpscQueue<AudioBlock> queue=nextAudio;
+		AudioBlock data=queue.poll();
+		if(data==null)
 		{
 			if(playFinished)
 			{
-				return null;
+				// Finished flag is set after the last block, so check again
+				return queue.poll();
 			}
 			throw new AudioException("No more audio available");
 		}
-		AudioBlock data=nextAudio.removeFirst();
-		notifyAll();
+		wake(spaceWaiter);
 		return data;
 	}
 
+	/**
+	 * Returns a block obtained from {@link #getNextAudio()} once its data is
+	 * no longer needed, so that the decoder can reuse it. Must be called from
+	 * the thread that retrieves audio.
+	 * @param block Block to reuse
+	 */
+	public void recycle(AudioBlock block)
+	{
+		freeBlocks.offer(block);
+	}
+
+	/**
+	 * @return Current target for audio decoded ahead of playback, in
+	 *   milliseconds. This rises if the decoder fails to keep up, and falls
+	 *   slowly while it does.
+	 */
+	public int getDecodeAhead()
+	{
+		return decodeAheadMs.get();
+	}
+
+	/**
+	 * Carries over the decode-ahead target from the last player that used the
+	 * same decoder, but if that was raised, starts a step lower so that one
+	 * bad stream doesn't keep the target high for good.
+	 * @param decoderClass Decoder class
+	 * @return Starting target in milliseconds
+	 */
+	private static int getStartingDecodeAhead(Class<?> decoderClass)
+	{
+		Integer last=lastDecodeAheadMs.get(decoderClass);
+		if(last==null || last<=INITIALDECODEAHEADMS)
+		{
+			return last==null ? INITIALDECODEAHEADMS : last;
+		}
+		return (int)Math.max(INITIALDECODEAHEADMS,Math.round(last*LOWERFACTOR));
+	}
+
+	/** Forgets decode-ahead targets carried over between players (for tests). */
+	static void resetDecodeAhead()
+	{
+		lastDecodeAheadMs.clear();
+	}
+
+	/**
+	 * @param blockMs Length of each decoded block in milliseconds
+	 * @return Number of blocks to decode ahead to meet the current target
+	 */
+	private int getDecodeAheadBlocks(double blockMs)
+	{
+		return Math.min(MAXDECODEDBLOCKS,
+			Math.max(1,(int)Math.ceil(decodeAheadMs.get()/blockMs-0.01)));
+	}
+
+	/**
+	 * Changes the decode-ahead target, keeping it within limits.
+	 * @param factor Amount to multiply it by
+	 */
+	private void adjustDecodeAhead(double factor)
+	{
+		while(true)
+		{
+			int current=decodeAheadMs.get();
+			int target=(int)Math.max(MINDECODEAHEADMS,
+				Math.min(MAXDECODEAHEADMS,Math.round(current*factor)));
+			if(target==current)
+			{
+				return;
+			}
+			if(decodeAheadMs.compareAndSet(current,target))
+			{
+				lastDecodeAheadMs.put(decoderClass,target);
+				DECODEAHEAD.record(target);
+				log("Decode-ahead: " + target + "ms", true);
+				if(target>current)
+				{
+					// Decoder may be waiting for space
+					wake(spaceWaiter);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Called from the decoder thread only.
+	 * @param size Required block size in bytes
+	 * @return Unused block from the pool, or a new one if none is suitable
+	 */
+	private AudioBlock takeBlock(int size)
+	{
+		while(true)
+		{
+			AudioBlock block=freeBlocks.poll();
+			if(block==null)
+			{
+				return new AudioBlock(size);
+			}
+			if(block.data.length==size)
+			{
+				return block;
+			}
+		}
+	}
+
 	/** Decoder thread that decodes one audio frame ahead */
 	private class AudioDecoder extends ClosableThread
 	{
+		private final BlockInputStream blockInput=new BlockInputStream(this);
+
 		private AudioDecoder()
 		{
 			super("Audio decoder",StreamPlayer.this);
@@ -717,7 +886,9 @@ public class StreamPlayer
 			totalSamplesDecoded=0;
 			firstFrameBytes=0;
 			firstFrameSamples=0;
-			nextAudio.clear();
+			// Blocks still queued from before are left for the garbage collector,
+			// as the playback thread may be taking one right now
+			nextAudio=new SpscQueue<AudioBlock>(MAXDECODEDBLOCKS);
 			start();
 
 		}
@@ -732,6 +903,12 @@ public class StreamPlayer
 			}
 		}
 
+		/** @return True once the thread has been asked to close */
+		private boolean closing()
+		{
+			return shouldClose();
+		}
+
 		@Override
 		public void runInner()
 		{
@@ -739,65 +916,112 @@ public class StreamPlayer
 			try
 			{
 				decoder=decoderClass.newInstance();
-				BlockInputStream blockInput=new BlockInputStream();
 				decoder.init(blockInput);
 
+				// Agree format with handler, then decode in that format
+				PlaybackDevice.Format format=h.streamFormat(decoder.getNativeFormat());
+				decoder.setOutputFormat(format);
+				StreamPlayer.this.format=format;
+				int minBlockSize=(int)((long)(MINDECODEDBLOCKSIZE/4)*
+					format.getSampleRate()/44100)*format.getBytesPerFrame();
+				double blockMs=(minBlockSize/format.getBytesPerFrame())*1000.0/
+					format.getSampleRate();
+				// Audio decoded since the target was last raised, and that target
+				double stableMs=0;
+				int lastTarget=decodeAheadMs.get();
+
+				SpscQueue<AudioBlock> queue=nextAudio;
 				while(true)
 				{
-					// Wait until we need to retrieve some audio
-					synchronized(StreamPlayer.this)
+					// Wait until we need to retrieve some audio (the target may rise
+					// while waiting, which also wakes this thread)
+					while(queue.size()>=getDecodeAheadBlocks(blockMs) && !shouldClose())
 					{
-						while(nextAudio.size()>=AUDIOBLOCKBUFFER && !shouldClose())
-						{
-							if(currentState == BUFFEREMPTY)
-							{
-								setState(FULLYLOADED);
-							}
-							StreamPlayer.this.wait();
-						}
-						if(shouldClose())
+						changeState(BUFFEREMPTY,FULLYLOADED);
+
+						// Register before checking again, so a retrieval can't be missed
+						spaceWaiter=Thread.currentThread();
+						if(queue.size()>=getDecodeAheadBlocks(blockMs) && !shouldClose())
 						{
-							blockInput.close();
-							return;
+							LockSupport.park(this);
 						}
+						spaceWaiter=null;
+					}
+					if(shouldClose())
+					{
+						blockInput.close();
+						return;
 					}
-					// Get some new audio
-					byte[] audio = null;
-					while(true)
+					// Decode straight into a pooled block of exactly the right size;
+					// blocks beyond what the target needs are left for the garbage
+					// collector
+					AudioBlock audio = takeBlock(minBlockSize);
+					while(freeBlocks.size()>getDecodeAheadBlocks(blockMs)+1)
 					{
-						try
+						freeBlocks.poll();
+					}
+					ByteBuffer audioBuffer = audio.buffer;
+					audioBuffer.clear();
+					long decodeStart=System.nanoTime(),waitBefore=blockInput.getWaitNanos();
+					try
+					{
+						while(audioBuffer.hasRemaining())
 						{
-							byte[] newAudio = decoder.decode();
-
-							if(newAudio == null)
+							if(decoder.decodeInto(audioBuffer) == -1)
 							{
 								break;
 							}
-							// Sometimes decoders return 0-length data blocks
-							if(newAudio.length == 0)
-							{
-								continue;
-							}
-							if(audio == null)
-							{
-								audio = newAudio;
-							}
-							else
-							{
-								byte[] combinedAudio = new byte[audio.length + newAudio.length];
-								System.arraycopy(audio, 0, combinedAudio, 0, audio.length);
-								System.arraycopy(newAudio, 0, combinedAudio, audio.length, newAudio.length);
-								audio = combinedAudio;
-							}
-							if(audio.length >= MINDECODEDBLOCKSIZE) break;
 						}
-						catch(Throwable t)
+					}
+					catch(Throwable t)
+					{
+						if(!shouldClose())
 						{
 							t.printStackTrace();
-							playFinished=true;
-							blockInput.close();
-							return;
 						}
+						playFinished=true;
+						blockInput.close();
+						return;
+					}
+					if(shouldClose())
+					{
+						return;
+					}
+					// Time spent decoding, not waiting for the download
+					long decodeNanos=System.nanoTime()-decodeStart-
+						(blockInput.getWaitNanos()-waitBefore);
+					DECODETIME.record(decodeNanos/1000);
+
+					// Slow blocks (apart from the first, which includes startup) mean
+					// the decoder could fall behind, so raise the target; lower it
+					// gradually while decoding keeps up
+					int target=decodeAheadMs.get();
+					if(target>lastTarget)
+					{
+						// Raised after running out of audio
+						stableMs=0;
+					}
+					if(decodeNanos>blockMs*SLOWDECODE*1000000 && totalSamplesDecoded>0)
+					{
+						adjustDecodeAhead(RAISEFACTOR);
+						stableMs=0;
+					}
+					else
+					{
+						stableMs+=blockMs;
+						if(stableMs>=STABLEMS)
+						{
+							adjustDecodeAhead(LOWERFACTOR);
+							stableMs=0;
+						}
+					}
+					lastTarget=decodeAheadMs.get();
+
+					// Last block is usually partial
+					audio.length = audioBuffer.position();
+					if(audio.length == 0)
+					{
+						audio = null;
 					}
 
 					int totalBytesDecoded=blockInput.getTotalPos();
@@ -810,56 +1034,68 @@ public class StreamPlayer
 					{
 						percentagePlayed=100.0*totalBytesDecoded/length;
 					}
-					if(audio!=null) totalSamplesDecoded+=audio.length/4;
+					if(audio!=null)
+					{
+						audio.percentagePlayed=percentagePlayed;
+						totalSamplesDecoded+=audio.length/format.getBytesPerFrame();
+					}
 
-					// Tell anyone waiting that we have new audio
-					synchronized(StreamPlayer.this)
+					if(firstFrameBytes==0)
 					{
-						if(firstFrameBytes==0)
-						{
-							firstFrameBytes=totalBytesDecoded;
-							firstFrameSamples=totalSamplesDecoded;
-						}
-						else if(totalSamplesDecoded>firstFrameSamples)
-						{
-							averageBytesPerSecondPlayback=
-								(totalBytesDecoded-firstFrameBytes) /
-								((totalSamplesDecoded-firstFrameSamples) / 44100.0);
-						}
-						if(audio!=null)
-						{
-							nextAudio.addLast(new AudioBlock(audio,percentagePlayed));
-						}
-						StreamPlayer.this.notifyAll();
-						if(audio==null)
+						firstFrameBytes=totalBytesDecoded;
+						firstFrameSamples=totalSamplesDecoded;
+					}
+					else if(totalSamplesDecoded>firstFrameSamples)
+					{
+						averageBytesPerSecondPlayback=
+							(totalBytesDecoded-firstFrameBytes) /
+							((totalSamplesDecoded-firstFrameSamples) /
+								(double)format.getSampleRate());
+					}
+
+					// Hand over new audio; there is always space, as only this thread adds
+					if(audio!=null)
+					{
+						queue.offer(audio);
+						DECODEDBLOCKS.record(queue.size());
+						BUFFEREDBYTES.record(getDataSize()-blockInput.getTotalPos());
+
+						// May now have enough audio to start
+						checkReady();
+					}
+					else
+					{
+						// Set first so the playback thread can't see an empty buffer
+						playFinished=true;
+						if(!changeState(BUFFEREMPTY,FULLYLOADED) &&
+							changeState(WAITBEFOREPLAY,READYTOPLAY))
 						{
-							if(currentState == BUFFEREMPTY)
-							{
-								setState(FULLYLOADED);
-							}
-							else if(currentState == WAITBEFOREPLAY)
-							{
-								setState(READYTOPLAY);
-								setState(FULLYLOADED);
-							}
-							playFinished=true;
-							blockInput.close();
-							return;
+							changeState(READYTOPLAY,FULLYLOADED);
 						}
+						blockInput.close();
+						return;
 					}
 				}
 			}
 			catch (Exception e)
 			{
-				h.streamError(e);
+				events.streamError(e);
 			}
 		}
 	}
 
+	/**
+	 * @return Format of decoded audio, or null if the decoder hasn't started
+	 */
+	public PlaybackDevice.Format getFormat()
+	{
+		return format;
+	}
+
 	/** @return Current player state */
-	public synchronized State getState()
+	public State getState()
 	{
-		return currentState;
+		return currentState.get();
 	}
 
 	/**
@@ -872,13 +1108,17 @@ public class StreamPlayer
 		{
 			downloader.close();
 		}
-		if(annoyingTimer!=null)
+		synchronized(readyLock)
 		{
-			annoyingTimer.close();
+			if(readyCheck!=null)
+			{
+				readyCheck.cancel(false);
+			}
 		}
 		if(audioDecoder!=null)
 		{
 			audioDecoder.close();
 		}
+		events.close();
 	}
 }
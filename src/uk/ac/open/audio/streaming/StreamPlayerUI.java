@@ -24,7 +24,9 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.*;
 
@@ -58,6 +60,12 @@ public class StreamPlayerUI extends JPanel implements
 	 */
 	private final static int CONNECT_RETRIES = 3;
 
+	/**
+	 * Time to connect and receive response headers for streamed audio.
+	 */
+	private final static Metrics.Histogram CONNECTTIME =
+		Metrics.histogram("stream.connectMs");
+
 	private enum ButtonState
 	{
 		START,STOP,CANCELUPLOAD
@@ -76,14 +84,28 @@ public class StreamPlayerUI extends JPanel implements
 
 	private StreamPlayerUI recordTarget;
 
+	/** Number of encoded blocks in each page of recorded data */
+	private final static int RECORDEDPAGEBLOCKS=16;
+
+	/** Encoded recording, in pages of RECORDEDPAGEBLOCKS blocks */
 	private LinkedList<byte[]> recordedData=new LinkedList<byte[]>();
+	private int recordedBlocks;
 
 	private String startText,stopText,cancelUploadText;
 
 	private boolean forceCrossPlatform = false;
+	/** Set if the device can't play streams' own formats, so they're converted */
+	private volatile boolean convertStreams = false;
+	private boolean liveUpload = false;
+	/** Simulated network for downloads and uploads, or null for none */
+	private volatile NetworkTrace downloadTrace, uploadTrace;
 	private boolean started;
 	private int lastWait=-1;
 	private boolean doneBeep,reallyStop,enabled;
+	/** Audio being played (a stream block, or the beep) and position in it */
+	private StreamPlayer.AudioBlock playingBlock;
+	private byte[] playingData;
+	private int playingPos,playingLength;
 	private boolean close;
 	private Image pauseImage;
 	private Image playImage;
@@ -261,6 +283,29 @@ public class StreamPlayerUI extends JPanel implements
 		this.forceCrossPlatform = forceCrossPlatform;
 	}
 
+	/**
+	 * @param liveUpload True to upload recorded audio while recording is still
+	 *   in progress, rather than once it finishes. The server must accept the
+	 *   sample count as a separate 'samples' field.
+	 */
+	public void setLiveUpload(boolean liveUpload)
+	{
+		this.liveUpload = liveUpload;
+	}
+
+	/**
+	 * Simulates a slow network for testing. Applies to downloads and uploads
+	 * started after this call; audio already in memory is not affected.
+	 * @param downloadTrace Download speed, or null for full speed
+	 * @param uploadTrace Upload speed, or null for full speed
+	 */
+	public void setSimulatedNetwork(NetworkTrace downloadTrace,
+		NetworkTrace uploadTrace)
+	{
+		this.downloadTrace = downloadTrace;
+		this.uploadTrace = uploadTrace;
+	}
+
 	@Override
 	public void setEnabled(boolean enabled)
 	{
@@ -348,10 +393,12 @@ public class StreamPlayerUI extends JPanel implements
 		{
 			doneBeep=false;
 			reallyStop=false;
+			playingBlock=null;
+			playingData=null;
 
 			if(playURL!=null)
 			{
-				playback=PlaybackDevice.construct(PlaybackDevice.Format.STEREO_44KHZ, forceCrossPlatform);
+				playback=constructPlayback();
 				if(stream==null)
 				{
 					if(connector == null)
@@ -381,7 +428,7 @@ public class StreamPlayerUI extends JPanel implements
 			}
 			else if(playData!=null)
 			{
-				playback=PlaybackDevice.construct(PlaybackDevice.Format.STEREO_44KHZ, forceCrossPlatform);
+				playback=constructPlayback();
 				if(stream==null)
 				{
 					progress.setIndeterminate();
@@ -417,9 +464,9 @@ public class StreamPlayerUI extends JPanel implements
 	}
 
 	/**
-	 * Thread handles URL connection and starts stream player.
+	 * Handles URL connection (on a shared worker) and starts stream player.
 	 */
-	private class Connector extends Thread
+	private class Connector implements Runnable
 	{
 		private URL url;
 		private Class<? extends StreamableDecoder> decoderClass;
@@ -437,54 +484,46 @@ public class StreamPlayerUI extends JPanel implements
 			this.url = url;
 			this.decoderClass = decoderClass;
 			this.attempts = attempts;
-			start();
+			AudioExecutor.execute(this, "Stream connector", Thread.NORM_PRIORITY);
 		}
 
-		private class ConnectKiller extends Thread
+		/** Scheduled task that kills the connection if it hasn't completed. */
+		private class ConnectKiller implements Runnable
 		{
 			ConnectKiller()
 			{
-				start();
+				// Run after it should have connected
+				AudioExecutor.getScheduler().schedule(this, CONNECT_TIMEOUT + 500,
+					TimeUnit.MILLISECONDS);
 			}
 
-			@Override
 			public void run()
 			{
-				try
+				synchronized(Connector.this)
 				{
-					// Wait until after it should have connected
-					sleep(CONNECT_TIMEOUT + 500);
-					synchronized(Connector.this)
+					if(killer == this)
 					{
-						if(killer == this)
-						{
-							// Setting the killer variable to null will kill this connection
-							log("Undetected timeout connecting to URL:");
-							System.err.println(url);
-							killer = null;
+						// Setting the killer variable to null will kill this connection
+						log("Undetected timeout connecting to URL:");
+						System.err.println(url);
+						killer = null;
 
-							// If there are retries left, start a new one
-							if(attempts > 0)
-							{
-								log("Retrying");
-								new Connector(url, decoderClass, attempts);
-							}
-							else
-							{
-								log("No more retries, stopping");
-								failed();
-							}
+						// If there are retries left, start a new one
+						if(attempts > 0)
+						{
+							log("Retrying");
+							new Connector(url, decoderClass, attempts);
+						}
+						else
+						{
+							log("No more retries, stopping");
+							failed();
 						}
 					}
 				}
-				catch(InterruptedException e)
-				{
-					// This shouldn't happen
-				}
 			}
 		}
 
-		@Override
 		public void run()
 		{
 			while(true)
@@ -556,10 +595,12 @@ public class StreamPlayerUI extends JPanel implements
 			{
 				killer = new ConnectKiller();
 			}
+			long start = System.currentTimeMillis();
 			HttpURLConnection connection = (HttpURLConnection)playURL.openConnection();
 			connection.setConnectTimeout(CONNECT_TIMEOUT);
 			connection.setReadTimeout(READ_TIMEOUT);
 			InputStream input = connection.getInputStream();
+			CONNECTTIME.record(System.currentTimeMillis() - start);
 			int length = connection.getContentLength();
 			synchronized(this)
 			{
@@ -575,6 +616,10 @@ public class StreamPlayerUI extends JPanel implements
 			}
 			synchronized(StreamPlayerUI.this)
 			{
+				if(downloadTrace != null)
+				{
+					input = new ThrottledInputStream(input, downloadTrace);
+				}
 				stream = new StreamPlayer(input, length, decoderClass, StreamPlayerUI.this);
 				connector = null;
 			}
@@ -592,8 +637,37 @@ public class StreamPlayerUI extends JPanel implements
 
 	private void startRecording() throws AudioException
 	{
-		recording=RecordingDevice.construct(forceCrossPlatform);
-		recording.record(this);
+		if(liveUpload)
+		{
+			// Sample count isn't known yet, so the header says zero
+			try
+			{
+				ByteArrayOutputStream header=new ByteArrayOutputStream();
+				ADPCMEncoder.writeWavHeader(header, 0);
+				uploader=new Uploader(this,recordURL,uploadTrace);
+				uploader.addData(header.toByteArray());
+			}
+			catch(IOException e)
+			{
+				throw new AudioException(e);
+			}
+		}
+		boolean ok=false;
+		try
+		{
+			recording=RecordingDevice.construct(forceCrossPlatform);
+			recording.record(this);
+			ok=true;
+		}
+		finally
+		{
+			// Don't leave the live upload running if recording couldn't start
+			if(!ok && liveUpload && uploader!=null)
+			{
+				uploader.cancel();
+				uploader=null;
+			}
+		}
 		progress.setRecording();
 	}
 
@@ -663,6 +737,99 @@ public class StreamPlayerUI extends JPanel implements
 		}
 	}
 
+	/**
+	 * Opens the playback device in the format of the current stream. Until the
+	 * stream's format is known, 44.1 kHz stereo is used; the device is
+	 * replaced if necessary by reopenPlayback, before playback begins.
+	 * @return New device
+	 * @throws AudioException If the device can't be opened
+	 */
+	private PlaybackDevice constructPlayback() throws AudioException
+	{
+		PlaybackDevice.Format format=stream==null ? null : stream.getFormat();
+		if(format==null)
+		{
+			format=PlaybackDevice.Format.STEREO_44KHZ;
+		}
+		return PlaybackDevice.construct(format, forceCrossPlatform);
+	}
+
+	public PlaybackDevice.Format streamFormat(
+		PlaybackDevice.Format nativeFormat)
+	{
+		// This runs on the decoder thread, which stop() waits for while holding
+		// this object's lock, so it mustn't take the lock or touch the device;
+		// the device is replaced on the event thread instead
+		final PlaybackDevice.Format format=convertStreams
+			? PlaybackDevice.Format.STEREO_44KHZ
+			: PlaybackDevice.getSupportedFormat(nativeFormat, forceCrossPlatform);
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				reopenPlayback(format);
+			}
+		});
+		return format;
+	}
+
+	/**
+	 * Replaces the playback device, unless playback has already started, with
+	 * one in the format the stream is decoded in. If that format can't be
+	 * opened, the stream is decoded again with conversion. Once the device
+	 * matches, starts playback if the stream is already ready.
+	 * @param format Format the stream is being decoded in
+	 */
+	private void reopenPlayback(PlaybackDevice.Format format)
+	{
+		State state;
+		synchronized(this)
+		{
+			if(playback==null || started)
+			{
+				return;
+			}
+			if(playback.getFormat()!=format)
+			{
+				playback.close();
+				playback=null;
+				try
+				{
+					playback=PlaybackDevice.construct(format, forceCrossPlatform);
+				}
+				catch(AudioException e)
+				{
+					log("Unable to play in "+format+", converting instead");
+					convertStreams=true;
+					try
+					{
+						playback=PlaybackDevice.construct(
+							PlaybackDevice.Format.STEREO_44KHZ, forceCrossPlatform);
+					}
+					catch(AudioException e2)
+					{
+						playbackError(e2);
+						return;
+					}
+					// Calls streamFormat again, which will come back here
+					if(stream!=null)
+					{
+						stream.rewind();
+					}
+					return;
+				}
+			}
+			if(stream==null)
+			{
+				return;
+			}
+			state=stream.getState();
+		}
+
+		// Readiness may have been ignored while the device was being replaced
+		streamChangedState(state);
+	}
+
 	public void streamChangedState(State s)
 	{
 		if(s==StreamPlayer.State.READYTOPLAY || s==StreamPlayer.State.FULLYLOADED)
@@ -671,6 +838,10 @@ public class StreamPlayerUI extends JPanel implements
 			synchronized(this)
 			{
 				if(playback==null) return;
+
+				// Wait for reopenPlayback if the device doesn't match the stream yet
+				if(!started && stream!=null &&
+					playback.getFormat()!=stream.getFormat()) return;
 			}
 
 			if(!started)
@@ -721,11 +892,13 @@ public class StreamPlayerUI extends JPanel implements
 
 	private byte[] getBeep()
 	{
-		// 800 Hz, max level
-		double freq=(2*Math.PI/44100)*800,level=20000.0,faderamp=1000;
+		// 800 Hz, max level, in the format the device is playing
+		PlaybackDevice.Format format=playback.getFormat();
+		int rate=format.getSampleRate();
+		double freq=(2*Math.PI/rate)*800,level=20000.0,faderamp=1000.0*rate/44100;
 
 		// One second
-		short[] data=new short[44100];
+		short[] data=new short[rate];
 
 		// Calculate sine wave
 		double pos=0;
@@ -745,76 +918,104 @@ public class StreamPlayerUI extends JPanel implements
 			data[i]=(short)Math.round(value);
 		}
 
-		return AudioUtil.shortToByte(data, data.length, true);
+		return AudioUtil.shortToByte(data, data.length, format.isStereo());
 	}
 
-	public byte[] playbackBlock()
+	public int playbackBlock(byte[] buffer)
 	{
 		if(close)
 		{
-			return null;
+			return -1;
 		}
 
-		if(stream.hasNextAudio())
+		// Get new data unless there's some left from the last call
+		if(playingData==null)
 		{
+			if(!stream.hasNextAudio())
+			{
+				try
+				{
+					playback.pause();
+				}
+				catch(AudioException e)
+				{
+					playbackError(e);
+				}
+				progress.setIndeterminate();
+
+				// A little silence to keep the device going until it pauses
+				Arrays.fill(buffer,0,4,(byte)0);
+				return 4;
+			}
+
+			StreamPlayer.AudioBlock data;
 			try
 			{
-				StreamPlayer.AudioBlock data=stream.getNextAudio();
-				if(data==null)
+				data=stream.getNextAudio();
+			}
+			catch (AudioException e)
+			{
+				e.printStackTrace();
+				return -1;
+			}
+			if(data==null)
+			{
+				if(recordURL!=null && !doneBeep && !reallyStop)
 				{
-					if(recordURL!=null && !doneBeep && !reallyStop)
+					doneBeep=true;
+					SwingUtilities.invokeLater(new Runnable()
 					{
-						doneBeep=true;
-						SwingUtilities.invokeLater(new Runnable()
+						public void run()
 						{
-							public void run()
-							{
-								progress.setLastData(null,true,100.0);
-								progress.setPrepareToRecord();
-							}
-						});
+							progress.setLastData(null,0,true,100.0);
+							progress.setPrepareToRecord();
+						}
+					});
 
-						return getBeep();
-					}
-					else
+					playingData=getBeep();
+					playingLength=playingData.length;
+				}
+				else
+				{
+					SwingUtilities.invokeLater(new Runnable()
 					{
-						SwingUtilities.invokeLater(new Runnable()
+						public void run()
 						{
-							public void run()
+							if(!doneBeep)
 							{
-								if(!doneBeep)
-								{
-									progress.setLastData(null,true,100.0);
-								}
-								stop(false,!doneBeep);
+								progress.setLastData(null,0,true,100.0);
 							}
-						});
-					}
-					return null;
-				}
-				else
-				{
-					progress.setLastData(data.getData(),true,data.getPercentagePlayed());
-					return data.getData();
+							stop(false,!doneBeep);
+						}
+					});
+					return -1;
 				}
 			}
-			catch (AudioException e)
+			else
 			{
-				e.printStackTrace();
-				return null;
+				progress.setLastData(data.getData(),data.getLength(),
+					playback.getFormat().isStereo(),data.getPercentagePlayed());
+				playingBlock=data;
+				playingData=data.getData();
+				playingLength=data.getLength();
 			}
+			playingPos=0;
 		}
 
-		try
-		{
-			playback.pause();
-		}
-		catch(AudioException e)
+		// Copy as much as fits, returning the block to the stream once used
+		int count=Math.min(buffer.length,playingLength-playingPos);
+		System.arraycopy(playingData,playingPos,buffer,0,count);
+		playingPos+=count;
+		if(playingPos==playingLength)
 		{
-			playbackError(e);
+			if(playingBlock!=null)
+			{
+				stream.recycle(playingBlock);
+				playingBlock=null;
+			}
+			playingData=null;
 		}
-		progress.setIndeterminate();
-		return new byte[4];
+		return count;
 	}
 
 	public void playbackStopped()
@@ -848,7 +1049,9 @@ public class StreamPlayerUI extends JPanel implements
 		}
 	}
 
-	private byte[] recordingOverlap;
+	/** Holds recorded audio until there's enough for a full ADPCM block */
+	private byte[] recordingBuffer=new byte[ADPCMEncoder.BLOCKSAMPLES*2];
+	private int recordingBufferPos;
 
 	public void recordingBlock(byte[] data, int bytes, int level, boolean stopped)
 	{
@@ -857,45 +1060,30 @@ public class StreamPlayerUI extends JPanel implements
 			return;
 		}
 
-		progress.setLastData(data,false,StreamPlayer.UNKNOWN);
+		progress.setLastData(data,bytes,false,StreamPlayer.UNKNOWN);
 
-		if(recordingOverlap!=null)
+		int inPos=0;
+		while(inPos < bytes)
 		{
-			byte[] includingOverlap=new byte[recordingOverlap.length+bytes];
-			System.arraycopy(recordingOverlap,0,includingOverlap,0,recordingOverlap.length);
-			System.arraycopy(data,0,includingOverlap,recordingOverlap.length,bytes);
-			data=includingOverlap;
-			bytes=includingOverlap.length;
-		}
+			int length=Math.min(recordingBuffer.length-recordingBufferPos,bytes-inPos);
+			System.arraycopy(data, inPos, recordingBuffer, recordingBufferPos, length);
+			recordingBufferPos+=length;
+			inPos+=length;
 
-		int pos=0;
-		while(true)
-		{
-			if(bytes-pos < ADPCMEncoder.BLOCKSAMPLES*2)
+			if(recordingBufferPos==recordingBuffer.length)
 			{
-				if(bytes-pos==0)
-				{
-					recordingOverlap=null;
-				}
-				else
-				{
-					recordingOverlap=new byte[bytes-pos];
-					System.arraycopy(data,pos,recordingOverlap,0,bytes-pos);
-				}
-				break;
+				addRecordedBlock(recordingBufferPos);
+				recordingBufferPos=0;
 			}
-
-			recordedData.add(ADPCMEncoder.encodeBlock(data, pos, ADPCMEncoder.BLOCKSAMPLES*2).getData());
-			pos+=ADPCMEncoder.BLOCKSAMPLES*2;
 		}
 
 		if(stopped)
 		{
 			// Do partial block
-			if(recordingOverlap!=null)
+			if(recordingBufferPos!=0)
 			{
-				recordedData.add(ADPCMEncoder.encodeBlock(recordingOverlap, 0, recordingOverlap.length).getData());
-				recordingOverlap=null;
+				addRecordedBlock(recordingBufferPos);
+				recordingBufferPos=0;
 			}
 
 			progress.setUploading();
@@ -903,17 +1091,32 @@ public class StreamPlayerUI extends JPanel implements
 			// Build content to upload
 			try
 			{
+				int samples=recordedBlocks*ADPCMEncoder.BLOCKSAMPLES;
 				ByteArrayOutputStream upload=new ByteArrayOutputStream();
-				ADPCMEncoder.writeWavHeader(upload, recordedData.size()*ADPCMEncoder.BLOCKSAMPLES);
+				ADPCMEncoder.writeWavHeader(upload, samples);
+				int remaining=recordedBlocks*ADPCMEncoder.BLOCKBYTES;
 				while(!recordedData.isEmpty())
 				{
-					upload.write(recordedData.removeFirst());
+					byte[] page=recordedData.removeFirst();
+					upload.write(page, 0, Math.min(page.length, remaining));
+					remaining-=page.length;
 				}
+				recordedBlocks=0;
 				if(recordTarget!=null)
 				{
 					recordTarget.initPlay(upload.toByteArray());
 				}
-				uploader=new Uploader(this,recordURL,upload.toByteArray());
+				if(liveUpload && !uploader.hasFailed())
+				{
+					// Blocks have already been sent
+					uploader.finish(samples);
+				}
+				else
+				{
+					// Not live, or the live upload failed part way; send it all now
+					uploader=new Uploader(this,recordURL,upload.toByteArray(),
+						uploadTrace);
+				}
 			}
 			catch(IOException e)
 			{
@@ -931,6 +1134,29 @@ public class StreamPlayerUI extends JPanel implements
 		}
 	}
 
+	/**
+	 * Encodes the recording buffer, stores the encoded block and, if uploading
+	 * live, sends it to the server.
+	 * @param bytes Number of bytes in the buffer (if not a full block, the rest
+	 *   is treated as silence)
+	 */
+	private void addRecordedBlock(int bytes)
+	{
+		// Encode straight into the current page, starting a new one if full
+		int offset=(recordedBlocks%RECORDEDPAGEBLOCKS)*ADPCMEncoder.BLOCKBYTES;
+		if(offset==0)
+		{
+			recordedData.add(new byte[RECORDEDPAGEBLOCKS*ADPCMEncoder.BLOCKBYTES]);
+		}
+		byte[] page=recordedData.getLast();
+		ADPCMEncoder.encodeBlock(recordingBuffer, 0, bytes, page, offset, null);
+		recordedBlocks++;
+		if(liveUpload)
+		{
+			uploader.addData(page, offset, ADPCMEncoder.BLOCKBYTES);
+		}
+	}
+
 	private void cancelUpload()
 	{
 		uploader.cancel();
@@ -1078,6 +1304,13 @@ public class StreamPlayerUI extends JPanel implements
 			break;
 		}
 
+		// A live upload could still be waiting for data that won't now arrive
+		if(liveUpload && uploader!=null)
+		{
+			uploader.cancel();
+			uploader=null;
+		}
+
 		// Stop progress display and stream
 		progress.close();
 		if(stream!=null)
@@ -21,8 +21,9 @@ If not, see <http://www.gnu.org/licenses/>.
 package uk.ac.open.audio.streaming;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
-import uk.ac.open.audio.AudioException;
+import uk.ac.open.audio.*;
 
 /**
  * Interface implemented by anything that can stream data.
@@ -37,11 +38,38 @@ public interface StreamableDecoder
 	 */
 	public void init(InputStream is) throws AudioException;
 
+	/**
+	 * @return Format closest to the audio as stored, so that producing it needs
+	 *   the least conversion; only valid after init
+	 */
+	public PlaybackDevice.Format getNativeFormat();
+
+	/**
+	 * Sets the format that decode returns. The default is 44.1 kHz stereo.
+	 * May be called after init, but not once decoding has begun.
+	 * @param format Output format
+	 */
+	public void setOutputFormat(PlaybackDevice.Format format);
+
 	/**
 	 * Retrieves audio data. Blocks until sufficient data is available from the
 	 * InputStream.
-	 * @return Decoded data in 16-bit 44.1kHz stereo little-endian, null at EOF
+	 * @return Decoded data in 16-bit little-endian, in the output format (44.1
+	 *   kHz stereo unless changed), null at EOF
 	 * @throws AudioException If there's any problem
 	 */
 	public byte[] decode() throws AudioException;
+
+	/**
+	 * Decodes audio into a caller-owned buffer, filling it from its position
+	 * as far as possible. Frames that don't entirely fit are split, with the
+	 * rest returned by the next call. Blocks until sufficient data is
+	 * available from the InputStream.
+	 * @param buffer Buffer that receives 16-bit little-endian data in the
+	 *   output format; its position is advanced
+	 * @return Number of bytes added (less than the space available only at
+	 *   end of stream), or -1 if already at end of stream
+	 * @throws AudioException If there's any problem
+	 */
+	public int decodeInto(ByteBuffer buffer) throws AudioException;
 }
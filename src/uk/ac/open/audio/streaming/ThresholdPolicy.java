@@ -0,0 +1,92 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+/**
+ * Original buffering policy (the default): the more the download speed
+ * exceeds the playback rate, the less audio needs to be buffered. If
+ * downloading is no faster than playback, waits until the rest can be
+ * downloaded in the time it takes to play (with a safety factor).
+ */
+public class ThresholdPolicy implements BufferingPolicy
+{
+	/** Delay used if it isn't possible to estimate one */
+	private final static int LONGDELAY=999999;
+
+	public int getPlaybackDelay(Status status)
+	{
+		int bytesDownloaded=status.getBytesDownloaded(),
+			bytesLength=status.getLength();
+		int msDelay=LONGDELAY;
+
+		// Check if we already downloaded the whole file, if so we can start now
+		// (streams of unknown length always start as soon as there is audio)
+		if(bytesDownloaded >= bytesLength && status.getSecondsDecoded() > 0)
+		{
+			return 0;
+		}
+
+		// If we're downloading faster than playback, then we can potentially start
+		// for that reason
+		double speedFactor = status.getDownloadRate() / status.getPlaybackRate();
+		double estimatedSecondsDownloaded=status.getSecondsDownloaded();
+
+		// Require 1 second buffer at 2x speed, etc
+		if( speedFactor > 2.2)
+		{
+			msDelay=(int)(1000 * (1-estimatedSecondsDownloaded)/speedFactor);
+		}
+		else if(speedFactor > 1.7)
+		{
+			msDelay=(int)(1000 * (5-estimatedSecondsDownloaded)/speedFactor);
+		}
+		else if(speedFactor > 1.4)
+		{
+			msDelay=(int)(1000 * (10-estimatedSecondsDownloaded)/speedFactor);
+		}
+		else if(speedFactor > 1.1)
+		{
+			msDelay=(int)(1000 * (30-estimatedSecondsDownloaded)/speedFactor);
+		}
+		// If we aren't downloading faster than playback then we can still start
+		// before the end
+		else if(bytesLength!=StreamPlayer.UNKNOWN)
+		{
+			// Number of seconds of audio played and estimated for total file
+			double secondsPlayed=status.getSecondsDecoded();
+			double secondsTotal=status.getSecondsTotal();
+
+			// Desired factor
+			double factor=1.3;
+
+			// Number of seconds it will take until the ratio between 'time it will
+			// take to playback samples we haven't played yet' and 'time it will take
+			// to download the rest' is 1.3
+			double secondsUntilFactor=(secondsTotal-secondsPlayed-
+					(factor*(double)(bytesLength-bytesDownloaded)/status.getDownloadRate()))/-factor;
+
+			msDelay=(int)(secondsUntilFactor*1000);
+		}
+
+		msDelay=Math.max(msDelay,0);
+		return msDelay;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+import java.io.*;
+
+/**
+ * Input stream that delivers data no faster than a {@link NetworkTrace}
+ * allows, for testing behaviour on slow networks. Timing starts when the
+ * stream is created. Interrupting a thread that is waiting for data causes
+ * an InterruptedIOException.
+ */
+public class ThrottledInputStream extends FilterInputStream
+{
+	/** Most data delivered at once, in milliseconds at current speed */
+	private final static int CHUNKMS=20;
+
+	private final NetworkTrace trace;
+	private final long start;
+	private long position,lastDue;
+
+	/**
+	 * @param in Stream to read from
+	 * @param trace Network speed over time
+	 */
+	public ThrottledInputStream(InputStream in,NetworkTrace trace)
+	{
+		super(in);
+		this.trace=trace;
+		this.start=System.currentTimeMillis();
+		this.lastDue=start;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		byte[] b=new byte[1];
+		return read(b,0,1)==-1 ? -1 : b[0]&0xff;
+	}
+
+	@Override
+	public int read(byte[] b,int off,int len) throws IOException
+	{
+		if(len==0)
+		{
+			return 0;
+		}
+		int chunk=trace.getChunkSize(lastDue-start,CHUNKMS);
+		int read=in.read(b,off,Math.min(len,chunk));
+		if(read<=0)
+		{
+			return read;
+		}
+		position+=read;
+		lastDue=Math.max(lastDue,start+trace.getArrivalTime(position));
+		NetworkTrace.waitUntil(lastDue);
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException
+	{
+		// Skipped data still has to arrive
+		byte[] buffer=new byte[(int)Math.min(n,4096)];
+		long skipped=0;
+		while(skipped<n)
+		{
+			int read=read(buffer,0,(int)Math.min(n-skipped,buffer.length));
+			if(read==-1)
+			{
+				break;
+			}
+			skipped+=read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return 0;
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+Copyright 2009 The Open University
+http://www.open.ac.uk/lts/projects/audioapplets/
+
+This file is part of the "Open University audio applets" project.
+
+The "Open University audio applets" project is free software: you can
+redistribute it and/or modify it under the terms of the GNU General Public
+License as published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+The "Open University audio applets" project is distributed in the hope that it
+will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with the "Open University audio applets" project.
+If not, see <http://www.gnu.org/licenses/>.
+*/
+package uk.ac.open.audio.streaming;
+
+import java.io.*;
+
+/**
+ * Output stream that sends data no faster than a {@link NetworkTrace}
+ * allows, for testing behaviour on slow networks. Timing starts when the
+ * stream is created. Each write returns once the data would have been
+ * delivered; interrupting a thread that is waiting causes an
+ * InterruptedIOException.
+ */
+public class ThrottledOutputStream extends FilterOutputStream
+{
+	/** Most data sent at once, in milliseconds at current speed */
+	private final static int CHUNKMS=20;
+
+	private final NetworkTrace trace;
+	private final long start;
+	private long position,lastDue;
+
+	/**
+	 * @param out Stream to write to
+	 * @param trace Network speed over time
+	 */
+	public ThrottledOutputStream(OutputStream out,NetworkTrace trace)
+	{
+		super(out);
+		this.trace=trace;
+		this.start=System.currentTimeMillis();
+		this.lastDue=start;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] {(byte)b},0,1);
+	}
+
+	@Override
+	public void write(byte[] b,int off,int len) throws IOException
+	{
+		while(len>0)
+		{
+			int chunk=Math.min(len,trace.getChunkSize(lastDue-start,CHUNKMS));
+			out.write(b,off,chunk);
+			off+=chunk;
+			len-=chunk;
+			position+=chunk;
+			lastDue=Math.max(lastDue,start+trace.getArrivalTime(position));
+			NetworkTrace.waitUntil(lastDue);
+		}
+	}
+}
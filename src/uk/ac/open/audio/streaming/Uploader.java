@@ -20,38 +20,20 @@ If not, see <http://www.gnu.org/licenses/>.
 */
 package uk.ac.open.audio.streaming;
 
-import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
 
 /**
  * Handles upload of audio recordings.
  */
 public class Uploader
 {
-	/**
-	 * If non-zero, limits uploading to this many bytes per second over 2.
-	 */
-	private static int ARTIFICIALDELAY_BPS;
-
-	/**
-	 * Sets upload delay simulation.
-	 * @param bps Simulated bytes per second
-	 */
-	public static void simulateUploads(int bps)
-	{
-		ARTIFICIALDELAY_BPS=bps;
-		if(bps==0)
-		{
-			System.err.println("[uk.ac.open.audio.streaming.Uploader] " +
-				"Upload delay disabled");
-		}
-		else
-		{
-			System.err.println("[uk.ac.open.audio.streaming.Uploader] " +
-				"Simulating uploads at "+ARTIFICIALDELAY_BPS+" bytes/s");
-		}
-	}
+	// Metrics shared by all uploads (throughput is only for non-live uploads)
+	private final static Metrics.Histogram THROUGHPUT=
+		Metrics.histogram("upload.bytesPerSecond");
+	private final static Metrics.Counter BYTES=Metrics.counter("upload.bytes");
 
 	/** Size of upload chunks */
 	private final static int LARGEBUFFERSIZE=4096,SMALLBUFFERSIZE=1024;
@@ -66,7 +48,8 @@ public class Uploader
 		public void uploadError(Throwable t);
 
 		/**
-		 * Called to update status.
+		 * Called to update status. For live uploads, this is only called once
+		 * {@link Uploader#finish} has been called and the total is known.
 		 * @param transferred Bytes transferred
 		 * @param total Total bytes
 		 */
@@ -76,6 +59,15 @@ public class Uploader
 	private Handler h;
 	private URL u;
 	private byte[] data;
+	/** Simulated network, or null for none */
+	private NetworkTrace trace;
+
+	/** Blocks waiting to be sent in live mode; null if not live */
+	private LinkedList<ByteBuffer> pending;
+	private boolean finished;
+	private int samples;
+	/** True once the upload has failed, after which live data is ignored */
+	private boolean failed;
 
 	private boolean close,closed;
 
@@ -87,24 +79,274 @@ public class Uploader
 	 * @param data Data to upload
 	 */
 	public Uploader(Handler h,URL u,byte[] data)
+	{
+		this(h,u,data,null);
+	}
+
+	/**
+	 * Posts the given data to the URL over a simulated network connection.
+	 * @param h Handler that receives information on progress
+	 * @param u URL to upload to
+	 * @param data Data to upload
+	 * @param trace Simulated network speed, or null to send at full speed
+	 */
+	public Uploader(Handler h,URL u,byte[] data,NetworkTrace trace)
 	{
 		this.h=h;
 		this.u=u;
+		this.trace=trace;
 
 		this.data=data;
 
 		new UploadThread();
 	}
 
+	/**
+	 * Begins a live upload, where data is sent as soon as it is added with
+	 * {@link #addData}. The connection uses chunked transfer because the
+	 * length isn't known in advance. Because the WAV header has to be sent
+	 * before the recording finishes, the total sample count is sent as an
+	 * extra form field 'samples' after the audio.
+	 * @param h Handler that receives information on progress
+	 * @param u URL to upload to
+	 */
+	public Uploader(Handler h,URL u)
+	{
+		this(h,u,(NetworkTrace)null);
+	}
+
+	/**
+	 * Begins a live upload over a simulated network connection.
+	 * @param h Handler that receives information on progress
+	 * @param u URL to upload to
+	 * @param trace Simulated network speed, or null to send at full speed
+	 */
+	public Uploader(Handler h,URL u,NetworkTrace trace)
+	{
+		this.h=h;
+		this.u=u;
+		this.trace=trace;
+
+		this.pending=new LinkedList<ByteBuffer>();
+
+		new UploadThread();
+	}
+
+	/**
+	 * Adds data to a live upload. The data will be sent as soon as possible.
+	 * If the upload has already failed, the data is ignored.
+	 * @param block Data to add (must not be modified afterwards)
+	 * @throws IllegalStateException If this is not a live upload, or it has
+	 *   already finished
+	 */
+	public void addData(byte[] block) throws IllegalStateException
+	{
+		addData(block,0,block.length);
+	}
+
+	/**
+	 * Adds part of an array to a live upload. The data will be sent as soon as
+	 * possible. If the upload has already failed, the data is ignored.
+	 * @param data Array containing data (the given range must not be modified
+	 *   afterwards)
+	 * @param offset Offset of data within array
+	 * @param length Length of data
+	 * @throws IllegalStateException If this is not a live upload, or it has
+	 *   already finished
+	 */
+	public synchronized void addData(byte[] data,int offset,int length)
+		throws IllegalStateException
+	{
+		if(pending==null || finished)
+		{
+			throw new IllegalStateException("Not accepting live data");
+		}
+		if(failed)
+		{
+			return;
+		}
+		pending.addLast(ByteBuffer.wrap(data,offset,length));
+		notifyAll();
+	}
+
+	/**
+	 * Marks the end of a live upload. Remaining data will be sent, followed by
+	 * the sample count. Does nothing if the upload has already failed.
+	 * @param samples Total number of samples in the recording
+	 * @throws IllegalStateException If this is not a live upload, or it has
+	 *   already finished
+	 */
+	public synchronized void finish(int samples) throws IllegalStateException
+	{
+		if(pending==null || finished)
+		{
+			throw new IllegalStateException("Not accepting live data");
+		}
+		if(failed)
+		{
+			return;
+		}
+		this.samples=samples;
+		finished=true;
+		notifyAll();
+	}
+
+	/**
+	 * @return True if the upload has failed (the handler has been, or is about
+	 *   to be, told about the error)
+	 */
+	public synchronized boolean hasFailed()
+	{
+		return failed;
+	}
+
 	/** Thread handles actual upload */
 	private final class UploadThread extends Thread
 	{
+		private int transferred,bufferSize,total;
+		private long lastTime;
+
 		private UploadThread()
 		{
 			super("Data uploader");
 			start();
 		}
 
+		/**
+		 * Writes one part of the upload, reporting progress as it goes (unless
+		 * the total is not yet known).
+		 * @param os Output stream
+		 * @param part Data to write
+		 * @return False if the upload was cancelled
+		 * @throws IOException Any error writing data
+		 */
+		private boolean write(OutputStream os,byte[] part) throws IOException
+		{
+			return write(os,part,0,part.length);
+		}
+
+		/**
+		 * Writes one part of the upload from within an array.
+		 * @param os Output stream
+		 * @param part Array containing data to write
+		 * @param offset Offset of data within array
+		 * @param length Length of data
+		 * @return False if the upload was cancelled
+		 * @throws IOException Any error writing data
+		 */
+		private boolean write(OutputStream os,byte[] part,int offset,int length)
+			throws IOException
+		{
+			int pos=offset,end=offset+length;
+			while(pos!=end)
+			{
+				int toWrite=Math.min(bufferSize,end-pos);
+				os.write(part,pos,toWrite);
+				if(close)
+				{
+					return false;
+				}
+
+				long now=System.currentTimeMillis();
+				if(now-lastTime>500 && bufferSize==LARGEBUFFERSIZE)
+				{
+					// Switch to a smaller buffer for a modem connection so that we
+					// display progress better
+					bufferSize=SMALLBUFFERSIZE;
+				}
+				else if(now-lastTime<100 && bufferSize==SMALLBUFFERSIZE)
+				{
+					// Switch back up to large buffer if the upload was reasonably
+					// fast
+					bufferSize=LARGEBUFFERSIZE;
+				}
+				lastTime=now;
+				pos+=toWrite;
+				transferred+=toWrite;
+				if(total!=-1)
+				{
+					h.uploadStatus(transferred,total);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Writes live data as it arrives, until the upload is finished, then
+		 * writes the sample count field.
+		 * @param os Output stream
+		 * @param boundary Multipart boundary
+		 * @param footer Footer that will be written afterwards
+		 * @return False if the upload was cancelled
+		 * @throws IOException Any error writing data
+		 */
+		private boolean writeLive(OutputStream os,String boundary,byte[] footer)
+			throws IOException
+		{
+			while(true)
+			{
+				ByteBuffer block;
+				synchronized(Uploader.this)
+				{
+					while(pending.isEmpty() && !finished && !close)
+					{
+						try
+						{
+							Uploader.this.wait();
+						}
+						catch (InterruptedException e)
+						{
+						}
+					}
+					if(close)
+					{
+						return false;
+					}
+					if(pending.isEmpty())
+					{
+						break;
+					}
+					block=pending.removeFirst();
+
+					// Once finished, the total is known so progress can be reported
+					if(finished && total==-1)
+					{
+						total=transferred+block.remaining()+getTrailer(boundary).length+
+							footer.length;
+						for(ByteBuffer remaining : pending)
+						{
+							total+=remaining.remaining();
+						}
+					}
+				}
+				if(!write(os,block.array(),block.arrayOffset()+block.position(),
+					block.remaining()))
+				{
+					return false;
+				}
+			}
+
+			// If all data was already sent when it finished, work out total now
+			byte[] trailer=getTrailer(boundary);
+			if(total==-1)
+			{
+				total=transferred+trailer.length+footer.length;
+			}
+			return write(os,trailer);
+		}
+
+		/**
+		 * @param boundary Multipart boundary
+		 * @return Form field containing the sample count
+		 * @throws IOException Any error encoding text
+		 */
+		private byte[] getTrailer(String boundary) throws IOException
+		{
+			return ("\r\n--"+boundary+"\r\n" +
+				"Content-Disposition: form-data; name=\"samples\"\r\n\r\n" +
+				samples).getBytes("UTF-8");
+		}
+
 		@Override
 		public void run()
 		{
@@ -119,75 +361,51 @@ public class Uploader
 						"Content-Transfer-Encoding: binary\r\n\r\n").getBytes("UTF-8");
 				byte[] footer=
 					("\r\n--"+boundary+"--\r\n").getBytes("UTF-8");
-				byte[] fullData=new byte[header.length+data.length+footer.length];
-				System.arraycopy(header, 0, fullData, 0, header.length);
-				System.arraycopy(data,0,fullData,header.length,data.length);
-				System.arraycopy(footer,0,fullData,header.length+data.length,
-						footer.length);
-				data=fullData;
 
+				// Fixed-length or chunked mode means the connection sends the body as
+				// we write it, instead of buffering the whole thing first
 				HttpURLConnection connection=(HttpURLConnection)u.openConnection();
 				connection.setDoOutput(true);
 				connection.setRequestMethod("POST");
 				connection.setRequestProperty("Content-Type",
 						"multipart/form-data, boundary="+boundary);
+				if(pending==null)
+				{
+					total=header.length+data.length+footer.length;
+					connection.setFixedLengthStreamingMode(total);
+				}
+				else
+				{
+					total=-1;
+					connection.setChunkedStreamingMode(LARGEBUFFERSIZE);
+				}
+				long start=System.currentTimeMillis();
 				connection.connect();
 				OutputStream os=connection.getOutputStream();
-
-				int pos=0;
-				long lastTime=System.currentTimeMillis();
-				int bufferSize=SMALLBUFFERSIZE;
-				while(pos!=data.length)
+				if(trace!=null)
 				{
-					int toWrite=Math.min(bufferSize,data.length-pos);
-					os.write(data,pos,toWrite);
-					if(close)
-					{
-						os.close();
-						connection.disconnect();
-						return;
-					}
-
-					long now=System.currentTimeMillis();
-					if(ARTIFICIALDELAY_BPS!=0)
-					{
-						try
-						{
-							long until=now+(toWrite*1000)/ARTIFICIALDELAY_BPS;
-
-							while(now<until)
-							{
-								sleep(until-now);
-								now=System.currentTimeMillis();
-							}
-
-							// Special pause feature - place mouse in top right of screen to cause
-							// network congestion
-							while(MouseInfo.getPointerInfo().getLocation().equals(new Point(0,0)))
-							{
-								sleep(500);
-							}
-						}
-						catch (InterruptedException e)
-						{
-						}
-					}
+					os=new ThrottledOutputStream(os,trace);
+				}
 
-					if(now-lastTime>500 && bufferSize==LARGEBUFFERSIZE)
-					{
-						// Switch to a smaller buffer for a modem connection so that we
-						// display progress better
-						bufferSize=SMALLBUFFERSIZE;
-					}
-					else if(now-lastTime<100 && bufferSize==SMALLBUFFERSIZE)
-					{
-						// Switch back up to large buffer if the upload was reasonably
-						// fast
-						bufferSize=LARGEBUFFERSIZE;
-					}
-					lastTime=now;
-					pos+=toWrite;
-					h.uploadStatus(pos,data.length);
+				// Write each part straight from its own array
+				transferred=0;
+				lastTime=System.currentTimeMillis();
+				bufferSize=SMALLBUFFERSIZE;
+				boolean ok=write(os,header);
+				if(ok && pending==null)
+				{
+					ok=write(os,data);
+				}
+				else if(ok)
+				{
+					ok=writeLive(os,boundary,footer);
+				}
+				if(!ok || !write(os,footer))
+				{
+					// Don't close the stream as it would complain about the missing
+					// bytes; dropping the connection is enough
+					connection.disconnect();
+					return;
 				}
 				os.close();
 
@@ -198,9 +416,26 @@ public class Uploader
 				}
 
 				connection.disconnect();
+				BYTES.add(transferred);
+				if(pending==null)
+				{
+					// A live upload lasts as long as the recording, so its rate is the
+					// audio bitrate rather than network throughput
+					THROUGHPUT.record(transferred*1000L/
+						Math.max(1,System.currentTimeMillis()-start));
+				}
 			}
 			catch(Throwable t)
 			{
+				// Nothing more will be sent, so stop queueing live data
+				synchronized(Uploader.this)
+				{
+					failed=true;
+					if(pending!=null)
+					{
+						pending.clear();
+					}
+				}
 				h.uploadError(t);
 			}
 			finally
@@ -55,7 +55,7 @@ public class MainPanel extends JPanel implements TabAppletFocuser
 
 	private HashMap<String,PageBase> pages=new HashMap<String,PageBase>();
 
-	private ADPCMRecording recording=new ADPCMRecording();
+	private ADPCMRecording recording=new ADPCMRecording(true);
 
 	/** Constructs. */
 	MainPanel()
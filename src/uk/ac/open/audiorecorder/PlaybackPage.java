@@ -21,6 +21,7 @@ If not, see <http://www.gnu.org/licenses/>.
 package uk.ac.open.audiorecorder;
 
 import java.awt.*;
+import java.io.IOException;
 
 import javax.swing.*;
 
@@ -41,8 +42,13 @@ public class PlaybackPage extends PageBase implements PlaybackDevice.Handler
 
 	private boolean isPlaying;
 
-	private ADPCMEncoder.Block[] blocks;
-	private int blockPos;
+	private int blockCount,blockPos;
+
+	/** Compressed block being played, reused for each one */
+	private byte[] encoded=new byte[ADPCMEncoder.BLOCKBYTES];
+	/** Decoded block being played, and position of the next unplayed byte */
+	private byte[] decoded=new byte[ADPCMEncoder.BLOCKSAMPLES*2];
+	private int decodedPos=decoded.length;
 
 	/**
 	 * @param owner Owner panel
@@ -75,7 +81,7 @@ public class PlaybackPage extends PageBase implements PlaybackDevice.Handler
 			playback=PlaybackDevice.construct(PlaybackDevice.Format.MONO_16KHZ, false);
 			adpcmPlayback.clear();
 			waveform.recordingRestart();
-			blocks=getRecording().getBlocks();
+			blockCount=getRecording().getBlockCount();
 		}
 		catch (Throwable t)
 		{
@@ -109,6 +115,7 @@ public class PlaybackPage extends PageBase implements PlaybackDevice.Handler
 			else
 			{
 				blockPos=0;
+				decodedPos=decoded.length;
 				adpcmPlayback.clear();
 				waveform.recordingRestart();
 				try
@@ -168,19 +175,38 @@ public class PlaybackPage extends PageBase implements PlaybackDevice.Handler
 		getOwner().setPage(MainPanel.PAGE_SAVE);
 	}
 
-	public byte[] playbackBlock()
+	public int playbackBlock(byte[] buffer)
 	{
-		if(blockPos<blocks.length)
+		if(decodedPos==decoded.length)
 		{
-			ADPCMEncoder.Block block=blocks[blockPos++];
-			adpcmPlayback.addBlock(block);
+			if(blockPos>=blockCount)
+			{
+				return -1;
+			}
+			ADPCMRecording recording=getRecording();
+			int minLevel,maxLevel;
+			try
+			{
+				recording.readBlock(blockPos, encoded, 0);
+				minLevel=recording.getMinLevel(blockPos);
+				maxLevel=recording.getMaxLevel(blockPos);
+				blockPos++;
+			}
+			catch(IOException e)
+			{
+				getOwner().showError(e);
+				return -1;
+			}
+			adpcmPlayback.addBlock(encoded, 0, minLevel, maxLevel);
 			waveform.recordingBlockAdded();
-			return ADPCMDecoder.decodeBlock(block.getData(), 0);
-		}
-		else
-		{
-			return null;
+			ADPCMDecoder.decodeBlock(encoded, 0, decoded, 0);
+			decodedPos=0;
 		}
+
+		int count=Math.min(buffer.length,decoded.length-decodedPos);
+		System.arraycopy(decoded,decodedPos,buffer,0,count);
+		decodedPos+=count;
+		return count;
 	}
 
 	public void playbackStopped()
@@ -117,6 +117,10 @@ public class RecordPage extends PageBase implements RecordingDevice.Handler
 	private byte[] buffer=new byte[ADPCMEncoder.BLOCKSAMPLES*2];
 	private int bufferPos;
 
+	/** Reused for each encoded block (the recording keeps its own copy) */
+	private byte[] encoded=new byte[ADPCMEncoder.BLOCKBYTES];
+	private ADPCMEncoder.Block block=new ADPCMEncoder.Block();
+
 	public void recordingBlock(byte[] data, int bytes, int level, boolean stopped)
 	{
 		int inPos=0;
@@ -129,9 +133,9 @@ public class RecordPage extends PageBase implements RecordingDevice.Handler
 
 			if(bufferPos==buffer.length)
 			{
-				ADPCMEncoder.Block block =
-					ADPCMEncoder.encodeBlock(buffer, 0, buffer.length);
-				getRecording().addBlock(block);
+				ADPCMEncoder.encodeBlock(buffer, 0, buffer.length, encoded, 0, block);
+				getRecording().addBlock(encoded, 0, block.getMinLevel(),
+					block.getMaxLevel());
 				waveform.recordingBlockAdded();
 
 				// Check if block is silent
@@ -185,9 +189,9 @@ public class RecordPage extends PageBase implements RecordingDevice.Handler
 			{
 				buffer[bufferPos]=0;
 			}
-			ADPCMEncoder.Block block =
-				ADPCMEncoder.encodeBlock(buffer, 0, buffer.length);
-			getRecording().addBlock(block);
+			ADPCMEncoder.encodeBlock(buffer, 0, buffer.length, encoded, 0, block);
+			getRecording().addBlock(encoded, 0, block.getMinLevel(),
+				block.getMaxLevel());
 			waveform.recordingBlockAdded();
 			bufferPos=0;
 		}
@@ -21,6 +21,7 @@ If not, see <http://www.gnu.org/licenses/>.
 package uk.ac.open.audiorecorder;
 
 import java.awt.*;
+import java.awt.event.*;
 import java.awt.geom.Rectangle2D;
 
 import javax.swing.*;
@@ -41,8 +42,13 @@ public class WaveformDisplay extends JComponent
 
 	private final static int DANGERTIPS=2;
 
+	private final static String
+		ZOOMOUTTIP="Click to show the whole recording",
+		ZOOMINTIP="Click to show only the latest audio";
+
 	private ADPCMRecording recording;
 	private int position=0;
+	private int blocksPerPixel=1;
 
 	/**
 	 * @param recording Recording to display
@@ -51,6 +57,33 @@ public class WaveformDisplay extends JComponent
 	{
 		this.recording=recording;
 		setPreferredSize(new Dimension(500,60));
+		setToolTipText(ZOOMOUTTIP);
+
+		// Clicking switches between recent audio and the whole recording
+		addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent e) {
+				setBlocksPerPixel(blocksPerPixel==0 ? 1 : 0);
+			}
+		});
+	}
+
+	/**
+	 * Sets the zoom level. By default there is one block per pixel; clicking
+	 * the display switches between that and fitting the whole recording.
+	 * @param blocksPerPixel Blocks shown in each pixel, or 0 to fit the
+	 *   whole recording so far into the display
+	 * @throws IllegalArgumentException If blocksPerPixel is negative
+	 */
+	public void setBlocksPerPixel(int blocksPerPixel)
+		throws IllegalArgumentException
+	{
+		if(blocksPerPixel<0)
+		{
+			throw new IllegalArgumentException("Invalid zoom: "+blocksPerPixel);
+		}
+		this.blocksPerPixel=blocksPerPixel;
+		setToolTipText(blocksPerPixel==0 ? ZOOMINTIP : ZOOMOUTTIP);
+		repaint();
 	}
 
 	@Override
@@ -79,23 +112,24 @@ public class WaveformDisplay extends JComponent
 		String time=minutes+":"+(seconds/10)+""+(seconds%10);
 		g2.drawString(time, 0, baselinePos);
 
-		// Get data up to current position
-		int start=position-width;
-		int count=width;
-		if(start<0)
+		// Get data up to current position, at the current zoom
+		int[] min=new int[width],max=new int[width];
+		if(blocksPerPixel==0)
 		{
-			count+=start;
-			start=0;
+			if(position>0)
+			{
+				recording.getLevelSummary(0, position, width, min, max, 0);
+			}
 		}
-		ADPCMEncoder.Block[] blocks=recording.getBlocks(start, count);
-
-		// Build full data with one block per pixel
-		int[] min=new int[width],max=new int[width];
-		int offset=width-blocks.length;
-		for(int i=0;i<blocks.length;i++)
+		else
 		{
-			min[i+offset]=blocks[i].getMinLevel();
-			max[i+offset]=blocks[i].getMaxLevel();
+			// Right-align, leaving blank pixels at the left if not enough data
+			int pixels=Math.min(width, position/blocksPerPixel);
+			if(pixels>0)
+			{
+				recording.getLevelSummary(position-pixels*blocksPerPixel, position,
+					pixels, min, max, width-pixels);
+			}
 		}
 
 		float scaleFactor=((float)height/2.0f)/32768f;
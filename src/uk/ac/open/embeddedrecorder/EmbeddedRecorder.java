@@ -211,24 +211,21 @@ public class EmbeddedRecorder extends JPanel
 		{
 			public void actionPerformed(ActionEvent e)
 			{
-				StreamPlayer.simulateDownloads(5120);
-				Uploader.simulateUploads(2560);
+				simulateNetwork(5120, 2560);
 			}
 		});
 		getActionMap().put("dsl", new AbstractAction()
 		{
 			public void actionPerformed(ActionEvent e)
 			{
-				StreamPlayer.simulateDownloads(60000);
-				Uploader.simulateUploads(30000);
+				simulateNetwork(60000, 30000);
 			}
 		});
 		getActionMap().put("normal", new AbstractAction()
 		{
 			public void actionPerformed(ActionEvent e)
 			{
-				StreamPlayer.simulateDownloads(0);
-				Uploader.simulateUploads(0);
+				simulateNetwork(0, 0);
 			}
 		});
 
@@ -312,6 +309,47 @@ public class EmbeddedRecorder extends JPanel
 		}
 	}
 
+	/**
+	 * @param liveUpload True to upload recordings while they are still being
+	 *   recorded (server must accept the 'samples' field)
+	 */
+	public void setLiveUpload(boolean liveUpload)
+	{
+		recordPlayer.setLiveUpload(liveUpload);
+	}
+
+	/**
+	 * Simulates a slow network connection for all players (for testing).
+	 * @param downloadBps Download speed in bytes per second, or 0 for full speed
+	 * @param uploadBps Upload speed in bytes per second, or 0 for full speed
+	 */
+	private void simulateNetwork(int downloadBps, int uploadBps)
+	{
+		NetworkTrace download = downloadBps == 0 ? null :
+			NetworkTrace.constant(downloadBps);
+		NetworkTrace upload = uploadBps == 0 ? null :
+			NetworkTrace.constant(uploadBps);
+		for(StreamPlayerUI player : new StreamPlayerUI[] {
+			listenPlayer, recordPlayer, userPlayer, modelPlayer})
+		{
+			if(player != null)
+			{
+				player.setSimulatedNetwork(download, upload);
+			}
+		}
+		if(downloadBps == 0)
+		{
+			System.err.println("[uk.ac.open.embeddedrecorder.EmbeddedRecorder] " +
+				"Network simulation disabled");
+		}
+		else
+		{
+			System.err.println("[uk.ac.open.embeddedrecorder.EmbeddedRecorder] " +
+				"Simulating network at " + downloadBps + "/" + uploadBps +
+				" bytes/s down/up");
+		}
+	}
+
 	private void groupEnable(boolean enable)
 	{
 		if(modelPlayer!=null)
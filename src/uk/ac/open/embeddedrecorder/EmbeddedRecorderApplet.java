@@ -179,6 +179,22 @@ public class EmbeddedRecorderApplet extends TabApplet
 				crossPlatformAudioStr+". Expecting y or n.");
 		}
 
+		boolean liveUpload;
+		String liveUploadStr = getParameter("liveupload");
+		if(null == liveUploadStr || liveUploadStr.equals("n"))
+		{
+			liveUpload = false;
+		}
+		else if(liveUploadStr.equals("y"))
+		{
+			liveUpload = true;
+		}
+		else
+		{
+			throw new IllegalArgumentException("Invalid liveupload: "+
+				liveUploadStr+". Expecting y or n.");
+		}
+
 		// Init recorder panel
 		try
 		{
@@ -197,6 +213,7 @@ public class EmbeddedRecorderApplet extends TabApplet
 				colours[COL_DARK], colours[COL_LIGHT], colours[COL_FAINT],
 				colours[COL_ALTDARK], colours[COL_ALTLIGHT], colours[COL_ALTFAINT],
 				colours[COL_CORNERS], crossPlatformAudio);
+			recorder.setLiveUpload(liveUpload);
 			getInner().add(recorder, BorderLayout.CENTER);
 		}
 		catch(MalformedURLException e)
@@ -0,0 +1,57 @@
+package uk.ac.open.audio;
+
+import java.nio.*;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test script for AudioUtil conversions.
+ */
+public class TestAudioUtil
+{
+	@Test
+	public void testBufferConversion()
+	{
+		Random random = new Random(9);
+		byte[] bytes = new byte[4003];
+		random.nextBytes(bytes);
+		short[] shorts = new short[1003];
+		for(int i=0; i<shorts.length; i++)
+		{
+			shorts[i] = (short)random.nextInt();
+		}
+
+		// Buffer versions match array versions, at odd offsets
+		for(int samples : new int[] {3, 31, 32, 250})
+		{
+			for(boolean stereo : new boolean[] {false, true})
+			{
+				short[][] toShort = new short[2][samples * 2 + 1];
+				byte[][] toByte = new byte[2][samples * 4 + 1];
+				assertEquals(stereo ? samples : samples * 2, AudioUtil.byteToShort(
+					bytes, 3, samples * 4, stereo, toShort[0], 1));
+				assertEquals(stereo ? samples : samples * 2, AudioUtil.byteToShort(
+					ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), 3,
+					samples * 4, stereo, toShort[1], 1));
+				assertEquals(samples * (stereo ? 4 : 2), AudioUtil.shortToByte(
+					shorts, 3, samples, stereo, toByte[0], 1));
+				assertEquals(samples * (stereo ? 4 : 2), AudioUtil.shortToByte(
+					shorts, 3, samples, stereo,
+					ByteBuffer.wrap(toByte[1]).order(ByteOrder.LITTLE_ENDIAN), 1));
+				assertArrayEquals(toShort[0], toShort[1]);
+				assertArrayEquals(toByte[0], toByte[1]);
+			}
+		}
+
+		// Check values against allocating versions
+		byte[] pair = { 0x34, 0x12, (byte)0xfe, (byte)0xff };
+		assertArrayEquals(new short[] {0x1234, -2},
+			AudioUtil.byteToShort(pair, 4, false));
+		assertArrayEquals(new short[] {(0x1234 - 2) / 2},
+			AudioUtil.byteToShort(pair, 4, true));
+		assertArrayEquals(new byte[] { 0x34, 0x12, 0x34, 0x12 },
+			AudioUtil.shortToByte(new short[] {0x1234}, 1, true));
+	}
+}
@@ -0,0 +1,90 @@
+package uk.ac.open.audio;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test script for ClosableThread running on the shared executor.
+ */
+public class TestClosableThread
+{
+	/** Task that parks until closed, recording its thread name. */
+	private static class Parker extends ClosableThread
+	{
+		private volatile String runningName;
+		private volatile boolean finished;
+
+		Parker(String name)
+		{
+			super(name, new Object());
+		}
+
+		@Override
+		protected void runInner()
+		{
+			runningName = Thread.currentThread().getName();
+			while(!shouldClose())
+			{
+				LockSupport.park(this);
+			}
+			finished = true;
+		}
+	}
+
+	@Test
+	public void testClose() throws Exception
+	{
+		// Several blocking tasks can run at once on the shared workers
+		Parker[] parkers = new Parker[10];
+		for(int i=0; i<parkers.length; i++)
+		{
+			parkers[i] = new Parker("Parker " + i);
+			parkers[i].start();
+		}
+		for(int i=0; i<parkers.length; i++)
+		{
+			long until = System.currentTimeMillis() + 5000;
+			while(parkers[i].runningName == null && System.currentTimeMillis() < until)
+			{
+				Thread.sleep(1);
+			}
+			assertEquals("Parker " + i, parkers[i].runningName);
+		}
+
+		// Close wakes parked tasks and waits for them to finish
+		for(Parker parker : parkers)
+		{
+			parker.close();
+			assertTrue(parker.finished);
+		}
+	}
+
+	@Test
+	public void testCloseSelf() throws Exception
+	{
+		final boolean[] done = new boolean[1];
+		ClosableThread task = new ClosableThread("Self closer", new Object())
+		{
+			@Override
+			protected void runInner()
+			{
+				// Doesn't wait for itself
+				close();
+				done[0] = shouldClose();
+			}
+		};
+		task.start();
+		task.close();
+		assertTrue(done[0]);
+		try
+		{
+			task.start();
+			fail();
+		}
+		catch(IllegalStateException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package uk.ac.open.audio;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test script for Resampler.
+ */
+public class TestResampler
+{
+	/**
+	 * Resamples data in chunks of random size.
+	 * @param resampler Resampler
+	 * @param data Input data
+	 * @param channels Number of channels
+	 * @param chunkSamples Maximum samples per chunk, or 0 for all at once
+	 * @return All output data
+	 */
+	private static short[] resample(Resampler resampler, short[] data,
+		int channels, int chunkSamples)
+	{
+		Random random = new Random(1);
+		short[] result = new short[data.length * 3 + 100];
+		int resultPos = 0;
+		for(int pos = 0; pos < data.length; )
+		{
+			int length = chunkSamples == 0 ? data.length :
+				Math.min(data.length - pos, (1 + random.nextInt(chunkSamples)) * channels);
+			int got = resampler.resample(data, pos, length);
+			System.arraycopy(resampler.getOutput(), 0, result, resultPos, got);
+			resultPos += got;
+			pos += length;
+		}
+		return Arrays.copyOf(result, resultPos);
+	}
+
+	@Test
+	public void testChunks()
+	{
+		Random random = new Random(5);
+		short[] data = new short[20000];
+		for(int i=0; i<data.length; i++)
+		{
+			data[i] = (short)(Math.sin(i / 7.0) * 20000 + random.nextInt(2000) - 1000);
+		}
+		int[][] rates = { {16000, 44100}, {22050, 44100}, {48000, 44100} };
+		for(Resampler.Quality quality : Resampler.Quality.values())
+		{
+			for(int[] rate : rates)
+			{
+				for(boolean stereo : new boolean[] {false, true})
+				{
+					int channels = stereo ? 2 : 1;
+					short[] whole = resample(new Resampler(stereo, rate[0], rate[1],
+						quality), data, channels, 0);
+					short[] chunked = resample(new Resampler(stereo, rate[0], rate[1],
+						quality), data, channels, 700);
+					assertArrayEquals(whole, chunked);
+
+					// Length matches the rate, allowing for filter latency (input
+					// samples held back for the next chunk)
+					long expected = (long)data.length / channels * rate[1] / rate[0];
+					int latency = quality == Resampler.Quality.LINEAR ? 1 : 30;
+					assertTrue(Math.abs(whole.length / channels - expected) <=
+						1 + latency * rate[1] / rate[0]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testConstant()
+	{
+		short[] data = new short[1000];
+		Arrays.fill(data, (short)-1234);
+		for(Resampler.Quality quality : Resampler.Quality.values())
+		{
+			for(int out : new int[] {8000, 44100})
+			{
+				Resampler resampler = new Resampler(false, 16000, out, quality);
+				for(int chunk=0; chunk<5; chunk++)
+				{
+					int got = resampler.resample(data, 0, data.length);
+
+					// Filters start from silence, so skip their first chunk
+					if(chunk == 0 && quality != Resampler.Quality.LINEAR)
+					{
+						continue;
+					}
+					for(int i=0; i<got; i++)
+					{
+						assertEquals(-1234, resampler.getOutput()[i]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param data Mono data
+	 * @param from First sample
+	 * @param to Sample after last
+	 * @return RMS level
+	 */
+	private static double rms(short[] data, int from, int to)
+	{
+		double total = 0;
+		for(int i=from; i<to; i++)
+		{
+			total += (double)data[i] * data[i];
+		}
+		return Math.sqrt(total / (to - from));
+	}
+
+	@Test
+	public void testUnrolledFilter()
+	{
+		// The default 8-tap filter has its own kernels; check them against a
+		// plain convolution with the same coefficients
+		Random random = new Random(3);
+		short[] data = new short[6000];
+		for(int i=0; i<data.length; i++)
+		{
+			data[i] = (short)(random.nextInt(65536) - 32768);
+		}
+		int[][] rates = { {16000, 44100}, {22050, 44100}, {48000, 44100} };
+		for(int[] rate : rates)
+		{
+			PolyphaseFilter filter = PolyphaseFilter.get(rate[0], rate[1], 4, 0.85);
+			assertEquals(8, filter.taps);
+			for(int channels=1; channels<=2; channels++)
+			{
+				short[] actual = resample(new Resampler(channels == 2, rate[0],
+					rate[1]), data, channels, 500);
+
+				// Filter starts with 3 samples of silence before the stream
+				int samples = data.length / channels;
+				for(int n=0; n*channels < actual.length; n++)
+				{
+					long position = (long)n * filter.step;
+					int index = (int)(position / filter.phases),
+						phase = (int)(position % filter.phases);
+					for(int channel=0; channel<channels; channel++)
+					{
+						int total = 1 << (PolyphaseFilter.SHIFT - 1);
+						for(int tap=0; tap<8; tap++)
+						{
+							int sample = index + tap - 3;
+							if(sample >= 0 && sample < samples)
+							{
+								total += data[sample * channels + channel] *
+									filter.coefficients[phase * 8 + tap];
+							}
+						}
+						int expected = Math.max(-32768, Math.min(32767,
+							total >> PolyphaseFilter.SHIFT));
+						assertEquals(expected, actual[n * channels + channel]);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testAliasing()
+	{
+		// A 7 kHz tone at 48 kHz can't be represented at 8 kHz, so should be
+		// removed rather than folding down to 1 kHz
+		short[] data = new short[48000];
+		for(int i=0; i<data.length; i++)
+		{
+			data[i] = (short)(Math.sin(2 * Math.PI * 7000 * i / 48000.0) * 16000);
+		}
+		Resampler linear = new Resampler(false, 48000, 8000, Resampler.Quality.LINEAR),
+			fir = new Resampler(false, 48000, 8000, Resampler.Quality.STANDARD);
+		int linearLength = linear.resample(data, 0, data.length),
+			firLength = fir.resample(data, 0, data.length);
+		double linearLevel = rms(linear.getOutput(), 100, linearLength),
+			firLevel = rms(fir.getOutput(), 100, firLength);
+		assertTrue(firLevel < 200);
+		assertTrue(firLevel * 10 < linearLevel);
+	}
+}
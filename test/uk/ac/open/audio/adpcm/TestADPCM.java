@@ -0,0 +1,332 @@
+package uk.ac.open.audio.adpcm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import uk.ac.open.audio.PlaybackDevice;
+
+/**
+ * Test script for the ADPCM encoder and decoder.
+ */
+public class TestADPCM
+{
+	private byte[] pcm;
+
+	@Before
+	public void before()
+	{
+		// A few hundred blocks of tone plus noise, not a whole number of blocks
+		Random random = new Random(42);
+		int samples = ADPCMEncoder.BLOCKSAMPLES * 300 + 123;
+		pcm = new byte[samples * 2];
+		for(int i=0; i<samples; i++)
+		{
+			int value = (int)(Math.sin(i / 10.0) * 12000) +
+				random.nextInt(4000) - 2000;
+			pcm[i*2] = (byte)value;
+			pcm[i*2+1] = (byte)(value >> 8);
+		}
+	}
+
+	/**
+	 * @return Encoded wav file using the sequential encoder
+	 * @throws IOException Any error
+	 */
+	private byte[] encodeSequential() throws IOException
+	{
+		File temp = File.createTempFile("adpcmtest", ".wav");
+		try
+		{
+			ADPCMEncoder.encodeToWav(pcm, temp);
+			byte[] wav = new byte[(int)temp.length()];
+			DataInputStream input = new DataInputStream(new FileInputStream(temp));
+			input.readFully(wav);
+			input.close();
+			return wav;
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+
+	@Test
+	public void testParallelEncode() throws Exception
+	{
+		byte[] wav = encodeSequential();
+		for(int threads : new int[] {0, 1, 3})
+		{
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			ADPCMEncoder.writeWavHeader(output, pcm.length / 2);
+			output.write(ADPCMEncoder.encode(pcm, threads));
+			assertArrayEquals(wav, output.toByteArray());
+		}
+	}
+
+	@Test
+	public void testParallelKeepsInterrupt() throws Exception
+	{
+		byte[] expected = ADPCMEncoder.encode(pcm, 1);
+		Thread.currentThread().interrupt();
+		try
+		{
+			// Still completes, but the caller can see it was interrupted
+			assertArrayEquals(expected, ADPCMEncoder.encode(pcm, 3));
+			assertTrue(Thread.currentThread().isInterrupted());
+		}
+		finally
+		{
+			Thread.interrupted();
+		}
+	}
+
+	@Test
+	public void testDecodeUnknownLength() throws Exception
+	{
+		// A live upload header has 0 samples, meaning the count isn't known
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ADPCMEncoder.writeWavHeader(output, 0);
+		byte[] blocks = ADPCMEncoder.encode(pcm, 1);
+		output.write(blocks);
+		byte[] decoded = ADPCMDecoder.decodeWav(output.toByteArray(), 1);
+		assertEquals(blocks.length / ADPCMEncoder.BLOCKBYTES *
+			ADPCMEncoder.BLOCKSAMPLES * 2, decoded.length);
+	}
+
+	@Test
+	public void testParallelWaitsAfterFailure() throws Exception
+	{
+		// Whichever range fails, the rest must have stopped before it returns
+		for(final int failing : new int[] {0, 2})
+		{
+			final AtomicInteger finished = new AtomicInteger();
+			try
+			{
+				ParallelBlocks.run(3 * 64, 3, new ParallelBlocks.Range()
+				{
+					public void process(int start, int end)
+					{
+						if(start / 64 == failing)
+						{
+							throw new IllegalStateException("Range " + failing);
+						}
+						try
+						{
+							Thread.sleep(start == 64 ? 400 : 100);
+						}
+						catch(InterruptedException e)
+						{
+						}
+						finished.incrementAndGet();
+					}
+				});
+				fail();
+			}
+			catch(IllegalStateException e)
+			{
+				assertEquals("Range " + failing, e.getMessage());
+			}
+			assertEquals(2, finished.get());
+		}
+	}
+
+	@Test
+	public void testParallelDecode() throws Exception
+	{
+		byte[] wav = encodeSequential();
+
+		// Sequential decode one block at a time
+		ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+		for(int block = 0; block * ADPCMEncoder.BLOCKBYTES < wav.length - 60;
+			block++)
+		{
+			sequential.write(ADPCMDecoder.decodeBlock(wav,
+				60 + block * ADPCMEncoder.BLOCKBYTES));
+		}
+		byte[] expected = new byte[pcm.length];
+		System.arraycopy(sequential.toByteArray(), 0, expected, 0, pcm.length);
+
+		for(int threads : new int[] {0, 1, 3})
+		{
+			assertArrayEquals(expected, ADPCMDecoder.decodeWav(wav, threads));
+		}
+	}
+
+	@Test
+	public void testExistingArrays() throws Exception
+	{
+		byte[] encoded = new byte[ADPCMEncoder.BLOCKBYTES + 7];
+		byte[] decoded = new byte[ADPCMEncoder.BLOCKSAMPLES * 2 + 5];
+		ADPCMEncoder.Block levels = new ADPCMEncoder.Block();
+		for(int length : new int[] {ADPCMEncoder.BLOCKSAMPLES * 2, 100, 3})
+		{
+			ADPCMEncoder.Block block = ADPCMEncoder.encodeBlock(pcm, 10, length);
+			ADPCMEncoder.encodeBlock(pcm, 10, length, encoded, 7, levels);
+			byte[] actual = new byte[ADPCMEncoder.BLOCKBYTES];
+			System.arraycopy(encoded, 7, actual, 0, actual.length);
+			assertArrayEquals(block.getData(), actual);
+			assertNull(levels.getData());
+			assertEquals(block.getMinLevel(), levels.getMinLevel());
+			assertEquals(block.getMaxLevel(), levels.getMaxLevel());
+
+			ADPCMDecoder.decodeBlock(encoded, 7, decoded, 5);
+			actual = new byte[ADPCMEncoder.BLOCKSAMPLES * 2];
+			System.arraycopy(decoded, 5, actual, 0, actual.length);
+			assertArrayEquals(ADPCMDecoder.decodeBlock(block.getData(), 0), actual);
+		}
+	}
+
+	/**
+	 * @param data Data
+	 * @param offset Offset within data
+	 * @param length Length
+	 * @return CRC-32 of the data
+	 */
+	private static long crc(byte[] data, int offset, int length)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return crc.getValue();
+	}
+
+	@Test
+	public void testKnownVectors() throws Exception
+	{
+		// Expected values come from the original (allocating, unoptimised)
+		// encoder and decoder
+		byte[] input = new byte[ADPCMEncoder.BLOCKSAMPLES * 2];
+		for(int i=0; i<ADPCMEncoder.BLOCKSAMPLES; i++)
+		{
+			int value = (int)(Math.sin(i / 7.0) * (i * 30)) + ((i * 37) % 500) - 250;
+			value = Math.max(-32768, Math.min(32767, value));
+			input[i*2] = (byte)value;
+			input[i*2+1] = (byte)(value >> 8);
+		}
+		String start = "06ff1200343535433343f20f08889899a9fa8f08080011322f2233244322228f";
+		int[] startSamples = { -250, -204, -161, -100, -43, 39, 116, 186 };
+
+		byte[] encoded = new byte[ADPCMEncoder.BLOCKBYTES + 3];
+		ADPCMEncoder.encodeBlock(input, 0, input.length, encoded, 3, null);
+		for(int i=0; i<start.length() / 2; i++)
+		{
+			assertEquals(Integer.parseInt(start.substring(i*2, i*2+2), 16),
+				encoded[3 + i] & 0xff);
+		}
+		assertEquals(0xa6477c3aL, crc(encoded, 3, ADPCMEncoder.BLOCKBYTES));
+		assertArrayEquals(ADPCMEncoder.encodeBlock(input, 0, input.length).getData(),
+			Arrays.copyOfRange(encoded, 3, 3 + ADPCMEncoder.BLOCKBYTES));
+
+		// Partial block is padded with silence
+		assertEquals(0x2ec997e0L, crc(ADPCMEncoder.encodeBlock(input, 0, 200).getData(),
+			0, ADPCMEncoder.BLOCKBYTES));
+
+		byte[] decoded = new byte[ADPCMEncoder.BLOCKSAMPLES * 2 + 1];
+		for(boolean table : new boolean[] {true, false})
+		{
+			if(table)
+			{
+				ADPCMDecoder.decodeBlock(encoded, 3, decoded, 1);
+			}
+			else
+			{
+				ADPCMDecoder.decodeBlockBasic(encoded, 3, decoded, 1);
+			}
+			for(int i=0; i<startSamples.length; i++)
+			{
+				assertEquals(startSamples[i],
+					(decoded[1 + i*2] & 0xff) | (decoded[2 + i*2] << 8));
+			}
+			assertEquals(0xaaf03266L, crc(decoded, 1, ADPCMEncoder.BLOCKSAMPLES * 2));
+		}
+	}
+
+	@Test
+	public void testTableDecode() throws Exception
+	{
+		// Random blocks cover far more of the table than real audio does
+		Random random = new Random(17);
+		byte[] adpcm = new byte[ADPCMEncoder.BLOCKBYTES];
+		byte[] basic = new byte[ADPCMEncoder.BLOCKSAMPLES * 2];
+		for(int i=0; i<2000; i++)
+		{
+			random.nextBytes(adpcm);
+			adpcm[2] = (byte)random.nextInt(89);
+			ADPCMDecoder.decodeBlockBasic(adpcm, 0, basic, 0);
+			assertArrayEquals(basic, ADPCMDecoder.decodeBlock(adpcm, 0));
+		}
+	}
+
+	@Test
+	public void testOutputFormat() throws Exception
+	{
+		byte[] wav = encodeSequential();
+		for(PlaybackDevice.Format format : PlaybackDevice.Format.values())
+		{
+			ADPCMDecoder decoder = new ADPCMDecoder();
+			decoder.init(new ByteArrayInputStream(wav));
+			assertEquals(PlaybackDevice.Format.MONO_16KHZ, decoder.getNativeFormat());
+			decoder.setOutputFormat(format);
+			byte[] first = decoder.decode();
+			if(format == PlaybackDevice.Format.MONO_16KHZ)
+			{
+				// Native format is decoded with no conversion
+				assertArrayEquals(ADPCMDecoder.decodeBlock(wav, 60), first);
+			}
+			else
+			{
+				// Roughly one block's worth of time in the output format
+				int frames = first.length / format.getBytesPerFrame();
+				int expected = ADPCMEncoder.BLOCKSAMPLES * format.getSampleRate() / 16000;
+				assertTrue(Math.abs(frames - expected) < 30);
+			}
+		}
+	}
+
+	@Test
+	public void testDecodeInto() throws Exception
+	{
+		byte[] wav = encodeSequential();
+		for(PlaybackDevice.Format format : new PlaybackDevice.Format[] {
+			PlaybackDevice.Format.MONO_16KHZ, PlaybackDevice.Format.STEREO_44KHZ})
+		{
+			ADPCMDecoder decoder = new ADPCMDecoder();
+			decoder.init(new ByteArrayInputStream(wav));
+			decoder.setOutputFormat(format);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			while(true)
+			{
+				byte[] data = decoder.decode();
+				if(data == null)
+				{
+					break;
+				}
+				expected.write(data);
+			}
+
+			// Buffers smaller and larger than a block, split at odd places
+			decoder = new ADPCMDecoder();
+			decoder.init(new ByteArrayInputStream(wav));
+			decoder.setOutputFormat(format);
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			byte[] buffer = new byte[5000];
+			for(int i=0; ; i++)
+			{
+				ByteBuffer wrapped = ByteBuffer.wrap(buffer, 3, i % 2 == 0 ? 777 : 4990);
+				int added = decoder.decodeInto(wrapped);
+				if(added == -1)
+				{
+					break;
+				}
+				assertEquals(wrapped.position() - 3, added);
+				actual.write(buffer, 3, added);
+			}
+			assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+		}
+	}
+}
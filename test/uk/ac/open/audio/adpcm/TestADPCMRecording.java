@@ -0,0 +1,232 @@
+package uk.ac.open.audio.adpcm;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test script for ADPCMRecording.
+ */
+public class TestADPCMRecording
+{
+	private ADPCMRecording recording;
+
+	@Before
+	public void before()
+	{
+		recording = new ADPCMRecording();
+	}
+
+	/**
+	 * @param index Block number
+	 * @return Block with data and levels based on the number
+	 */
+	private static ADPCMEncoder.Block makeBlock(int index)
+	{
+		byte[] data = new byte[ADPCMEncoder.BLOCKBYTES];
+		for(int i=0; i<data.length; i++)
+		{
+			data[i] = (byte)(index + i);
+		}
+		return new ADPCMEncoder.Block(data, -index, index);
+	}
+
+	@Test
+	public void testRandomAccess() throws Exception
+	{
+		// Enough blocks for several pages
+		for(int i=0; i<1000; i++)
+		{
+			recording.addBlock(makeBlock(i));
+		}
+		assertEquals(1000, recording.getBlockCount());
+		assertEquals(ADPCMRecording.getBlockTime(1000), recording.getTime());
+
+		ADPCMEncoder.Block block = recording.getBlock(777);
+		assertArrayEquals(makeBlock(777).getData(), block.getData());
+		assertEquals(-777, block.getMinLevel());
+		assertEquals(777, block.getMaxLevel());
+
+		ADPCMEncoder.Block[] blocks = recording.getBlocks(995, 10);
+		assertEquals(5, blocks.length);
+		assertArrayEquals(makeBlock(999).getData(), blocks[4].getData());
+
+		// Bulk read across a page boundary, stopping at the end
+		byte[] data = new byte[ADPCMEncoder.BLOCKBYTES * 12];
+		assertEquals(10, recording.readBlocks(250, 10, data, ADPCMEncoder.BLOCKBYTES));
+		for(int i=0; i<10; i++)
+		{
+			assertArrayEquals(makeBlock(250 + i).getData(), Arrays.copyOfRange(data,
+				(i + 1) * ADPCMEncoder.BLOCKBYTES, (i + 2) * ADPCMEncoder.BLOCKBYTES));
+		}
+		assertEquals(3, recording.readBlocks(997, 10, data, 0));
+		assertEquals(-998, recording.getMinLevel(998));
+		assertEquals(998, recording.getMaxLevel(998));
+
+		int[] min = new int[12], max = new int[12];
+		assertEquals(3, recording.getLevels(997, 10, min, max, 2));
+		assertEquals(-998, min[3]);
+		assertEquals(999, max[4]);
+
+		recording.clear();
+		assertEquals(0, recording.getBlockCount());
+		recording.addBlock(makeBlock(5));
+		assertArrayEquals(makeBlock(5).getData(), recording.getBlock(0).getData());
+	}
+
+	@Test
+	public void testSave() throws Exception
+	{
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		ADPCMEncoder.writeWavHeader(expected, 300 * ADPCMEncoder.BLOCKSAMPLES);
+		for(int i=0; i<300; i++)
+		{
+			recording.addBlock(makeBlock(i));
+			expected.write(makeBlock(i).getData());
+		}
+
+		File temp = File.createTempFile("adpcmtest", ".wav");
+		try
+		{
+			recording.save(temp);
+			byte[] wav = new byte[(int)temp.length()];
+			DataInputStream input = new DataInputStream(new FileInputStream(temp));
+			input.readFully(wav);
+			input.close();
+			assertArrayEquals(expected.toByteArray(), wav);
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+
+	@Test
+	public void testSpill() throws Exception
+	{
+		ADPCMRecording spilled = new ADPCMRecording(true);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		ADPCMEncoder.writeWavHeader(expected, 700 * ADPCMEncoder.BLOCKSAMPLES);
+		for(int i=0; i<700; i++)
+		{
+			spilled.addBlock(makeBlock(i));
+			recording.addBlock(makeBlock(i));
+			expected.write(makeBlock(i).getData());
+		}
+
+		// Blocks from spilled pages and the in-memory page read back the same
+		for(int i : new int[] {0, 255, 256, 511, 512, 699})
+		{
+			assertArrayEquals(makeBlock(i).getData(), spilled.getBlock(i).getData());
+			assertEquals(i, spilled.getBlock(i).getMaxLevel());
+		}
+		byte[] data = new byte[ADPCMEncoder.BLOCKBYTES * 300];
+		assertEquals(300, spilled.readBlocks(400, 300, data, 0));
+		for(int i=0; i<300; i++)
+		{
+			assertArrayEquals(makeBlock(400 + i).getData(), Arrays.copyOfRange(data,
+				i * ADPCMEncoder.BLOCKBYTES, (i + 1) * ADPCMEncoder.BLOCKBYTES));
+		}
+
+		File temp = File.createTempFile("adpcmtest", ".wav");
+		try
+		{
+			spilled.save(temp);
+			assertEquals(0, spilled.getBlockCount());
+			byte[] wav = new byte[(int)temp.length()];
+			DataInputStream input = new DataInputStream(new FileInputStream(temp));
+			input.readFully(wav);
+			input.close();
+			assertArrayEquals(expected.toByteArray(), wav);
+
+			// Recording can be reused after saving
+			spilled.addBlock(makeBlock(3));
+			assertArrayEquals(makeBlock(3).getData(), spilled.getBlock(0).getData());
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+
+	@Test
+	public void testSpillSaveFails() throws Exception
+	{
+		ADPCMRecording spilled = new ADPCMRecording(true);
+		for(int i=0; i<300; i++)
+		{
+			spilled.addBlock(makeBlock(i));
+		}
+
+		// A directory that isn't empty can't be replaced
+		File dir = File.createTempFile("adpcmtest", "");
+		dir.delete();
+		File inside = new File(dir, "file");
+		File temp = File.createTempFile("adpcmtest", ".wav");
+		try
+		{
+			assertTrue(dir.mkdir());
+			assertTrue(inside.createNewFile());
+			try
+			{
+				spilled.save(dir);
+				fail();
+			}
+			catch(IOException e)
+			{
+			}
+
+			// Recording is still there and can be saved somewhere else
+			assertEquals(300, spilled.getBlockCount());
+			assertArrayEquals(makeBlock(10).getData(), spilled.getBlock(10).getData());
+			spilled.save(temp);
+			assertEquals(0, spilled.getBlockCount());
+			assertEquals(60 + 300 * ADPCMEncoder.BLOCKBYTES, temp.length());
+		}
+		finally
+		{
+			inside.delete();
+			dir.delete();
+			temp.delete();
+		}
+	}
+
+	@Test
+	public void testLevelSummary() throws Exception
+	{
+		Random random = new Random(3);
+		int[] levels = new int[1500];
+		int[] expectedMin = new int[50], expectedMax = new int[50],
+			min = new int[52], max = new int[52];
+		for(int i=0; i<levels.length; i++)
+		{
+			levels[i] = random.nextInt(30000);
+			recording.addBlock(new ADPCMEncoder.Block(
+				new byte[ADPCMEncoder.BLOCKBYTES], -levels[i], levels[i]));
+
+			// Compare against a simple scan for various ranges and zooms
+			if(i % 97 == 0 || i == levels.length - 1)
+			{
+				int start = random.nextInt(i + 1), end = start + 1 + random.nextInt(i + 20);
+				recording.getLevelSummary(start, end, 50, min, max, 2);
+				for(int p=0; p<50; p++)
+				{
+					int from = start + (int)((long)(end - start) * p / 50),
+						to = start + (int)((long)(end - start) * (p + 1) / 50);
+					to = Math.max(Math.min(to, i + 1), from + 1);
+					expectedMin[p] = 0;
+					expectedMax[p] = 0;
+					for(int b=from; b<to && b<=i; b++)
+					{
+						expectedMin[p] = Math.min(expectedMin[p], -levels[b]);
+						expectedMax[p] = Math.max(expectedMax[p], levels[b]);
+					}
+					assertEquals(expectedMin[p], min[p + 2]);
+					assertEquals(expectedMax[p], max[p + 2]);
+				}
+			}
+		}
+	}
+}
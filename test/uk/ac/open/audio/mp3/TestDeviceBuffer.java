@@ -0,0 +1,84 @@
+package uk.ac.open.audio.mp3;
+
+import java.util.Random;
+
+import javazoom.jl.decoder.SampleBuffer;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import uk.ac.open.audio.*;
+
+/**
+ * Test script for DeviceBuffer, comparing against JLayer's SampleBuffer
+ * followed by separate conversion.
+ */
+public class TestDeviceBuffer
+{
+	/**
+	 * Decodes two fake frames into both buffers and compares the output.
+	 * @param frequency Input frequency
+	 * @param channels Input channels
+	 * @param format Output format
+	 */
+	private static void compare(int frequency, int channels,
+		PlaybackDevice.Format format)
+	{
+		Random random = new Random(frequency + channels);
+		DeviceBuffer device = new DeviceBuffer(frequency, channels, format);
+		SampleBuffer sample = new SampleBuffer(frequency, channels);
+		Resampler resampler = new Resampler(channels == 2 && format.isStereo(),
+			frequency, format.getSampleRate());
+		float[] f = new float[32];
+		for(int frame=0; frame<2; frame++)
+		{
+			device.clear_buffer();
+			sample.clear_buffer();
+
+			// Blocks of 32 arrive for each channel in turn, as from JLayer
+			for(int block=0; block<36; block++)
+			{
+				for(int channel=0; channel<channels; channel++)
+				{
+					for(int i=0; i<f.length; i++)
+					{
+						f[i] = (random.nextFloat() - 0.5f) * 70000f;
+					}
+					device.appendSamples(channel, f);
+					sample.appendSamples(channel, f);
+				}
+			}
+			device.finishFrame();
+
+			// Old route: SampleBuffer, then downmix, resample and expand
+			short[] data = sample.getBuffer();
+			int length = sample.getBufferLength();
+			if(channels == 2 && !format.isStereo())
+			{
+				byte[] bytes = AudioUtil.shortToByte(data, 36 * 32 * 2, false);
+				data = AudioUtil.byteToShort(bytes, bytes.length, true);
+				length = data.length;
+			}
+			length = resampler.resample(data, 0, length);
+			byte[] expected = AudioUtil.shortToByte(resampler.getOutput(), length,
+				channels == 1 && format.isStereo());
+
+			byte[] actual = new byte[device.getLength()];
+			System.arraycopy(device.getData(), 0, actual, 0, actual.length);
+			assertArrayEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testFormats()
+	{
+		for(PlaybackDevice.Format format : PlaybackDevice.Format.values())
+		{
+			for(int frequency : new int[] {16000, 22050, 44100, 48000})
+			{
+				compare(frequency, 1, format);
+				compare(frequency, 2, format);
+			}
+		}
+	}
+}
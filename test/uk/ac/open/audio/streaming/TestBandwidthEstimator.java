@@ -0,0 +1,53 @@
+package uk.ac.open.audio.streaming;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test script for BandwidthEstimator.
+ */
+public class TestBandwidthEstimator
+{
+	@Test
+	public void testSteady()
+	{
+		BandwidthEstimator estimator = new BandwidthEstimator();
+		assertEquals(0.0, estimator.getMean(), 0.0);
+		for(int i=0; i<100; i++)
+		{
+			estimator.add(2048, 100);
+		}
+		assertEquals(20480.0, estimator.getMean(), 0.001);
+		assertEquals(0.0, estimator.getDeviation(), 0.001);
+		assertEquals(20480.0, estimator.getLowerEstimate(2), 0.001);
+		assertEquals(204800, estimator.getTotalBytes());
+	}
+
+	@Test
+	public void testShortTimes()
+	{
+		// Data arriving too fast to time is combined with the next sample
+		BandwidthEstimator estimator = new BandwidthEstimator();
+		estimator.add(2048, 0);
+		assertEquals(Double.POSITIVE_INFINITY, estimator.getMean(), 0.0);
+		estimator.add(2048, 5);
+		estimator.add(1000, 5);
+		assertEquals(1, estimator.getSampleCount());
+		assertEquals(509600.0, estimator.getMean(), 0.001);
+	}
+
+	@Test
+	public void testBursty()
+	{
+		BandwidthEstimator estimator = new BandwidthEstimator();
+		for(int i=0; i<200; i++)
+		{
+			estimator.add(2048, i % 2 == 0 ? 20 : 180);
+		}
+		// Alternating 102400 and 11378 bytes/s
+		assertEquals(56889.0, estimator.getMean(), 5000.0);
+		assertEquals(45511.0, estimator.getDeviation(), 5000.0);
+		assertTrue(estimator.getLowerEstimate(1) < 15000.0);
+		assertEquals(0.0, estimator.getLowerEstimate(3), 0.0);
+	}
+}
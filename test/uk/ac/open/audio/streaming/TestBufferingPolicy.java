@@ -0,0 +1,54 @@
+package uk.ac.open.audio.streaming;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test script for the buffering policies.
+ */
+public class TestBufferingPolicy
+{
+	/**
+	 * @param downloaded Bytes downloaded (at 10000 bytes per second of audio,
+	 *   1 second decoded, 100 seconds long)
+	 * @param rate Download rate
+	 * @param deviation Deviation of download rate
+	 * @return Status
+	 */
+	private static BufferingPolicy.Status status(int downloaded, double rate,
+		double deviation)
+	{
+		return new BufferingPolicy.Status(downloaded, 1000000, false, rate,
+			deviation, 10000.0, downloaded / 10000.0, 1.0, 100.0);
+	}
+
+	@Test
+	public void testThreshold()
+	{
+		BufferingPolicy policy = new ThresholdPolicy();
+		// Fast download needs 1 second of audio
+		assertEquals(0, policy.getPlaybackDelay(status(20000, 30000.0, 0.0)));
+		assertEquals(0, policy.getPlaybackDelay(status(10000, 30000.0, 0.0)));
+		assertEquals(166, policy.getPlaybackDelay(status(5000, 30000.0, 0.0)));
+		// Slow download waits until the rest can download in time
+		assertEquals(119846, policy.getPlaybackDelay(status(20000, 5000.0, 0.0)));
+		// Unknown length plays straight away
+		assertEquals(0, policy.getPlaybackDelay(new BufferingPolicy.Status(20000,
+			StreamPlayer.UNKNOWN, false, 5000.0, 0.0, 10000.0, 2.0, 1.0,
+			StreamPlayer.UNKNOWN)));
+	}
+
+	@Test
+	public void testConfidence()
+	{
+		BufferingPolicy policy = new ConfidencePolicy();
+		// Fast download needs 1 second in hand, longer if the speed is unsteady
+		assertEquals(0, policy.getPlaybackDelay(status(20000, 30000.0, 0.0)));
+		assertEquals(333, policy.getPlaybackDelay(status(10000, 30000.0, 0.0)));
+		assertEquals(666, policy.getPlaybackDelay(status(10000, 30000.0, 15000.0)));
+		// Slow download waits until the rest can download in time
+		assertEquals(98000, policy.getPlaybackDelay(status(20000, 5000.0, 0.0)));
+		assertEquals(0, policy.getPlaybackDelay(new BufferingPolicy.Status(20000,
+			1000000, true, 5000.0, 0.0, 10000.0, 2.0, 1.0, 100.0)));
+	}
+}
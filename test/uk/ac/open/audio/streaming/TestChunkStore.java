@@ -0,0 +1,78 @@
+package uk.ac.open.audio.streaming;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test script for the ChunkStore.
+ */
+public class TestChunkStore
+{
+	private ChunkStore store;
+
+	@Before
+	public void before()
+	{
+		store = new ChunkStore(4);
+	}
+
+	@Test
+	public void testSizes() throws Exception
+	{
+		assertEquals(0, store.getDataSize());
+		assertEquals(0, store.getChunkCount());
+		store.add(new byte[] {1, 2, 3, 4}, 10);
+		store.add(new byte[] {5, 6, 7, 8}, 20);
+		store.add(new byte[] {9}, 30);
+		assertEquals(9, store.getDataSize());
+		assertEquals(3, store.getChunkCount());
+		assertEquals(20, store.getTime(1));
+	}
+
+	@Test
+	public void testRead() throws Exception
+	{
+		// Enough chunks to make it grow beyond its initial capacity
+		for(int i=0; i<100; i++)
+		{
+			store.add(new byte[] {(byte)i, (byte)i, (byte)i, (byte)i}, 0);
+		}
+		byte[] buffer = new byte[6];
+		assertEquals(6, store.read(203, buffer, 0, 6));
+		assertArrayEquals(new byte[] {50, 51, 51, 51, 51, 52}, buffer);
+		assertEquals(2, store.read(398, buffer, 1, 5));
+		assertArrayEquals(new byte[] {50, 99, 99, 51, 51, 52}, buffer);
+		assertEquals(0, store.read(400, buffer, 0, 6));
+	}
+
+	@Test
+	public void testCursor() throws Exception
+	{
+		ChunkStore.Cursor cursor = store.newCursor();
+		byte[] buffer = new byte[5];
+		assertEquals(0, cursor.available());
+		assertEquals(0, cursor.read(buffer, 0, 5));
+		store.add(new byte[] {1, 2, 3, 4}, 0);
+		assertEquals(3, cursor.read(buffer, 0, 3));
+		assertArrayEquals(new byte[] {1, 2, 3, 0, 0}, buffer);
+		store.add(new byte[] {5, 6}, 0);
+		assertEquals(3, cursor.available());
+		assertEquals(3, cursor.read(buffer, 0, 5));
+		assertArrayEquals(new byte[] {4, 5, 6, 0, 0}, buffer);
+		assertEquals(6, cursor.getPosition());
+	}
+
+	@Test
+	public void testAddAfterPartial() throws Exception
+	{
+		store.add(new byte[] {1, 2}, 0);
+		try
+		{
+			store.add(new byte[] {3, 4, 5, 6}, 0);
+			fail();
+		}
+		catch(IllegalStateException e)
+		{
+		}
+	}
+}
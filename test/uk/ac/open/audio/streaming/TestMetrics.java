@@ -0,0 +1,78 @@
+package uk.ac.open.audio.streaming;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.management.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test script for Metrics.
+ */
+public class TestMetrics
+{
+	@Test
+	public void testHistogram()
+	{
+		Metrics.Histogram histogram = Metrics.histogram("test.histogram");
+		histogram.reset();
+		assertEquals(0, histogram.getPercentile(0.5));
+		for(int i=1; i<=100; i++)
+		{
+			histogram.record(i);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(50.5, histogram.getMean(), 0.001);
+		assertEquals(100, histogram.getMax());
+		// Within a factor of two
+		assertEquals(63, histogram.getPercentile(0.5));
+		assertEquals(100, histogram.getPercentile(0.99));
+		assertEquals(1, histogram.getPercentile(0.01));
+
+		assertSame(histogram, Metrics.histogram("test.histogram"));
+		try
+		{
+			Metrics.counter("test.histogram");
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+		}
+	}
+
+	@Test
+	public void testReporting() throws Exception
+	{
+		Metrics.Counter counter = Metrics.counter("test.counter");
+		counter.reset();
+		counter.add(3);
+		counter.increment();
+		assertEquals(4L, Metrics.getValues().get("test.counter"));
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertEquals(4L, server.getAttribute(new ObjectName(Metrics.OBJECTNAME),
+			"test.counter"));
+
+		final BlockingQueue<SortedMap<String, Number>> reports =
+			new LinkedBlockingQueue<SortedMap<String, Number>>();
+		Metrics.setReporter(new MetricsReporter()
+		{
+			public void report(SortedMap<String, Number> values)
+			{
+				reports.add(values);
+			}
+		}, 10);
+		try
+		{
+			SortedMap<String, Number> values = reports.poll(5, TimeUnit.SECONDS);
+			assertEquals(4L, values.get("test.counter"));
+		}
+		finally
+		{
+			Metrics.setReporter(null, 0);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package uk.ac.open.audio.streaming;
+
+import java.io.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test script for NetworkTrace and the throttled streams.
+ */
+public class TestNetworkTrace
+{
+	private final static String TRACE =
+		"# Fast with latency, then a stall\n" +
+		"1000 10000 50\n" +
+		"\n" +
+		"500 0   # stalled\n" +
+		"500 2000\n";
+
+	@Test
+	public void testTimes() throws Exception
+	{
+		NetworkTrace trace = NetworkTrace.read(new StringReader(TRACE));
+		assertEquals(0, trace.getSendTime(0));
+		assertEquals(100, trace.getSendTime(1000));
+		assertEquals(150, trace.getArrivalTime(1000));
+		// End of first segment is sent before the stall
+		assertEquals(1000, trace.getSendTime(10000));
+		assertEquals(1501, trace.getSendTime(10001));
+		assertEquals(2000, trace.getSendTime(11000));
+		assertEquals(0, trace.getLatency(1700));
+		assertEquals(0, trace.getSpeed(1200));
+		// Trace repeats
+		assertEquals(2100, trace.getSendTime(12000));
+		assertEquals(10000, trace.getSpeed(2100));
+		assertEquals(4000, trace.getSendTime(22000));
+
+		assertEquals(250, NetworkTrace.constant(4000).getSendTime(1000));
+	}
+
+	@Test
+	public void testInvalid() throws Exception
+	{
+		for(String text : new String[] {"", "100", "100 x", "100 0", "0 100"})
+		{
+			try
+			{
+				NetworkTrace.read(new StringReader(text));
+				fail(text);
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+
+	@Test
+	public void testStreams() throws Exception
+	{
+		NetworkTrace trace = NetworkTrace.constant(40000);
+		byte[] data = new byte[6000];
+		for(int i=0; i<data.length; i++)
+		{
+			data[i] = (byte)i;
+		}
+
+		long start = System.currentTimeMillis();
+		DataInputStream input = new DataInputStream(new ThrottledInputStream(
+			new ByteArrayInputStream(data), trace));
+		byte[] read = new byte[data.length];
+		input.readFully(read);
+		assertEquals(-1, input.read());
+		assertArrayEquals(data, read);
+		assertTrue(System.currentTimeMillis() - start >= 150);
+
+		start = System.currentTimeMillis();
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		OutputStream output = new ThrottledOutputStream(written, trace);
+		output.write(data);
+		output.close();
+		assertArrayEquals(data, written.toByteArray());
+		assertTrue(System.currentTimeMillis() - start >= 150);
+	}
+}
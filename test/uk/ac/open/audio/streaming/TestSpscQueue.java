@@ -0,0 +1,66 @@
+package uk.ac.open.audio.streaming;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test script for the SpscQueue.
+ */
+public class TestSpscQueue
+{
+	@Test
+	public void testBounds() throws Exception
+	{
+		SpscQueue<Integer> queue = new SpscQueue<Integer>(3);
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+		for(int i=0; i<3; i++)
+		{
+			assertTrue(queue.offer(i));
+		}
+		assertFalse(queue.offer(3));
+		assertEquals(3, queue.size());
+		assertEquals(Integer.valueOf(0), queue.poll());
+		assertTrue(queue.offer(3));
+		for(int i=1; i<4; i++)
+		{
+			assertEquals(Integer.valueOf(i), queue.poll());
+		}
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testThreads() throws Exception
+	{
+		final SpscQueue<Integer> queue = new SpscQueue<Integer>(5);
+		final int count = 200000;
+		Thread producer = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				for(int i=0; i<count; i++)
+				{
+					while(!queue.offer(i))
+					{
+						Thread.yield();
+					}
+				}
+			}
+		};
+		producer.start();
+
+		// Items arrive in order with none lost or repeated
+		for(int i=0; i<count; i++)
+		{
+			Integer item;
+			while((item = queue.poll()) == null)
+			{
+				Thread.yield();
+			}
+			assertEquals(i, item.intValue());
+		}
+		producer.join();
+		assertTrue(queue.isEmpty());
+	}
+}
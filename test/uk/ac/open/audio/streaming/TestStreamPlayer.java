@@ -0,0 +1,371 @@
+package uk.ac.open.audio.streaming;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import uk.ac.open.audio.*;
+import uk.ac.open.audio.adpcm.*;
+
+/**
+ * Test script for the StreamPlayer, using in-memory ADPCM data.
+ */
+public class TestStreamPlayer
+{
+	private byte[] wav;
+
+	private final List<StreamPlayer.State> states =
+		Collections.synchronizedList(new LinkedList<StreamPlayer.State>());
+
+	private final StreamPlayer.Handler handler = new StreamPlayer.Handler()
+	{
+		public void streamError(Throwable t)
+		{
+			t.printStackTrace();
+		}
+
+		public void streamChangedState(StreamPlayer.State s)
+		{
+			states.add(s);
+		}
+
+		public PlaybackDevice.Format streamFormat(PlaybackDevice.Format nativeFormat)
+		{
+			return nativeFormat;
+		}
+
+		public void updateStats(int download, int length, double percentage,
+			int downloadPerSecond, int audioPerSecond, int estimatedWait)
+		{
+		}
+	};
+
+	@Before
+	public void before() throws Exception
+	{
+		Random random = new Random(5);
+		byte[] pcm = new byte[ADPCMEncoder.BLOCKSAMPLES * 2 * 100];
+		random.nextBytes(pcm);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ADPCMEncoder.writeWavHeader(output, pcm.length / 2);
+		output.write(ADPCMEncoder.encode(pcm, 1));
+		wav = output.toByteArray();
+	}
+
+	/**
+	 * Plays the stream through as fast as possible, as the playback thread would.
+	 * @param player Player
+	 * @return All audio data
+	 * @throws Exception Any error
+	 */
+	private byte[] play(StreamPlayer player) throws Exception
+	{
+		ByteArrayOutputStream played = new ByteArrayOutputStream();
+		long until = System.currentTimeMillis() + 10000;
+		while(System.currentTimeMillis() < until)
+		{
+			if(!player.hasNextAudio())
+			{
+				Thread.sleep(1);
+				continue;
+			}
+			StreamPlayer.AudioBlock block = player.getNextAudio();
+			if(block == null)
+			{
+				return played.toByteArray();
+			}
+			played.write(block.getData(), 0, block.getLength());
+			player.recycle(block);
+		}
+		fail("Timed out");
+		return null;
+	}
+
+	@Test
+	public void testSlowHandler() throws Exception
+	{
+		// Handler takes far longer than the whole download
+		final List<Integer> downloaded =
+			Collections.synchronizedList(new LinkedList<Integer>());
+		StreamPlayer player = new StreamPlayer(new ByteArrayInputStream(wav),
+			wav.length, ADPCMDecoder.class, new StreamPlayer.Handler()
+			{
+				public void streamError(Throwable t)
+				{
+				}
+
+				public void streamChangedState(StreamPlayer.State s)
+				{
+				}
+
+				public PlaybackDevice.Format streamFormat(PlaybackDevice.Format nativeFormat)
+				{
+					return nativeFormat;
+				}
+
+				public void updateStats(int download, int length, double percentage,
+					int downloadPerSecond, int audioPerSecond, int estimatedWait)
+				{
+					downloaded.add(download);
+					try
+					{
+						Thread.sleep(200);
+					}
+					catch(InterruptedException e)
+					{
+					}
+				}
+			});
+		try
+		{
+			// Playback isn't held up, and intermediate stats are dropped
+			long start = System.currentTimeMillis();
+			assertTrue(play(player).length > 0);
+			assertTrue(System.currentTimeMillis() - start < 1000);
+			Thread.sleep(500);
+			assertTrue(downloaded.size() < 10);
+			assertEquals(wav.length, downloaded.get(downloaded.size() - 1).intValue());
+		}
+		finally
+		{
+			player.close();
+		}
+	}
+
+	@Test
+	public void testPlayback() throws Exception
+	{
+		ADPCMDecoder decoder = new ADPCMDecoder();
+		decoder.init(new ByteArrayInputStream(wav));
+		decoder.setOutputFormat(PlaybackDevice.Format.MONO_16KHZ);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for(byte[] data; (data = decoder.decode()) != null; )
+		{
+			expected.write(data);
+		}
+
+		StreamPlayer player = new StreamPlayer(new ByteArrayInputStream(wav),
+			wav.length, ADPCMDecoder.class, handler);
+		try
+		{
+			assertArrayEquals(expected.toByteArray(), play(player));
+			assertEquals(PlaybackDevice.Format.MONO_16KHZ, player.getFormat());
+			// State events arrive on a separate thread
+			long until = System.currentTimeMillis() + 5000;
+			while(!states.contains(StreamPlayer.State.FULLYLOADED) &&
+				System.currentTimeMillis() < until)
+			{
+				Thread.sleep(10);
+			}
+			assertTrue(states.contains(StreamPlayer.State.FULLYLOADED));
+
+			// Same again after rewinding
+			player.rewind();
+			assertArrayEquals(expected.toByteArray(), play(player));
+		}
+		finally
+		{
+			player.close();
+		}
+	}
+
+	@After
+	public void after()
+	{
+		StreamPlayer.setDefaultBufferingPolicy(null);
+		StreamPlayer.resetDecodeAhead();
+	}
+
+	/**
+	 * Waits for the player to reach a state.
+	 * @param state State
+	 * @return True if it did within five seconds
+	 * @throws InterruptedException If interrupted
+	 */
+	private boolean waitForState(StreamPlayer.State state)
+		throws InterruptedException
+	{
+		long until = System.currentTimeMillis() + 5000;
+		while(!states.contains(state) && System.currentTimeMillis() < until)
+		{
+			Thread.sleep(10);
+		}
+		return states.contains(state);
+	}
+
+	/** Decoder that is slow to produce its first audio. */
+	public static class SlowStartDecoder extends ADPCMDecoder
+	{
+		private boolean started;
+
+		@Override
+		public int decodeInto(ByteBuffer buffer) throws AudioException
+		{
+			if(!started)
+			{
+				started = true;
+				try
+				{
+					Thread.sleep(300);
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+			return super.decodeInto(buffer);
+		}
+	}
+
+	@Test
+	public void testReadyAfterDownload() throws Exception
+	{
+		// The in-memory download finishes long before any audio is decoded, so
+		// only the decoder can notice that playback can start
+		StreamPlayer player = new StreamPlayer(new ByteArrayInputStream(wav),
+			wav.length, SlowStartDecoder.class, handler);
+		try
+		{
+			assertTrue(waitForState(StreamPlayer.State.FULLYLOADED));
+			assertTrue(states.contains(StreamPlayer.State.READYTOPLAY));
+			assertFalse(player.hasReadyCheck());
+		}
+		finally
+		{
+			player.close();
+		}
+	}
+
+	@Test
+	public void testCloseCancelsReadyCheck() throws Exception
+	{
+		// Policy always wants to wait a minute, so a check stays scheduled
+		StreamPlayer.setDefaultBufferingPolicy(new BufferingPolicy()
+		{
+			public int getPlaybackDelay(Status status)
+			{
+				return 60000;
+			}
+		});
+		StreamPlayer player = new StreamPlayer(new ByteArrayInputStream(wav),
+			wav.length, ADPCMDecoder.class, handler);
+		try
+		{
+			long until = System.currentTimeMillis() + 5000;
+			while(!player.hasReadyCheck() && System.currentTimeMillis() < until)
+			{
+				Thread.sleep(10);
+			}
+			assertTrue(player.hasReadyCheck());
+			assertEquals(StreamPlayer.State.WAITBEFOREPLAY, player.getState());
+		}
+		finally
+		{
+			player.close();
+		}
+		assertFalse(player.hasReadyCheck());
+	}
+
+	/** Decoder that takes far too long, as on a slow machine. */
+	public static class SlowDecoder extends ADPCMDecoder
+	{
+		@Override
+		public int decodeInto(ByteBuffer buffer) throws AudioException
+		{
+			try
+			{
+				Thread.sleep(30);
+			}
+			catch(InterruptedException e)
+			{
+			}
+			return super.decodeInto(buffer);
+		}
+	}
+
+	@Test
+	public void testSlowDecode() throws Exception
+	{
+		StreamPlayer player = new StreamPlayer(new ByteArrayInputStream(wav),
+			wav.length, SlowDecoder.class, handler);
+		try
+		{
+			// Decoder takes longer than the audio lasts, so it should soon be
+			// decoding as far ahead as possible
+			long until = System.currentTimeMillis() + 5000;
+			while(player.getDecodeAhead() < 1000 &&
+				System.currentTimeMillis() < until)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals(1000, player.getDecodeAhead());
+		}
+		finally
+		{
+			player.close();
+		}
+
+		// Next player with the same decoder starts a step lower; others aren't
+		// affected
+		StreamPlayer slow = new StreamPlayer(new ByteArrayInputStream(wav),
+			wav.length, SlowDecoder.class, handler),
+			normal = new StreamPlayer(new ByteArrayInputStream(wav),
+			wav.length, ADPCMDecoder.class, handler);
+		try
+		{
+			assertEquals(900, slow.getDecodeAhead());
+			assertEquals(130, normal.getDecodeAhead());
+		}
+		finally
+		{
+			slow.close();
+			normal.close();
+		}
+	}
+
+	@Test
+	public void testStableDecode() throws Exception
+	{
+		// About 32 seconds of audio
+		byte[] pcm = new byte[ADPCMEncoder.BLOCKSAMPLES * 2 * 500];
+		new Random(6).nextBytes(pcm);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ADPCMEncoder.writeWavHeader(output, pcm.length / 2);
+		output.write(ADPCMEncoder.encode(pcm, 1));
+		byte[] longWav = output.toByteArray();
+
+		StreamPlayer player = new StreamPlayer(new ByteArrayInputStream(longWav),
+			longWav.length, ADPCMDecoder.class, handler);
+		try
+		{
+			assertEquals(130, player.getDecodeAhead());
+
+			// Play much faster than real time, but slowly enough that the decoder
+			// never runs out (which would raise the target)
+			long until = System.currentTimeMillis() + 30000;
+			while(System.currentTimeMillis() < until)
+			{
+				Thread.sleep(2);
+				if(!player.hasNextAudio())
+				{
+					continue;
+				}
+				StreamPlayer.AudioBlock block = player.getNextAudio();
+				if(block == null)
+				{
+					break;
+				}
+				player.recycle(block);
+			}
+
+			// Lowered after 20 seconds of audio decoded in good time
+			assertEquals(117, player.getDecodeAhead());
+		}
+		finally
+		{
+			player.close();
+		}
+	}
+}
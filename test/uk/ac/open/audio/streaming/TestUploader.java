@@ -0,0 +1,202 @@
+package uk.ac.open.audio.streaming;
+
+import java.io.*;
+import java.net.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Test script for the Uploader, using a local stand-in server.
+ */
+public class TestUploader
+{
+	private HttpServer server;
+	private URL url;
+
+	private String transferEncoding;
+	private byte[] received;
+
+	private class Result implements Uploader.Handler
+	{
+		private Throwable error;
+		private boolean done;
+
+		public synchronized void uploadError(Throwable t)
+		{
+			error = t;
+			done = true;
+			notifyAll();
+		}
+
+		public synchronized void uploadStatus(int transferred, int total)
+		{
+			if(transferred == total)
+			{
+				done = true;
+				notifyAll();
+			}
+		}
+
+		synchronized void waitForEnd() throws Throwable
+		{
+			long until = System.currentTimeMillis() + 5000;
+			while(!done && System.currentTimeMillis() < until)
+			{
+				wait(until - System.currentTimeMillis());
+			}
+			assertTrue(done);
+			if(error != null)
+			{
+				throw error;
+			}
+		}
+	}
+
+	@Before
+	public void before() throws Exception
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/upload", new HttpHandler()
+		{
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				InputStream in = exchange.getRequestBody();
+				byte[] buffer = new byte[1024];
+				while(true)
+				{
+					int read = in.read(buffer);
+					if(read == -1)
+					{
+						break;
+					}
+					body.write(buffer, 0, read);
+				}
+				synchronized(TestUploader.this)
+				{
+					transferEncoding = exchange.getRequestHeaders().getFirst(
+						"Transfer-encoding");
+					received = body.toByteArray();
+					TestUploader.this.notifyAll();
+				}
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		url = new URL("http://127.0.0.1:" + server.getAddress().getPort() +
+			"/upload");
+	}
+
+	@After
+	public void after()
+	{
+		server.stop(0);
+	}
+
+	private synchronized String waitForBody() throws Exception
+	{
+		long until = System.currentTimeMillis() + 5000;
+		while(received == null && System.currentTimeMillis() < until)
+		{
+			wait(until - System.currentTimeMillis());
+		}
+		assertNotNull(received);
+		return new String(received, "ISO-8859-1");
+	}
+
+	/**
+	 * Waits for the upload thread to record the bytes it sent, then a little
+	 * longer for any throughput sample.
+	 * @param bytesBefore Value of the bytes counter before the upload
+	 * @throws Exception Any error
+	 */
+	private static void waitForMetrics(long bytesBefore) throws Exception
+	{
+		long until = System.currentTimeMillis() + 5000;
+		while(Metrics.counter("upload.bytes").getCount() == bytesBefore &&
+			System.currentTimeMillis() < until)
+		{
+			Thread.sleep(10);
+		}
+		assertTrue(Metrics.counter("upload.bytes").getCount() > bytesBefore);
+		Thread.sleep(100);
+	}
+
+	@Test
+	public void testFixedLength() throws Throwable
+	{
+		long bytes = Metrics.counter("upload.bytes").getCount(),
+			samples = Metrics.histogram("upload.bytesPerSecond").getCount();
+		Result result = new Result();
+		new Uploader(result, url, "frog".getBytes("ISO-8859-1"));
+		String body = waitForBody();
+		result.waitForEnd();
+		waitForMetrics(bytes);
+		assertEquals(samples + 1,
+			Metrics.histogram("upload.bytesPerSecond").getCount());
+		assertNull(transferEncoding);
+		assertTrue(body.contains("filename=\"adpcm.wav\""));
+		assertTrue(body.contains("\r\n\r\nfrog\r\n--"));
+	}
+
+	@Test
+	public void testLive() throws Throwable
+	{
+		long bytes = Metrics.counter("upload.bytes").getCount(),
+			samples = Metrics.histogram("upload.bytesPerSecond").getCount();
+		Result result = new Result();
+		Uploader uploader = new Uploader(result, url);
+		uploader.addData("fr".getBytes("ISO-8859-1"));
+		Thread.sleep(100);
+		uploader.addData("xogx".getBytes("ISO-8859-1"), 1, 2);
+		uploader.finish(1017);
+		String body = waitForBody();
+		result.waitForEnd();
+
+		// Live upload time is the recording time, so isn't a throughput
+		waitForMetrics(bytes);
+		assertEquals(samples,
+			Metrics.histogram("upload.bytesPerSecond").getCount());
+		assertEquals("chunked", transferEncoding);
+		assertTrue(body.contains("\r\n\r\nfrog\r\n--"));
+		assertTrue(body.contains("name=\"samples\"\r\n\r\n1017\r\n--"));
+		assertTrue(body.endsWith("--\r\n"));
+
+		// Can't add more once finished
+		try
+		{
+			uploader.addData(new byte[1]);
+			fail();
+		}
+		catch(IllegalStateException e)
+		{
+		}
+	}
+
+	@Test
+	public void testLiveFailed() throws Throwable
+	{
+		// Nothing is listening once the server has stopped
+		server.stop(0);
+		Result result = new Result();
+		Uploader uploader = new Uploader(result, url);
+		try
+		{
+			result.waitForEnd();
+			fail();
+		}
+		catch(IOException e)
+		{
+		}
+		assertTrue(uploader.hasFailed());
+
+		// Data is now ignored, and finishing does nothing
+		uploader.addData("frog".getBytes("ISO-8859-1"));
+		uploader.finish(1017);
+		uploader.cancel();
+	}
+}